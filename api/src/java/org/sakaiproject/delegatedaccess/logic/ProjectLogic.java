@@ -16,6 +16,7 @@
 
 package org.sakaiproject.delegatedaccess.logic;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +32,7 @@ import org.sakaiproject.delegatedaccess.model.ListOptionSerialized;
 import org.sakaiproject.delegatedaccess.model.NodeModel;
 import org.sakaiproject.delegatedaccess.model.SearchResult;
 import org.sakaiproject.delegatedaccess.model.SiteSearchResult;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResultPage;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
 import org.sakaiproject.hierarchy.model.HierarchyNode;
 import org.sakaiproject.user.api.User;
@@ -91,6 +93,31 @@ public interface ProjectLogic {
 	 * @return
 	 */
 	public List<SiteSearchResult> searchUserSites(String search, Map<String, Object> advancedOptions, boolean shoppingPeriod, boolean activeShoppingData);
+	
+	/**
+	 * Returns one page of searchUserSites' results.  The sorted results of the current user's recent searches are kept on
+	 * this server, so paging through them or sorting them by another column doesn't run the search again and the
+	 * caller only needs to hold on to the page.
+	 * 
+	 * @param search
+	 * @param advancedOptions
+	 * @param shoppingPeriod
+	 * @param activeShoppingData
+	 * @param orderBy one of the DelegatedAccessConstants.SEARCH_COMPARE_ values
+	 * @param orderAsc
+	 * @param afterSiteId the last site id of the previous page (see SiteSearchResultPage.getLastSiteId()), the page starts right after it.
+	 * If null or the site is no longer in the results, the page starts at offset instead.
+	 * @param offset
+	 * @param limit the maximum number of results on the page
+	 * @return
+	 */
+	public SiteSearchResultPage searchUserSites(String search, Map<String, Object> advancedOptions, boolean shoppingPeriod, boolean activeShoppingData,
+			int orderBy, boolean orderAsc, String afterSiteId, int offset, int limit);
+	
+	/**
+	 * Forgets the current user's site searches, so the next page is searched again
+	 */
+	public void clearSiteSearchResults();
 
 	/**
 	 * returns the tree model of a user's delegated access.  Each node in the tree has the NodeModel object
@@ -136,6 +163,24 @@ public interface ProjectLogic {
 	 * @return
 	 */
 	public boolean addChildrenNodes(Object node, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, List<String> accessAdminNodes, boolean shopping, boolean shoppingPeriodTool);
+	
+	/**
+	 * Same as addChildrenNodes, but only adds the next pageSize children (ordered by title).  If there are more
+	 * children left, a "load more" child is added (NodeModel.isLoadMoreNode()) and calling this again for the same
+	 * node replaces it with the next page.  The parent's NodeModel keeps track of how many children have been loaded
+	 * and the total.
+	 * 
+	 * @param node
+	 * @param userId
+	 * @param blankRestrictedTools
+	 * @param onlyAccessNodes
+	 * @param accessAdminNodes
+	 * @param shopping
+	 * @param shoppingPeriodTool
+	 * @param pageSize 0 adds all children
+	 * @return
+	 */
+	public boolean addChildrenNodes(Object node, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, List<String> accessAdminNodes, boolean shopping, boolean shoppingPeriodTool, int pageSize);
 
 	/**
 	 * returns a blank (unselected) list of all the tool options for restricting tools
@@ -220,6 +265,145 @@ public interface ProjectLogic {
 	 */
 	public Date getHierarchyJobLastRunDate(String nodeId);
 	
+	/**
+	 * returns the checkpoint the hierarchy job saved for the node's hierarchy while it was running, or null if the last run finished
+	 * @param nodeId
+	 * @return
+	 */
+	public String getHierarchyJobCheckpoint(String nodeId);
+	
+	/**
+	 * Saves the hierarchy job's checkpoint, replacing the current one.  A null checkpoint just removes it.
+	 * @param nodeId
+	 * @param checkpoint
+	 */
+	public void saveHierarchyJobCheckpoint(String nodeId, String checkpoint);
+	
+	/**
+	 * returns the ids of the sites the hierarchy job couldn't add and needs to retry
+	 * @param nodeId
+	 * @return
+	 */
+	public Set<String> getHierarchyJobRetrySiteIds(String nodeId);
+	
+	/**
+	 * Replaces the ids of the sites the hierarchy job needs to retry
+	 * @param nodeId
+	 * @param siteIds
+	 */
+	public void saveHierarchyJobRetrySiteIds(String nodeId, Set<String> siteIds);
+	
+	/**
+	 * returns the date the shopping period job last finished without errors, or null if it hasn't
+	 * @return
+	 */
+	public Date getShoppingPeriodJobLastRunDate();
+	
+	/**
+	 * Saves the date for the last time the shopping period job ran successfully, null clears it so the
+	 * next run updates the entire tree
+	 * @param runDate
+	 */
+	public void saveShoppingPeriodJobLastRunDate(Date runDate);
+	
+	/**
+	 * Takes a cluster wide lock for a job.  The lock is a permission for the site hierarchy user on the node
+	 * (prefix + owner + expiry) and is swapped in with a single conditional update, so only one server can hold it.
+	 * A lock that is past its expiry is stale and is taken over.
+	 * 
+	 * @param nodeId
+	 * @param prefix the job's lock permission prefix
+	 * @param leaseMillis how long the lock is held for unless it is renewed
+	 * @return the lock, which is needed to renew or release it, or null if another server holds it
+	 */
+	public String acquireJobLock(String nodeId, String prefix, long leaseMillis);
+	
+	/**
+	 * Extends a lock returned by acquireJobLock
+	 * 
+	 * @param nodeId
+	 * @param prefix
+	 * @param lock
+	 * @param leaseMillis
+	 * @return the renewed lock, or null if this server doesn't hold the lock anymore
+	 */
+	public String renewJobLock(String nodeId, String prefix, String lock, long leaseMillis);
+	
+	/**
+	 * Releases a lock returned by acquireJobLock or renewJobLock
+	 * 
+	 * @param nodeId
+	 * @param prefix
+	 * @param lock
+	 */
+	public void releaseJobLock(String nodeId, String prefix, String lock);
+
+	/**
+	 * returns the id of the hierarchy that is in use.  This is DelegatedAccessConstants.HIERARCHY_ID unless the
+	 * site hierarchy job has rebuilt the hierarchy under a new id.  The id is saved on the root node of
+	 * DelegatedAccessConstants.HIERARCHY_ID and is cached for a minute.  The site hierarchy job posts a dac.hierarchy.activechanged
+	 * event when it switches, so every server reads the new id right away.
+	 *
+	 * @return
+	 */
+	public String getActiveHierarchyId();
+
+	/**
+	 * Reads the active hierarchy id from the database.  If it has changed, this server's node caches and hierarchy
+	 * snapshot are cleared since they belong to the old hierarchy.
+	 */
+	public void refreshActiveHierarchyId();
+
+	/**
+	 * Switches the active hierarchy, only if fromHierarchyId is still the active one.  The check and the update are
+	 * a single statement, so this can be called in the same transaction that moves the permissions to the new hierarchy.
+	 * The active hierarchy id has to have been saved with saveHierarchyPointer before the first switch.
+	 *
+	 * @param fromHierarchyId
+	 * @param toHierarchyId
+	 * @return true if the active hierarchy was switched
+	 */
+	public boolean swapActiveHierarchyId(String fromHierarchyId, String toHierarchyId);
+
+	/**
+	 * returns the hierarchy id saved with this prefix (DelegatedAccessConstants.NODE_PERM_*_HIERARCHY_ID) or null
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	public String getHierarchyPointer(String prefix);
+
+	/**
+	 * Saves a hierarchy id with this prefix, replacing the current one.  A null id just removes it.
+	 *
+	 * @param prefix
+	 * @param hierarchyId
+	 */
+	public void saveHierarchyPointer(String prefix, String hierarchyId);
+	
+	/**
+	 * returns the shopping period nodes that have a start or end date after "from" and on or before "to".
+	 * Nodes that are under another returned node are left out since updating a node updates everything
+	 * under it (including the nodes that inherit its dates).  Returns null if the nodes couldn't be looked up.
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public List<String> getShoppingPeriodNodesToUpdate(Date from, Date to);
+	
+	/**
+	 * Makes sure the shopping period job is scheduled to run for each node at every start and end date
+	 * that hasn't passed yet, so the site settings change when the shopping period opens or closes.
+	 */
+	public void scheduleShoppingPeriodBoundaries();
+	
+	/**
+	 * Schedules the shopping period job to run now for any of these nodes that are sites under a shopping period node.
+	 * This is for sites that were just added to the hierarchy and haven't had the shopping period settings applied yet.
+	 * @param nodeIds
+	 */
+	public void scheduleShoppingPeriodUpdate(Collection<String> nodeIds);
+	
 	/**
 	 * Removes this node an all permissions and children nodes
 	 * @param nodeId
@@ -245,6 +429,73 @@ public interface ProjectLogic {
 	 */
 	public void clearNodeCache();
 	
+	/**
+	 * Removes only these nodes and their ancestors from DelegatedAccess's node cache, on this server and
+	 * (through a dac.nodecache.invalidate event) on every other server in the cluster.  Call this with the ids of nodes
+	 * that were added, removed or had their meta data changed, and the ids of the parents they were added to.
+	 * Only one event is posted, if there are too many ids to fit in it the whole node cache is cleared instead.
+	 * 
+	 * @param nodeIds
+	 */
+	public void invalidateNodeCache(Collection<String> nodeIds);
+	
+	/**
+	 * Clears DelegatedAccess's node cache on this server and (through a dac.nodecache.invalidate event
+	 * with no node ids) on every other server in the cluster.
+	 */
+	public void invalidateEntireNodeCache();
+	
+	/**
+	 * Removes these nodes and their ancestors from this server's node cache only, along with the resolved site access of
+	 * the users with grants on their old or new ancestors.  The hierarchy snapshot stops using the nodes that moved and
+	 * is rebuilt in the background.  This is called when a dac.nodecache.invalidate event is received.
+	 * 
+	 * @param nodeIds
+	 */
+	public void evictCachedNodes(Collection<String> nodeIds);
+	
+	/**
+	 * Removes the user's resolved site access and loaded grants from this server's caches.  This is called when one of
+	 * the dac.nodeperms, dac.shoppingAdmin or dac.accessAdmin events is received, so a change made on another server
+	 * is seen here as well.
+	 * 
+	 * @param userId
+	 */
+	public void evictUserAccess(String userId);
+	
+	/**
+	 * Removes the user's parsed permissions for this node from this server's cache.  This is called along with
+	 * evictUserAccess when a permission event is received.
+	 * 
+	 * @param userId
+	 * @param nodeId
+	 */
+	public void evictNodePermissions(String userId, String nodeId);
+	
+	/**
+	 * Rebuilds the in memory copy of the hierarchy structure (used for ancestor/descendant lookups)
+	 * and swaps it in.  Changed nodes already have it rebuilt in the background, so this is only needed
+	 * when the new structure has to be used right away.
+	 */
+	public void refreshHierarchySnapshot();
+	
+	/**
+	 * Returns false only if the user is known to have no delegated access permissions.  Nothing needs to be
+	 * looked up for these users.
+	 * 
+	 * @param userId
+	 * @return
+	 */
+	public boolean isDelegatedAccessUser(String userId);
+	
+	/**
+	 * Adds the user to the list of users with delegated access on this server.  This is called when a user
+	 * is granted permissions (including on other servers in the cluster) so they aren't skipped until the list is reloaded.
+	 * 
+	 * @param userId
+	 */
+	public void addDelegatedAccessUser(String userId);
+	
 	/**
 	 * returns a map of all role options and their realm/role ids separated by a ':'.  For example:
 	 * 
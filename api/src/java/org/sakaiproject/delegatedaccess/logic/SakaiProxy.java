@@ -478,4 +478,130 @@ public interface SakaiProxy {
 	 * @return
 	 */
 	public boolean isSearchHideTerm();
+	
+	/**
+	 * How many minutes the in memory copy of the hierarchy structure is used before it's rebuilt.  The site hierarchy
+	 * job rebuilds it as soon as it finishes, so this only matters for the other servers in a cluster.
+	 * delegatedaccess.hierarchy.snapshot.ttl
+	 * 60 by default
+	 * @return
+	 */
+	public int getHierarchySnapshotTTL();
+	
+	/**
+	 * How many minutes the list of users with delegated access is used before it's reloaded.  Grants made through
+	 * Delegated Access are added right away (on every server in a cluster), so this only picks up changes made outside of it.
+	 * delegatedaccess.user.filter.ttl
+	 * 10 by default
+	 * @return
+	 */
+	public int getDelegatedAccessUserFilterTTL();
+	
+	/**
+	 * The max number of sites kept in each of the session access maps (access and denied tools), and in each user's
+	 * cached access index.  Sites with and without access are counted separately and the least recently used site
+	 * is dropped once the max is reached.
+	 * delegatedaccess.session.accessmap.max
+	 * 5000 by default
+	 * @return
+	 */
+	public int getSessionAccessMapMax();
+	
+	/**
+	 * How many children are added at a time when a node is expanded in the tree pages, 0 adds them all
+	 * delegatedaccess.tree.children.pagesize
+	 * 200 by default
+	 * @return
+	 */
+	public int getTreeChildrenPageSize();
+	
+	/**
+	 * Whether the shopping period job only updates the nodes whose start or end date has passed since
+	 * it last ran.  When false (or when the job hasn't run yet) the entire tree is updated.
+	 * delegatedaccess.shoppingperiodjob.incremental
+	 * true by default
+	 * @return
+	 */
+	public boolean isShoppingPeriodJobIncremental();
+	
+	/**
+	 * How many threads the shopping period update uses, each child of the node being updated (the top level
+	 * subtrees when the entire tree is updated) is worked out separately.  1 updates the tree on a single thread.
+	 * delegatedaccess.shoppingperiodjob.threads
+	 * 1 by default
+	 * @return
+	 */
+	public int getShoppingPeriodJobThreads();
+	
+	/**
+	 * How many threads the site hierarchy job uses to add sites to the hierarchy.  1 adds the sites one at a time.
+	 * delegatedaccess.sitehierarchyjob.threads
+	 * 1 by default
+	 * @return
+	 */
+	public int getSiteHierarchyJobThreads();
+	
+	/**
+	 * How long (in minutes) the site hierarchy job's cluster lock is held for before it is considered stale and another
+	 * server can take it over.  The running job renews it as it goes, so this only matters when a server dies mid run.
+	 * delegatedaccess.sitehierarchyjob.lock.lease
+	 * 30 by default
+	 * @return
+	 */
+	public int getSiteHierarchyJobLockLeaseMinutes();
+	
+	/**
+	 * How the site hierarchy job updates the hierarchy:
+	 * update: adds the sites modified since the last run one at a time
+	 * reconcile: reads every site, works out the changes the hierarchy needs and applies them in batches
+	 * dryrun: works out the same changes as reconcile and emails them without changing anything
+	 * rebuild: builds a new hierarchy next to the active one, moves the permissions over and then switches to it
+	 * rollback: switches back to the hierarchy that was active before the last rebuild
+	 * rebuild and rollback are meant to be run once, set the mode back to update afterwards
+	 * delegatedaccess.sitehierarchyjob.mode
+	 * update by default
+	 * @return
+	 */
+	public String getSiteHierarchyJobMode();
+	
+	/**
+	 * Whether sites that are added or updated are placed in the hierarchy right away instead of waiting for the
+	 * site hierarchy job.
+	 * delegatedaccess.sitehierarchy.events.enabled
+	 * true by default
+	 * @return
+	 */
+	public boolean isSiteHierarchyEventsEnabled();
+	
+	/**
+	 * Whether each server keeps a local index of the sites for the site search, instead of searching the site tables
+	 * every time.  The index is held in memory, so it takes roughly a few hundred bytes per site.
+	 * delegatedaccess.sitesearch.index.enabled
+	 * true by default
+	 * @return
+	 */
+	public boolean isSiteSearchIndexEnabled();
+	
+	/**
+	 * The file the site search index is saved to, so a restarted server doesn't need to rebuild it
+	 * delegatedaccess.sitesearch.index.path
+	 * {sakai.home}/delegatedaccess/sitesearch.idx by default
+	 * @return
+	 */
+	public String getSiteSearchIndexPath();
+	
+	/**
+	 * How often (in hours) the site search index is rebuilt from the site tables.  In between it is kept up to date
+	 * from site events and the site hierarchy job.
+	 * delegatedaccess.sitesearch.index.rebuild
+	 * 24 by default
+	 * @return
+	 */
+	public int getSiteSearchIndexRebuildHours();
+	
+	/**
+	 * returns this server's id in the cluster
+	 * @return
+	 */
+	public String getServerId();
 }
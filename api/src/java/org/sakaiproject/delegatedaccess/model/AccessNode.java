@@ -16,9 +16,11 @@
 
 package org.sakaiproject.delegatedaccess.model;
 
+import java.io.Serializable;
 import java.util.Date;
 
-public class AccessNode {
+public class AccessNode implements Serializable {
+	private static final long serialVersionUID = 1L;
 	private String userId;
 	private String siteRef;
 	private String[] access;
@@ -54,6 +54,11 @@ public class NodeModel implements Serializable {
 	private Date shoppingPeriodEndDate = new Date();
 	private Date shoppingPeriodEndDateOrig = new Date();
 	private boolean addedDirectChildrenFlag = false;	
+	//how many of the (ordered) direct children have been added so far and how many there are, children are added a page at a time
+	private int childrenLoaded = 0;
+	private int childrenCount = 0;
+	//a placeholder child that loads the next page of its parent's children
+	private boolean loadMoreNode = false;
 	private boolean shoppingPeriodAdmin = false;
 	private boolean shoppingPeriodAdminOrig = false;
 	private String siteInstructors;
@@ -180,6 +185,10 @@ public class NodeModel implements Serializable {
 	}
 
 	public boolean isModified(){
+		if(loadMoreNode){
+			//placeholder, there is nothing to save
+			return false;
+		}
 		if(directAccessOrig != directAccess){
 			return true;
 		}
@@ -628,6 +637,38 @@ public class NodeModel implements Serializable {
 		return addedDirectChildrenFlag;
 	}
 
+	public int getChildrenLoaded() {
+		return childrenLoaded;
+	}
+
+	public void setChildrenLoaded(int childrenLoaded) {
+		this.childrenLoaded = childrenLoaded;
+	}
+
+	public int getChildrenCount() {
+		return childrenCount;
+	}
+
+	public void setChildrenCount(int childrenCount) {
+		this.childrenCount = childrenCount;
+	}
+
+	/**
+	 * returns true if only some of the direct children have been added
+	 * @return
+	 */
+	public boolean hasMoreChildren(){
+		return childrenLoaded < childrenCount;
+	}
+
+	public boolean isLoadMoreNode() {
+		return loadMoreNode;
+	}
+
+	public void setLoadMoreNode(boolean loadMoreNode) {
+		this.loadMoreNode = loadMoreNode;
+	}
+
 	public void setAddedDirectChildrenFlag(boolean addedDirectChildrenFlag) {
 		this.addedDirectChildrenFlag = addedDirectChildrenFlag;
 	}
@@ -761,6 +802,9 @@ public class NodeModel implements Serializable {
 	}
 	
 	public boolean isNodeEditable(){
+		if(loadMoreNode){
+			return false;
+		}
 		if(isEditable()){
 			return true;
 		}else{
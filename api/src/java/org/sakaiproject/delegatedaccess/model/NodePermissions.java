@@ -0,0 +1,281 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.model;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
+
+/**
+ * The delegated access permissions a user has on a single node.  The hierarchy service stores these
+ * as a set of encoded strings (see DelegatedAccessConstants.NODE_PERM_*), this parses that set once
+ * so the values can be read without scanning the set over and over again.
+ *
+ * Only the permissions set directly on the node are included, nothing is inherited.
+ *
+ * This object is immutable.
+ */
+public final class NodePermissions implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Flag {
+		DIRECT_ACCESS,
+		SHOPPING_ADMIN,
+		ACCESS_ADMIN,
+		SHOPPING_REVOKE_INSTRUCTOR_EDITABLE,
+		SHOPPING_REVOKE_INSTRUCTOR_PUBLIC_OPT,
+		ALLOW_BECOME_USER,
+		INSTRUCTOR_EDITED
+	}
+
+	private static final long NO_DATE = Long.MIN_VALUE;
+	private static final String[] NO_TOOLS = new String[0];
+
+	public static final NodePermissions EMPTY = new NodePermissions(EnumSet.noneOf(Flag.class), "", "", NO_TOOLS, NO_TOOLS,
+			NO_DATE, NO_DATE, NO_DATE, null, NO_DATE, null);
+
+	private final EnumSet<Flag> flags;
+	private final String realm;
+	private final String role;
+	private final String[] deniedAuthTools;
+	private final String[] deniedPublicTools;
+	private final Set<String> deniedAuthToolSet;
+	private final Set<String> deniedPublicToolSet;
+	private final long shoppingStartDate;
+	private final long shoppingEndDate;
+	private final long modified;
+	private final String modifiedBy;
+	private final long shoppingAdminModified;
+	private final String shoppingAdminModifiedBy;
+
+	private NodePermissions(EnumSet<Flag> flags, String realm, String role, String[] deniedAuthTools, String[] deniedPublicTools,
+			long shoppingStartDate, long shoppingEndDate, long modified, String modifiedBy, long shoppingAdminModified, String shoppingAdminModifiedBy){
+		this.flags = flags;
+		this.realm = realm;
+		this.role = role;
+		this.deniedAuthTools = deniedAuthTools;
+		this.deniedPublicTools = deniedPublicTools;
+		this.deniedAuthToolSet = toSet(deniedAuthTools);
+		this.deniedPublicToolSet = toSet(deniedPublicTools);
+		this.shoppingStartDate = shoppingStartDate;
+		this.shoppingEndDate = shoppingEndDate;
+		this.modified = modified;
+		this.modifiedBy = modifiedBy;
+		this.shoppingAdminModified = shoppingAdminModified;
+		this.shoppingAdminModifiedBy = shoppingAdminModifiedBy;
+	}
+
+	/**
+	 * Parses the raw hierarchy permission strings for a node.  Unknown permissions are ignored and
+	 * dates in the wrong format are treated as not set.
+	 *
+	 * @param perms
+	 * @return
+	 */
+	public static NodePermissions parse(Set<String> perms){
+		if(perms == null || perms.isEmpty()){
+			return EMPTY;
+		}
+		EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+		String realm = "";
+		String role = "";
+		Set<String> deniedAuthTools = null;
+		Set<String> deniedPublicTools = null;
+		long shoppingStartDate = NO_DATE;
+		long shoppingEndDate = NO_DATE;
+		long modified = NO_DATE;
+		String modifiedBy = null;
+		long shoppingAdminModified = NO_DATE;
+		String shoppingAdminModifiedBy = null;
+		for(String perm : perms){
+			if(perm.equals(DelegatedAccessConstants.NODE_PERM_SITE_VISIT)){
+				flags.add(Flag.DIRECT_ACCESS);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_REALM_PREFIX)){
+				realm = perm.substring(DelegatedAccessConstants.NODE_PERM_REALM_PREFIX.length());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_ROLE_PREFIX)){
+				role = perm.substring(DelegatedAccessConstants.NODE_PERM_ROLE_PREFIX.length());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_DENY_TOOL_PREFIX)){
+				if(deniedAuthTools == null){
+					deniedAuthTools = new LinkedHashSet<String>();
+				}
+				//tool ids are repeated across every node and user, so share the instances
+				deniedAuthTools.add(perm.substring(DelegatedAccessConstants.NODE_PERM_DENY_TOOL_PREFIX.length()).intern());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_DENY_TOOL2_PREFIX)){
+				if(deniedPublicTools == null){
+					deniedPublicTools = new LinkedHashSet<String>();
+				}
+				deniedPublicTools.add(perm.substring(DelegatedAccessConstants.NODE_PERM_DENY_TOOL2_PREFIX.length()).intern());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_MODIFIED_BY)){
+				modifiedBy = perm.substring(DelegatedAccessConstants.NODE_PERM_MODIFIED_BY.length());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_MODIFIED)){
+				modified = parseDate(perm, DelegatedAccessConstants.NODE_PERM_MODIFIED, modified);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_START_DATE)){
+				shoppingStartDate = parseDate(perm, DelegatedAccessConstants.NODE_PERM_SHOPPING_START_DATE, shoppingStartDate);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_END_DATE)){
+				shoppingEndDate = parseDate(perm, DelegatedAccessConstants.NODE_PERM_SHOPPING_END_DATE, shoppingEndDate);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED_BY)){
+				shoppingAdminModifiedBy = perm.substring(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED_BY.length());
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED)){
+				shoppingAdminModified = parseDate(perm, DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED, shoppingAdminModified);
+			}else if(perm.equals(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN)){
+				flags.add(Flag.SHOPPING_ADMIN);
+			}else if(perm.equals(DelegatedAccessConstants.NODE_PERM_ACCESS_ADMIN)){
+				flags.add(Flag.ACCESS_ADMIN);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_REVOKE_INSTRUCTOR_EDITABLE)){
+				flags.add(Flag.SHOPPING_REVOKE_INSTRUCTOR_EDITABLE);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_REVOKE_INSTRUCTOR_PUBLIC_OPT)){
+				flags.add(Flag.SHOPPING_REVOKE_INSTRUCTOR_PUBLIC_OPT);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_ALLOW_BECOME_USER)){
+				flags.add(Flag.ALLOW_BECOME_USER);
+			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_INSTRUCTOR_EDITED)){
+				flags.add(Flag.INSTRUCTOR_EDITED);
+			}
+		}
+		return new NodePermissions(flags, realm, role, toArray(deniedAuthTools), toArray(deniedPublicTools),
+				shoppingStartDate, shoppingEndDate, modified, modifiedBy, shoppingAdminModified, shoppingAdminModifiedBy);
+	}
+
+	private static long parseDate(String perm, String prefix, long current){
+		try{
+			return Long.parseLong(perm.substring(prefix.length()));
+		}catch (Exception e) {
+			//wrong format, ignore
+			return current;
+		}
+	}
+
+	private static String[] toArray(Set<String> tools){
+		if(tools == null || tools.isEmpty()){
+			return NO_TOOLS;
+		}
+		return tools.toArray(new String[tools.size()]);
+	}
+
+	private static Set<String> toSet(String[] tools){
+		if(tools.length == 0){
+			return Collections.emptySet();
+		}
+		Set<String> set = new LinkedHashSet<String>(tools.length * 2);
+		Collections.addAll(set, tools);
+		return Collections.unmodifiableSet(set);
+	}
+
+	private static Date toDate(long time){
+		return time == NO_DATE ? null : new Date(time);
+	}
+
+	public boolean hasFlag(Flag flag){
+		return flags.contains(flag);
+	}
+
+	public boolean isDirectAccess(){
+		return flags.contains(Flag.DIRECT_ACCESS);
+	}
+
+	public boolean isShoppingPeriodAdmin(){
+		return flags.contains(Flag.SHOPPING_ADMIN);
+	}
+
+	public boolean isAccessAdmin(){
+		return flags.contains(Flag.ACCESS_ADMIN);
+	}
+
+	public boolean isShoppingPeriodRevokeInstructorEditable(){
+		return flags.contains(Flag.SHOPPING_REVOKE_INSTRUCTOR_EDITABLE);
+	}
+
+	public boolean isShoppingPeriodRevokeInstructorPublicOpt(){
+		return flags.contains(Flag.SHOPPING_REVOKE_INSTRUCTOR_PUBLIC_OPT);
+	}
+
+	public boolean isAllowBecomeUser(){
+		return flags.contains(Flag.ALLOW_BECOME_USER);
+	}
+
+	public boolean isInstructorEdited(){
+		return flags.contains(Flag.INSTRUCTOR_EDITED);
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	/**
+	 * returns {realm, role}, "" is used for any value that isn't set
+	 * @return
+	 */
+	public String[] getAccess(){
+		return new String[]{realm, role};
+	}
+
+	/**
+	 * returns a copy of the denied auth tool ids
+	 * @return
+	 */
+	public String[] getDeniedAuthTools(){
+		return deniedAuthTools.clone();
+	}
+
+	/**
+	 * returns a copy of the denied public tool ids
+	 * @return
+	 */
+	public String[] getDeniedPublicTools(){
+		return deniedPublicTools.clone();
+	}
+
+	public Set<String> getDeniedAuthToolSet(){
+		return deniedAuthToolSet;
+	}
+
+	public Set<String> getDeniedPublicToolSet(){
+		return deniedPublicToolSet;
+	}
+
+	public Date getShoppingStartDate(){
+		return toDate(shoppingStartDate);
+	}
+
+	public Date getShoppingEndDate(){
+		return toDate(shoppingEndDate);
+	}
+
+	public Date getModified(){
+		return toDate(modified);
+	}
+
+	public String getModifiedBy() {
+		return modifiedBy;
+	}
+
+	public Date getShoppingAdminModified(){
+		return toDate(shoppingAdminModified);
+	}
+
+	public String getShoppingAdminModifiedBy() {
+		return shoppingAdminModifiedBy;
+	}
+}
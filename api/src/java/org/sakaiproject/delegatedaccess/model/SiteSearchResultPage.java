@@ -0,0 +1,74 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of site search results, along with where it starts and how many results the search found in total
+ *
+ */
+public class SiteSearchResultPage implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private List<SiteSearchResult> results;
+	private int offset;
+	private int totalCount;
+
+	public SiteSearchResultPage(List<SiteSearchResult> results, int offset, int totalCount){
+		this.results = results;
+		this.offset = offset;
+		this.totalCount = totalCount;
+	}
+
+	public List<SiteSearchResult> getResults() {
+		return results;
+	}
+
+	public void setResults(List<SiteSearchResult> results) {
+		this.results = results;
+	}
+
+	/**
+	 * the position of the first result of this page in the sorted search results
+	 * @return
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	public void setTotalCount(int totalCount) {
+		this.totalCount = totalCount;
+	}
+
+	/**
+	 * the site id of the last result on this page, pass this in as afterSiteId to get the next page
+	 * @return
+	 */
+	public String getLastSiteId(){
+		return results == null || results.isEmpty() ? null : results.get(results.size() - 1).getSiteId();
+	}
+}
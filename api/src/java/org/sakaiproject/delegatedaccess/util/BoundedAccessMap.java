@@ -0,0 +1,339 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The siteRef -> String[] map stored in the session for the access and denied tools maps.  The kernel reads these
+ * as a plain Map, so this behaves like one (null values are allowed and mean "no access"), but it only holds
+ * the most recently used maxEntries sites with access and maxEntries sites without access.  The least recently
+ * used site is dropped once the limit is reached, and will just be looked up again if it's needed.
+ *
+ * The access map and its two denied tools maps (see getLinkedMap) share one store keyed by site, so a site is
+ * always kept or dropped from all three together and a site with access never loses its denied tools.
+ *
+ * Sites without access are kept in their own list, so a large site search doesn't push out the sites the user
+ * actually has access to.
+ *
+ * All methods are synchronized on the shared store.
+ */
+public class BoundedAccessMap extends AbstractMap<String, String[]> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int ACCESS = 0;
+	public static final int DENIED_AUTH_TOOLS = 1;
+	public static final int DENIED_PUBLIC_TOOLS = 2;
+	private static final int MAP_COUNT = 3;
+
+	private final Store store;
+	private final int mapType;
+
+	/**
+	 * Creates a new access map, use getLinkedMap for its denied tools maps
+	 * @param maxEntries the max number of sites kept with access, and separately without access
+	 */
+	public BoundedAccessMap(int maxEntries){
+		this.store = new Store(maxEntries < 1 ? 1 : maxEntries);
+		this.mapType = ACCESS;
+		store.maps[ACCESS] = this;
+	}
+
+	private BoundedAccessMap(Store store, int mapType){
+		this.store = store;
+		this.mapType = mapType;
+	}
+
+	/**
+	 * returns the map of this type that shares this map's sites
+	 * @param mapType ACCESS, DENIED_AUTH_TOOLS or DENIED_PUBLIC_TOOLS
+	 * @return
+	 */
+	public BoundedAccessMap getLinkedMap(int mapType){
+		synchronized (store) {
+			if(store.maps[mapType] == null){
+				store.maps[mapType] = new BoundedAccessMap(store, mapType);
+			}
+			return store.maps[mapType];
+		}
+	}
+
+	/**
+	 * returns true if this map and the other one share their sites
+	 * @param map
+	 * @return
+	 */
+	public boolean isLinkedTo(BoundedAccessMap map){
+		return map != null && map.store == store;
+	}
+
+	/**
+	 * A site's values in each of the linked maps
+	 */
+	private static class SiteEntry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String[][] values = new String[MAP_COUNT][];
+		private final boolean[] present = new boolean[MAP_COUNT];
+
+		private boolean hasAccess(){
+			for(String[] value : values){
+				if(value != null){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isEmpty(){
+			for(boolean p : present){
+				if(p){
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The sites of the linked maps
+	 */
+	private static class Store implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+		private final LruMap entries;
+		private final LruMap noAccess;
+		private final BoundedAccessMap[] maps = new BoundedAccessMap[MAP_COUNT];
+		//number of sites in each map
+		private final int[] sizes = new int[MAP_COUNT];
+		private long evictionCount = 0;
+
+		private Store(int maxEntries){
+			this.maxEntries = maxEntries;
+			this.entries = new LruMap(this);
+			this.noAccess = new LruMap(this);
+		}
+
+		/**
+		 * returns the site's entry and marks it as recently used, or null
+		 * @param key
+		 * @return
+		 */
+		private SiteEntry get(Object key){
+			SiteEntry entry = entries.get(key);
+			return entry != null ? entry : noAccess.get(key);
+		}
+
+		private SiteEntry remove(Object key){
+			SiteEntry entry = entries.remove(key);
+			return entry != null ? entry : noAccess.remove(key);
+		}
+
+		/**
+		 * adds the entry to the list that matches its access, unless it isn't in any map anymore
+		 * @param key
+		 * @param entry
+		 */
+		private void add(String key, SiteEntry entry){
+			if(entry.isEmpty()){
+				return;
+			}
+			if(entry.hasAccess()){
+				entries.put(key, entry);
+			}else{
+				noAccess.put(key, entry);
+			}
+		}
+
+		private void removed(SiteEntry entry){
+			for(int i = 0; i < MAP_COUNT; i++){
+				if(entry.present[i]){
+					sizes[i]--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Access ordered so the eldest entry is the least recently used one.  A dropped site is dropped from every linked map.
+	 */
+	private static class LruMap extends LinkedHashMap<String, SiteEntry> {
+		private static final long serialVersionUID = 1L;
+
+		private final Store store;
+
+		LruMap(Store store){
+			super(16, 0.75f, true);
+			this.store = store;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SiteEntry> eldest) {
+			if(size() > store.maxEntries){
+				store.evictionCount++;
+				store.removed(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public String[] get(Object key) {
+		synchronized (store) {
+			SiteEntry entry = store.get(key);
+			return entry == null ? null : entry.values[mapType];
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		synchronized (store) {
+			SiteEntry entry = store.get(key);
+			return entry != null && entry.present[mapType];
+		}
+	}
+
+	@Override
+	public String[] put(String key, String[] value) {
+		synchronized (store) {
+			SiteEntry entry = store.remove(key);
+			if(entry == null){
+				entry = new SiteEntry();
+			}
+			String[] previous = entry.values[mapType];
+			if(!entry.present[mapType]){
+				entry.present[mapType] = true;
+				store.sizes[mapType]++;
+			}
+			entry.values[mapType] = value;
+			store.add(key, entry);
+			return previous;
+		}
+	}
+
+	@Override
+	public String[] remove(Object key) {
+		synchronized (store) {
+			SiteEntry entry = store.remove(key);
+			if(entry == null){
+				return null;
+			}
+			String[] previous = entry.values[mapType];
+			if(entry.present[mapType]){
+				entry.present[mapType] = false;
+				entry.values[mapType] = null;
+				store.sizes[mapType]--;
+			}
+			store.add((String) key, entry);
+			return previous;
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (store) {
+			//a site may not have access anymore once this map's value is gone, so every site is added back
+			Map<String, SiteEntry> sites = new LinkedHashMap<String, SiteEntry>(store.noAccess);
+			sites.putAll(store.entries);
+			store.entries.clear();
+			store.noAccess.clear();
+			for(Map.Entry<String, SiteEntry> site : sites.entrySet()){
+				SiteEntry entry = site.getValue();
+				if(entry.present[mapType]){
+					entry.present[mapType] = false;
+					entry.values[mapType] = null;
+					store.sizes[mapType]--;
+				}
+				store.add(site.getKey(), entry);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (store) {
+			return store.sizes[mapType];
+		}
+	}
+
+	/**
+	 * returns a copy of the entries, sites without access have a null value
+	 */
+	@Override
+	public Set<Map.Entry<String, String[]>> entrySet() {
+		synchronized (store) {
+			Set<Map.Entry<String, String[]>> returnSet = new LinkedHashSet<Map.Entry<String, String[]>>();
+			for(LruMap sites : new LruMap[]{store.entries, store.noAccess}){
+				for(Map.Entry<String, SiteEntry> entry : sites.entrySet()){
+					if(entry.getValue().present[mapType]){
+						returnSet.add(new SimpleImmutableEntry<String, String[]>(entry.getKey(), entry.getValue().values[mapType]));
+					}
+				}
+			}
+			return Collections.unmodifiableSet(returnSet);
+		}
+	}
+
+	public int getMaxEntries() {
+		return store.maxEntries;
+	}
+
+	/**
+	 * returns the number of sites with access in any of the linked maps
+	 * @return
+	 */
+	public int getAccessCount(){
+		synchronized (store) {
+			return store.entries.size();
+		}
+	}
+
+	/**
+	 * returns the number of sites without access in all of the linked maps
+	 * @return
+	 */
+	public int getNoAccessCount(){
+		synchronized (store) {
+			return store.noAccess.size();
+		}
+	}
+
+	/**
+	 * returns how many sites have been dropped because the map was full
+	 * @return
+	 */
+	public long getEvictionCount() {
+		synchronized (store) {
+			return store.evictionCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (store) {
+			return "BoundedAccessMap[access=" + store.entries.size() + ", noAccess=" + store.noAccess.size() + ", max=" + store.maxEntries + ", evictions=" + store.evictionCount + "]";
+		}
+	}
+}
@@ -82,10 +82,13 @@ public class DelegatedAccessConstants {
 	public static final String EVENT_DELETE_USER_PERMS = "dac.nodeperms.delete";
 	public static final String EVENT_MODIFIED_USER_PERMS = "dac.nodeperms.modified";
 	public static final String EVENT_CHECK_ACCESS = "dac.checkaccess";
+	public static final String EVENT_NODE_CACHE_INVALIDATE = "dac.nodecache.invalidate";
 	public static final String EVENT_ADD_USER_SHOPPING_ADMIN = "dac.shoppingAdmin.add";
 	public static final String EVENT_DELETE_USER_SHOPPING_ADMIN = "dac.shoppingAdmin.delete";
 	public static final String EVENT_ADD_USER_ACCESS_ADMIN = "dac.accessAdmin.add";
 	public static final String EVENT_DELETE_USER_ACCESS_ADMIN = "dac.accessAdmin.delete";
+	public static final String EVENT_ACTIVE_HIERARCHY_CHANGED = "dac.hierarchy.activechanged";
+	public static final String EVENT_SITE_SEARCH_INDEX_CATCH_UP = "dac.sitesearch.catchup";
 	public static final String SESSION_ATTRIBUTE_ACCESS_MAP = "delegatedaccess.accessmap";
 	public static final String SESSION_ATTRIBUTE_DELEGATED_ACCESS_FLAG = "delegatedaccess.accessmapflag";
 	public static final String SESSION_ATTRIBUTE_DENIED_TOOLS = "delegatedaccess.deniedToolsMap";
@@ -135,4 +138,29 @@ public class DelegatedAccessConstants {
 	public static final String PROPERTIES_SUBADMIN_REALM_ROLE_ORDER = "delegatedaccess.subadmin.realmrole.order";
 	public static final String PROPERTIES_ENABLE_ACTIVE_SITE_FLAG = "delegatedaccess.enable.active.site.flag";
 	public static final String NODE_PERM_MYWORKSPACE_JOB_STATUS = "wsjstatus:";
+	public static final String PROPERTIES_HIERARCHY_SNAPSHOT_TTL = "delegatedaccess.hierarchy.snapshot.ttl";
+	public static final String PROPERTIES_USER_FILTER_TTL = "delegatedaccess.user.filter.ttl";
+	public static final String PROPERTIES_SESSION_ACCESS_MAP_MAX = "delegatedaccess.session.accessmap.max";
+	public static final String PROPERTIES_TREE_CHILDREN_PAGE_SIZE = "delegatedaccess.tree.children.pagesize";
+	public static final String NODE_PERM_SHOPPING_JOB_LAST_RUN_DATE = "shoppingJobLastRunDate:";
+	public static final String PROPERTIES_SHOPPING_JOB_INCREMENTAL = "delegatedaccess.shoppingperiodjob.incremental";
+	public static final String PROPERTIES_SHOPPING_JOB_THREADS = "delegatedaccess.shoppingperiodjob.threads";
+	public static final String NODE_PERM_SITE_HIERARCHY_JOB_LOCK = "siteHierarchyJobLock:";
+	public static final String PROPERTIES_SITE_HIERARCHY_JOB_THREADS = "delegatedaccess.sitehierarchyjob.threads";
+	public static final String PROPERTIES_SITE_HIERARCHY_JOB_LOCK_LEASE = "delegatedaccess.sitehierarchyjob.lock.lease";
+	public static final String PROPERTIES_SITE_HIERARCHY_JOB_MODE = "delegatedaccess.sitehierarchyjob.mode";
+	public static final String SITE_HIERARCHY_JOB_MODE_UPDATE = "update";
+	public static final String SITE_HIERARCHY_JOB_MODE_RECONCILE = "reconcile";
+	public static final String SITE_HIERARCHY_JOB_MODE_DRY_RUN = "dryrun";
+	public static final String PROPERTIES_SITE_HIERARCHY_EVENTS_ENABLED = "delegatedaccess.sitehierarchy.events.enabled";
+	public static final String SITE_HIERARCHY_JOB_MODE_REBUILD = "rebuild";
+	public static final String SITE_HIERARCHY_JOB_MODE_ROLLBACK = "rollback";
+	public static final String NODE_PERM_ACTIVE_HIERARCHY_ID = "activeHierarchyId:";
+	public static final String NODE_PERM_PREVIOUS_HIERARCHY_ID = "previousHierarchyId:";
+	public static final String NODE_PERM_STAGING_HIERARCHY_ID = "stagingHierarchyId:";
+	public static final String NODE_PERM_SITE_HIERARCHY_JOB_CHECKPOINT = "siteHierarchyJobCheckpoint:";
+	public static final String NODE_PERM_SITE_HIERARCHY_JOB_RETRY = "siteHierarchyJobRetry:";
+	public static final String PROPERTIES_SITE_SEARCH_INDEX_ENABLED = "delegatedaccess.sitesearch.index.enabled";
+	public static final String PROPERTIES_SITE_SEARCH_INDEX_PATH = "delegatedaccess.sitesearch.index.path";
+	public static final String PROPERTIES_SITE_SEARCH_INDEX_REBUILD = "delegatedaccess.sitesearch.index.rebuild";
 }
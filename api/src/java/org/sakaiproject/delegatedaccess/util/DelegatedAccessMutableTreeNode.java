@@ -32,6 +32,9 @@ public class DelegatedAccessMutableTreeNode extends DefaultMutableTreeNode{
 
 	@Override
 	public boolean isLeaf() {
+		if(((NodeModel) this.getUserObject()).isLoadMoreNode()){
+			return true;
+		}
 		return ((NodeModel) this.getUserObject()).getNode().childNodeIds.isEmpty() && ((NodeModel) this.getUserObject()).getNode().title.startsWith("/site/");
 	}
 }
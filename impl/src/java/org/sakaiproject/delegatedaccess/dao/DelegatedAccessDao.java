@@ -16,6 +16,7 @@
 
 package org.sakaiproject.delegatedaccess.dao;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,6 +42,42 @@ public interface DelegatedAccessDao {
 	
 	public List<String> getEmptyNonSiteNodes(String hierarchyId);
 	
+	/**
+	 * returns a list of {nodeId, directParentIds, title, description} for every enabled node in the hierarchy.
+	 * directParentIds is in the hierarchy service's encoded format (":id1:id2:")
+	 * 
+	 * @param hierarchyId
+	 * @return
+	 */
+	public List<String[]> getHierarchyNodes(String hierarchyId);
+
+	/**
+	 * Called once for every site returned by streamSites
+	 */
+	public interface SiteHandler {
+		/**
+		 * @param siteId
+		 * @param title
+		 * @param properties the requested properties that the site has, propertyName -> value
+		 */
+		public void processSite(String siteId, String title, Map<String, String> properties);
+	}
+
+	/**
+	 * Streams the id, title and the requested properties of every non user, non special site that isn't softly deleted to the handler.  Only
+	 * these columns are read and the rows are fetched in blocks from an open cursor, so no Site objects or lists of
+	 * sites are built.  The handler is called while the cursor is still open.  The created and modified dates aren't
+	 * returned, the only thing the job used them for was skipping sites older than modifiedSince, which the query does.
+	 *
+	 * @param propertyNames the properties to return for each site, must not be empty
+	 * @param requiredProperty if not null, only sites that have this property are returned
+	 * @param modifiedSince if not null, only sites modified on or after this date (or created, if they have never been modified) are returned
+	 * @param afterSiteId if not null, only sites with an id after this one are returned.  The sites are streamed in site id order, so this resumes a stream after the last site that was processed.
+	 * @param handler
+	 * @return false if the query failed
+	 */
+	public boolean streamSites(String[] propertyNames, String requiredProperty, Date modifiedSince, String afterSiteId, SiteHandler handler);
+	
 	/**
 	 * returns a list of {siteId, title} for sites returned in search
 	 * if you search for instructorsIds as well, then the results will be {siteId, title, userId}
@@ -62,6 +99,21 @@ public interface DelegatedAccessDao {
 	 */
 	public Map<String, Map<String, String>> searchSitesForProp(String[] props, String[] siteIds);
 	
+	/**
+	 * returns a map of {siteId -> {userId, userId...}} of the instructors (members with site.upd) of these sites,
+	 * sites without instructors won't show up in the map
+	 * @param siteIds
+	 * @return null if the query failed
+	 */
+	public Map<String, Set<String>> getSiteInstructors(String[] siteIds);
+	
+	/**
+	 * returns the ids of the sites that are published
+	 * @param siteIds
+	 * @return null if the query failed
+	 */
+	public Set<String> getPublishedSiteIds(String[] siteIds);
+	
 	/**
 	 * When a node is deleted or a hierarchy is destroyed, HierarchyService just orphans the permissions table data
 	 * instead of deleting it.  This is an issue in Shopping Period job since it destroys the Shopping Period
@@ -79,6 +131,45 @@ public interface DelegatedAccessDao {
 	 */
 	public Map<String, Set<String>> getNodesAndPermsForUser(String userId, String[] nodeIds);
 	
+	/**
+	 * returns a map of {nodeId -> {permission, permission...}) for every node the user has permissions on
+	 * 
+	 * @param userId
+	 * @return
+	 */
+	public Map<String, Set<String>> getAllNodesAndPermsForUser(String userId);
+	
+	/**
+	 * returns a map of {context -> {invocation time in seconds, ...}} for every delayed invocation of this component,
+	 * so the scheduled invocations don't have to be looked up one context at a time
+	 * 
+	 * @param componentId
+	 * @return null if the lookup failed
+	 */
+	public Map<String, Set<Long>> getDelayedInvocationTimes(String componentId);
+	
+	/**
+	 * Replaces the user's permission on the node only if it is still oldPermission.  The check and the update
+	 * are a single statement, so when several servers try to replace the same value only one of them succeeds.
+	 * 
+	 * @param userId
+	 * @param nodeId
+	 * @param oldPermission
+	 * @param newPermission
+	 * @return true if the permission was replaced
+	 */
+	public boolean replaceNodePermission(String userId, String nodeId, String oldPermission, String newPermission);
+	
+	/**
+	 * Moves every permission on the old nodes to the new nodes, except the ones for skipUserId.  This is
+	 * used to move the permissions to a rebuilt hierarchy, so it should be called in a transaction.
+	 * 
+	 * @param nodeIds oldNodeId -> newNodeId
+	 * @param skipUserId
+	 * @return false if the update failed
+	 */
+	public boolean moveNodePermissions(Map<String, String> nodeIds, String skipUserId);
+	
 	/**
 	 * Returns a subset of sites that are active.  This requires an external feature that populates a
 	 * tables named CMS_ACTIVATED
@@ -106,6 +197,16 @@ public interface DelegatedAccessDao {
 	 */
 	public void copyRole(String fromRealm, String fromRole, String[] toRealm, String toRole);
 	
+	/**
+	 * Sets the .auth and .anon roles of each realm to a copy of another realm's role, or removes them.  The current
+	 * .auth and .anon functions are read for all of the realms first and only the rows that are different are written,
+	 * so realms that haven't changed aren't touched.  The realms are written 1000 at a time, each chunk in its own transaction.
+	 * 
+	 * @param realmRoles realmId -> ".auth" or ".anon" -> {fromRealm, fromRole}. A role missing from a realm's map is removed.
+	 * @return the realms that weren't updated because their chunk failed and was rolled back
+	 */
+	public List<String> updateAnonAndAuthRoles(Map<String, Map<String, String[]>> realmRoles);
+	
 	/**
 	 * returns a list of user ids for users who have at least one of the following permissions in any node:
 	 * site.visit, accessAdmin, or shoppingAdmin
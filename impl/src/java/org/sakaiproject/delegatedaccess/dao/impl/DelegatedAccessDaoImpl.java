@@ -17,10 +17,14 @@
 package org.sakaiproject.delegatedaccess.dao.impl;
 
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +33,8 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import lombok.Setter;
+
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.configuration.reloading.InvariantReloadingStrategy;
@@ -37,15 +43,29 @@ import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.delegatedaccess.dao.DelegatedAccessDao;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedAccessDao {
 
 	private static final Logger log = Logger.getLogger(DelegatedAccessDaoImpl.class);
 	private PropertiesConfiguration statements;
 	private static int ORACLE_IN_CLAUSE_SIZE_LIMIT = 1000;
+	//rows fetched per round trip when streaming sites
+	private static final int SITE_STREAM_FETCH_SIZE = 1000;
 	private boolean oracle = false;
+	private boolean mysql = false;
+	//each chunk of .auth/.anon role updates is written in its own transaction when this is set
+	@Setter
+	private PlatformTransactionManager transactionManager;
+
 	/**
 	 * init
 	 */
@@ -61,6 +81,9 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 		if(vendor != null && "oracle".equals(vendor)){
 			oracle = true;
 		}
+		if(vendor != null && "mysql".equals(vendor)){
+			mysql = true;
+		}
 	}
 	
 	/**
@@ -194,6 +217,99 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 		}
 	}
 	
+	public List<String[]> getHierarchyNodes(String hierarchyId){
+		try{
+			return (List<String[]>) getJdbcTemplate().query(getStatement("select.hierarchyNodes"), new Object[]{hierarchyId}, new RowMapper() {
+				
+				 public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+					return new String[]{resultSet.getString("ID"), resultSet.getString("directParentIds"), resultSet.getString("title"), resultSet.getString("description")};
+				}
+			});
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return null;
+		}
+	}
+
+	public boolean streamSites(String[] propertyNames, String requiredProperty, Date modifiedSince, String afterSiteId, SiteHandler handler){
+		try{
+			StringBuilder query = new StringBuilder(getInQuery("select.siteProjection", propertyNames.length));
+			final List<Object> parameters = new ArrayList<Object>(Arrays.asList(propertyNames));
+			if(requiredProperty != null){
+				query.append(" ").append(getStatement("select.siteProjectionPropWhere"));
+				parameters.add(requiredProperty);
+			}
+			if(modifiedSince != null){
+				Timestamp modifiedSinceTimestamp = new Timestamp(modifiedSince.getTime());
+				query.append(" ").append(getStatement("select.siteProjectionModifiedWhere"));
+				parameters.add(modifiedSinceTimestamp);
+				parameters.add(modifiedSinceTimestamp);
+			}
+			if(afterSiteId != null){
+				query.append(" ").append(getStatement("select.siteProjectionAfterWhere"));
+				parameters.add(afterSiteId);
+			}
+			//rows are ordered by site so all of a site's properties are next to each other
+			query.append(" ").append(getStatement("select.siteProjectionOrder"));
+			final String sql = query.toString();
+			SiteRowCallbackHandler rowHandler = new SiteRowCallbackHandler(handler);
+			getJdbcTemplate().query(new PreparedStatementCreator() {
+				public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					//MySQL only streams the results instead of loading them all into memory when the fetch size is Integer.MIN_VALUE
+					ps.setFetchSize(mysql ? Integer.MIN_VALUE : SITE_STREAM_FETCH_SIZE);
+					for(int i = 0; i < parameters.size(); i++){
+						ps.setObject(i + 1, parameters.get(i));
+					}
+					return ps;
+				}
+			}, rowHandler);
+			rowHandler.finish();
+			return true;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Groups the {siteId, title, propertyName, value} rows of the site projection by site and passes each site to the handler
+	 */
+	private class SiteRowCallbackHandler implements RowCallbackHandler {
+		private final SiteHandler handler;
+		private String siteId;
+		private String title;
+		private Map<String, String> properties;
+
+		public SiteRowCallbackHandler(SiteHandler handler){
+			this.handler = handler;
+		}
+
+		public void processRow(ResultSet resultSet) throws SQLException {
+			String rowSiteId = resultSet.getString("SITE_ID");
+			if(!rowSiteId.equals(siteId)){
+				finish();
+				siteId = rowSiteId;
+				title = resultSet.getString("TITLE");
+				properties = new HashMap<String, String>();
+			}
+			String name = resultSet.getString("NAME");
+			if(name != null){
+				properties.put(name, resultSet.getString("VALUE"));
+			}
+		}
+
+		/**
+		 * passes the last site read to the handler
+		 */
+		public void finish(){
+			if(siteId != null){
+				handler.processSite(siteId, title, properties);
+				siteId = null;
+			}
+		}
+	}
+
 //	public void addSiteProperty(String siteId, String propertyName, String propertyValue){
 //		try {
 //			getJdbcTemplate().update(getStatement("insert.siteProperty"),
@@ -209,31 +325,21 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 			if(siteIds == null || siteIds.length == 0){
 				return;
 			}
+			//one parameterized upsert per site, sent in batches
 			String query = getStatement("update.siteProperty");
-			
-			if(oracle){
-				//Create Replace query:
-				String values = "";
-				for(String siteId : siteIds){
-					if(!"".equals(values)){
-						values += " union ";
-					}
-					values += "select '" + siteId + "' SITE_ID, '" + propertyName + "' NAME, '" + propertyValue + "' VALUE from dual";
+			int subArrayIndex = 0;
+			do{
+				int subArraySize = ORACLE_IN_CLAUSE_SIZE_LIMIT;
+				if(subArrayIndex + subArraySize > siteIds.length){
+					subArraySize = (siteIds.length - subArrayIndex);
 				}
-				query = query.replace("?", values);
-			}else{
-				//Create Replace query:
-				String values = "";
-				for(String siteId : siteIds){
-					if(!"".equals(values)){
-						values += ",";
-					}
-					values += "('" + siteId + "', '" + propertyName + "','" + propertyValue + "')";
+				List<Object[]> rows = new ArrayList<Object[]>(subArraySize);
+				for(int i = subArrayIndex; i < subArrayIndex + subArraySize; i++){
+					rows.add(new Object[]{siteIds[i], propertyName, propertyValue});
 				}
-				query = query + values;
-			}
-			
-			getJdbcTemplate().update(query);
+				batchUpdate(query, rows);
+				subArrayIndex = subArrayIndex + subArraySize;
+			}while(subArrayIndex < siteIds.length);
 		} catch (DataAccessException ex) {
            log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
 		}
@@ -399,6 +505,75 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 		}
 	}
 	
+	public Map<String, Set<String>> getSiteInstructors(String[] siteIds){
+		try{
+			Map<String, Set<String>> returnMap = new HashMap<String, Set<String>>();
+			if(siteIds == null || siteIds.length == 0){
+				return returnMap;
+			}
+			int subArrayIndex = 0;
+			do{
+				int subArraySize = ORACLE_IN_CLAUSE_SIZE_LIMIT;
+				if(subArrayIndex + subArraySize > siteIds.length){
+					subArraySize = (siteIds.length - subArrayIndex);
+				}
+				String[] subSiteIds = Arrays.copyOfRange(siteIds, subArrayIndex, subArrayIndex + subArraySize);
+				List<String[]> results = (List<String[]>) getJdbcTemplate().query(getInQuery("select.siteInstructors", subSiteIds.length), subSiteIds, new RowMapper() {
+					public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+						return new String[]{resultSet.getString("SITE_ID"), resultSet.getString("USER_ID")};
+					}
+				});
+				if(results != null){
+					for(String[] result : results){
+						Set<String> userIds = returnMap.get(result[0]);
+						if(userIds == null){
+							userIds = new HashSet<String>();
+							returnMap.put(result[0], userIds);
+						}
+						userIds.add(result[1]);
+					}
+				}
+				subArrayIndex = subArrayIndex + subArraySize;
+			}while(subArrayIndex < siteIds.length);
+
+			return returnMap;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return null;
+		}
+	}
+	
+	public Set<String> getPublishedSiteIds(String[] siteIds){
+		try{
+			Set<String> returnSet = new HashSet<String>();
+			if(siteIds == null || siteIds.length == 0){
+				return returnSet;
+			}
+			int subArrayIndex = 0;
+			do{
+				int subArraySize = ORACLE_IN_CLAUSE_SIZE_LIMIT;
+				if(subArrayIndex + subArraySize > siteIds.length){
+					subArraySize = (siteIds.length - subArrayIndex);
+				}
+				String[] subSiteIds = Arrays.copyOfRange(siteIds, subArrayIndex, subArrayIndex + subArraySize);
+				List<String> results = (List<String>) getJdbcTemplate().query(getInQuery("select.sitesPublished", subSiteIds.length), subSiteIds, new RowMapper() {
+					public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+						return resultSet.getString("SITE_ID");
+					}
+				});
+				if(results != null){
+					returnSet.addAll(results);
+				}
+				subArrayIndex = subArrayIndex + subArraySize;
+			}while(subArrayIndex < siteIds.length);
+
+			return returnSet;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return null;
+		}
+	}
+	
 	public void cleanupOrphanedPermissions(){
 		try {
 			getJdbcTemplate().update(getStatement("delete.orphaned.permissions"));
@@ -460,6 +635,86 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 		}
 	}
 	
+	public Map<String, Set<String>> getAllNodesAndPermsForUser(String userId){
+		try{
+			Map<String, Set<String>> returnMap = new HashMap<String, Set<String>>();
+			List<String[]> results = (List<String[]>) getJdbcTemplate().query(getStatement("select.all.nodes.and.perms.for.user"), new Object[]{userId}, new RowMapper() {
+
+				public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+					return new String[]{resultSet.getString("NODEID"), resultSet.getString("PERMISSION")};
+				}
+			});
+			if(results != null){
+				for(String[] result : results){
+					if(result != null && result.length == 2){
+						if(!returnMap.containsKey(result[0])){
+							returnMap.put(result[0], new HashSet<String>());
+						}
+						returnMap.get(result[0]).add(result[1]);
+					}
+				}
+			}
+			return returnMap;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return null;
+		}
+	}
+
+	public Map<String, Set<Long>> getDelayedInvocationTimes(String componentId){
+		try{
+			Map<String, Set<Long>> returnMap = new HashMap<String, Set<Long>>();
+			List<Object[]> results = (List<Object[]>) getJdbcTemplate().query(getStatement("select.delayed.invocation.times"), new Object[]{componentId}, new RowMapper() {
+
+				public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+					return new Object[]{resultSet.getString("CONTEXT"), resultSet.getTimestamp("INVOCATION_TIME")};
+				}
+			});
+			if(results != null){
+				for(Object[] result : results){
+					if(result != null && result[0] != null && result[1] != null){
+						if(!returnMap.containsKey(result[0])){
+							returnMap.put((String) result[0], new HashSet<Long>());
+						}
+						returnMap.get(result[0]).add(((Date) result[1]).getTime() / 1000);
+					}
+				}
+			}
+			return returnMap;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return null;
+		}
+	}
+
+	public boolean replaceNodePermission(String userId, String nodeId, String oldPermission, String newPermission){
+		try{
+			return getJdbcTemplate().update(getStatement("update.node.permission"), new Object[]{newPermission, userId, nodeId, oldPermission}) > 0;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return false;
+		}
+	}
+	
+	public boolean moveNodePermissions(Map<String, String> nodeIds, String skipUserId){
+		try{
+			String query = getStatement("update.node.permissions.nodeId");
+			List<Object[]> rows = new ArrayList<Object[]>();
+			for(Entry<String, String> entry : nodeIds.entrySet()){
+				rows.add(new Object[]{entry.getValue(), entry.getKey(), skipUserId});
+				if(rows.size() == ORACLE_IN_CLAUSE_SIZE_LIMIT){
+					batchUpdate(query, rows);
+					rows = new ArrayList<Object[]>();
+				}
+			}
+			batchUpdate(query, rows);
+			return true;
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			return false;
+		}
+	}
+
 	/**
 	 * DAC-40 Highlight Inactive Courses in site search
 	 * requires the job "InactiveCoursesJob" attached in the jira
@@ -587,6 +842,189 @@ public class DelegatedAccessDaoImpl extends JdbcDaoSupport implements DelegatedA
 		}
 	}
 	
+	public List<String> updateAnonAndAuthRoles(final Map<String, Map<String, String[]>> realmRoles){
+		List<String> failedRealmIds = new ArrayList<String>();
+		if(realmRoles == null || realmRoles.isEmpty()){
+			return failedRealmIds;
+		}
+		String[] realmIds = realmRoles.keySet().toArray(new String[realmRoles.size()]);
+		//ROLE_NAME -> ROLE_KEY for .auth and .anon
+		final Map<String, Long> roleKeys = new HashMap<String, Long>();
+		//the functions of each role being copied, most sites copy the same few roles
+		final Map<String, Set<Long>> copyFunctions = new HashMap<String, Set<Long>>();
+		try{
+			getJdbcTemplate().query(getStatement("select.anon.auth.role.keys"), new RowMapper() {
+				public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+					roleKeys.put(resultSet.getString("ROLE_NAME"), resultSet.getLong("ROLE_KEY"));
+					return null;
+				}
+			});
+			for(Map<String, String[]> roles : realmRoles.values()){
+				for(String[] fromRealmRole : roles.values()){
+					String key = fromRealmRole[0] + ":" + fromRealmRole[1];
+					if(!copyFunctions.containsKey(key)){
+						final Set<Long> functions = new HashSet<Long>();
+						getJdbcTemplate().query(getStatement("select.role.functions"), new Object[]{fromRealmRole[0], fromRealmRole[1]}, new RowMapper() {
+							public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+								functions.add(resultSet.getLong("FUNCTION_KEY"));
+								return null;
+							}
+						});
+						copyFunctions.put(key, functions);
+					}
+				}
+			}
+		}catch (DataAccessException ex) {
+			log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+			failedRealmIds.addAll(Arrays.asList(realmIds));
+			return failedRealmIds;
+		}
+
+		int subArrayIndex = 0;
+		do{
+			int subArraySize = ORACLE_IN_CLAUSE_SIZE_LIMIT;
+			if(subArrayIndex + subArraySize > realmIds.length){
+				subArraySize = (realmIds.length - subArrayIndex);
+			}
+			final String[] subRealmIds = Arrays.copyOfRange(realmIds, subArrayIndex, subArrayIndex + subArraySize);
+			//each chunk is written in its own transaction, so a realm never ends up with only some of its rows
+			try{
+				if(transactionManager == null){
+					updateAnonAndAuthRoles(subRealmIds, realmRoles, roleKeys, copyFunctions);
+				}else{
+					new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+						protected void doInTransactionWithoutResult(TransactionStatus status) {
+							updateAnonAndAuthRoles(subRealmIds, realmRoles, roleKeys, copyFunctions);
+						}
+					});
+				}
+			}catch (Exception ex) {
+				//the transaction was rolled back, the next chunk is still written
+				log.error("Error executing query: " + ex.getClass() + ":" + ex.getMessage(), ex);
+				failedRealmIds.addAll(Arrays.asList(subRealmIds));
+			}
+			subArrayIndex = subArrayIndex + subArraySize;
+		}while(subArrayIndex < realmIds.length);
+		return failedRealmIds;
+	}
+
+	/**
+	 * Writes the .auth and .anon rows that are different for one chunk of realms
+	 */
+	private void updateAnonAndAuthRoles(String[] subRealmIds, Map<String, Map<String, String[]>> realmRoles, Map<String, Long> roleKeys, Map<String, Set<Long>> copyFunctions){
+		//REALM_ID -> REALM_KEY
+		final Map<String, Long> realmKeys = new HashMap<String, Long>();
+		getJdbcTemplate().query(getInQuery("select.realm.keys", subRealmIds.length), subRealmIds, new RowMapper() {
+			public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+				realmKeys.put(resultSet.getString("REALM_ID"), resultSet.getLong("REALM_KEY"));
+				return null;
+			}
+		});
+		//"REALM_ID:ROLE_NAME" -> the .auth/.anon functions the realm has now
+		final Map<String, Set<Long>> currentFunctions = new HashMap<String, Set<Long>>();
+		getJdbcTemplate().query(getInQuery("select.anon.auth.functions", subRealmIds.length), subRealmIds, new RowMapper() {
+			public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+				String key = resultSet.getString("REALM_ID") + ":" + resultSet.getString("ROLE_NAME");
+				Set<Long> functions = currentFunctions.get(key);
+				if(functions == null){
+					functions = new HashSet<Long>();
+					currentFunctions.put(key, functions);
+				}
+				functions.add(resultSet.getLong("FUNCTION_KEY"));
+				return null;
+			}
+		});
+		//"REALM_ID:ROLE_NAME" for the .auth/.anon roles the realm has now
+		final Set<String> currentRoles = new HashSet<String>();
+		getJdbcTemplate().query(getInQuery("select.anon.auth.role.desc", subRealmIds.length), subRealmIds, new RowMapper() {
+			public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+				currentRoles.add(resultSet.getString("REALM_ID") + ":" + resultSet.getString("ROLE_NAME"));
+				return null;
+			}
+		});
+		
+		List<Object[]> deleteFunctions = new ArrayList<Object[]>();
+		List<Object[]> insertFunctions = new ArrayList<Object[]>();
+		List<Object[]> deleteRoles = new ArrayList<Object[]>();
+		List<Object[]> insertRoles = new ArrayList<Object[]>();
+		for(String realmId : subRealmIds){
+			Long realmKey = realmKeys.get(realmId);
+			if(realmKey == null){
+				continue;
+			}
+			for(Entry<String, Long> role : roleKeys.entrySet()){
+				String[] fromRealmRole = realmRoles.get(realmId).get(role.getKey());
+				Set<Long> desired = fromRealmRole == null ? new HashSet<Long>() : copyFunctions.get(fromRealmRole[0] + ":" + fromRealmRole[1]);
+				Set<Long> current = currentFunctions.get(realmId + ":" + role.getKey());
+				if(current == null){
+					current = new HashSet<Long>();
+				}
+				for(Long function : current){
+					if(!desired.contains(function)){
+						deleteFunctions.add(new Object[]{realmKey, role.getValue(), function});
+					}
+				}
+				for(Long function : desired){
+					if(!current.contains(function)){
+						insertFunctions.add(new Object[]{realmKey, role.getValue(), function});
+					}
+				}
+				boolean hasRole = currentRoles.contains(realmId + ":" + role.getKey());
+				if(hasRole && fromRealmRole == null){
+					deleteRoles.add(new Object[]{realmKey, role.getValue()});
+				}else if(!hasRole && fromRealmRole != null){
+					insertRoles.add(new Object[]{realmKey, role.getValue()});
+				}
+			}
+		}
+		batchUpdate(getStatement("delete.realm.function"), deleteFunctions);
+		batchUpdate(getStatement("delete.realm.role.desc"), deleteRoles);
+		batchUpdate(getStatement("insert.realm.role.desc"), insertRoles);
+		batchUpdate(getStatement("insert.realm.function"), insertFunctions);
+		log.debug("updateAnonAndAuthRoles: " + subRealmIds.length + " realms, " + deleteFunctions.size() + " functions removed, " + insertFunctions.size() + " functions added, "
+				+ deleteRoles.size() + " roles removed, " + insertRoles.size() + " roles added");
+	}
+	
+	/**
+	 * returns the statement with "(?)" replaced by an in clause with size parameters
+	 * @param key
+	 * @param size
+	 * @return
+	 */
+	private String getInQuery(String key, int size){
+		StringBuilder inParams = new StringBuilder("(");
+		for(int i = 0; i < size; i++){
+			if(i > 0){
+				inParams.append(",");
+			}
+			inParams.append("?");
+		}
+		inParams.append(")");
+		return getStatement(key).replace("(?)", inParams.toString());
+	}
+	
+	/**
+	 * runs the statement once for each row of parameters as a single JDBC batch
+	 * @param query
+	 * @param rows
+	 */
+	private void batchUpdate(String query, final List<Object[]> rows){
+		if(rows.isEmpty()){
+			return;
+		}
+		getJdbcTemplate().batchUpdate(query, new BatchPreparedStatementSetter() {
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				Object[] row = rows.get(i);
+				for(int j = 0; j < row.length; j++){
+					ps.setObject(j + 1, row[j]);
+				}
+			}
+			public int getBatchSize() {
+				return rows.size();
+			}
+		});
+	}
+	
 	public List<String> getDelegatedAccessUsers(){
 		try{
 			return getJdbcTemplate().query(getStatement("select.delegatedaccess.user"), new RowMapper() {
@@ -84,7 +84,7 @@ public class DelegatedAccessEntityProviderImpl implements DelegatedAccessEntityP
 	}
 
 	public boolean entityExists(String id) {
-		String firstNodeId = getFirstNodeId("/site/" + id, DelegatedAccessConstants.HIERARCHY_ID);
+		String firstNodeId = getFirstNodeId("/site/" + id, projectLogic.getActiveHierarchyId());
 		return firstNodeId != null;
 	}
 
@@ -95,7 +95,7 @@ public class DelegatedAccessEntityProviderImpl implements DelegatedAccessEntityP
 
 	public Map<String, String> getProperties(String reference) {
 		String siteRef = "/site/" + reference.substring(reference.lastIndexOf("/") + 1);
-		String nodeId = getFirstNodeId(siteRef, DelegatedAccessConstants.HIERARCHY_ID);
+		String nodeId = getFirstNodeId(siteRef, projectLogic.getActiveHierarchyId());
 		if(nodeId == null){
 			throw new IllegalArgumentException("NodeId: " + reference + " doesn't exist");
 		}
@@ -145,7 +145,7 @@ public class DelegatedAccessEntityProviderImpl implements DelegatedAccessEntityP
 			throw new IllegalArgumentException("User: " + sakaiProxy.getCurrentUserId() + " is not a member of the site with site.upd permission or an admin");
 		}
 		String siteRef = "/site/" + ref.getId();
-		String nodeId = getFirstNodeId(siteRef, DelegatedAccessConstants.HIERARCHY_ID);
+		String nodeId = getFirstNodeId(siteRef, projectLogic.getActiveHierarchyId());
 		if(nodeId == null){
 			throw new IllegalArgumentException("Node doesn't exist or has multiple instances: " + ref.getId());
 		}
@@ -282,7 +282,7 @@ public class DelegatedAccessEntityProviderImpl implements DelegatedAccessEntityP
 	
 	public Object getEntity(EntityReference ref) {
 		String siteRef = "/site/" + ref.getId();
-		String nodeId = getFirstNodeId(siteRef, DelegatedAccessConstants.HIERARCHY_ID);
+		String nodeId = getFirstNodeId(siteRef, projectLogic.getActiveHierarchyId());
 		if(nodeId == null){
 			throw new IllegalArgumentException("NodeId for Site: " + ref + " doesn't exist");
 		}
@@ -317,7 +317,7 @@ public class DelegatedAccessEntityProviderImpl implements DelegatedAccessEntityP
         	if(siteId != null && !"".equals(siteId)){
         		if(sakaiProxy.isSuperUser() || (sakaiProxy.isUserInstructor(sakaiProxy.getCurrentUserId(), siteId)) && sakaiProxy.isShoppingPeriodInstructorEditable()){
         			String siteRef = "/site/" + siteId;
-        			String nodeId = getFirstNodeId(siteRef, DelegatedAccessConstants.HIERARCHY_ID);
+        			String nodeId = getFirstNodeId(siteRef, projectLogic.getActiveHierarchyId());
         			if(nodeId == null){
         				throw new IllegalArgumentException("Node doesn't exist or has multiple instances: " + siteRef);
         			}else{
@@ -18,7 +18,10 @@ package org.sakaiproject.delegatedaccess.jobs;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -44,6 +47,9 @@ import org.sakaiproject.api.app.scheduler.ScheduledInvocationCommand;
  * This is the job that will populate the shopping period access tree.  It should be ran every morning (sometime after midnight).  
  * This is used to open and close the shopping period for sites based on their open and close dates.
  * 
+ * When it's ran on a schedule it only updates the nodes whose open or close date has passed since the last run (the entire
+ * tree is only updated the first time).  It's also scheduled to run for a single node at each of the node's open and close dates.
+ * 
  * @author Bryan Holladay
  *
  */
@@ -69,32 +75,49 @@ public class DelegatedAccessShoppingPeriodJob implements StatefulJob, ScheduledI
 			log.info("DelegatedAccessShoppingPeriodJob started.  NodeId: " + nodeId);
 			long startTime = System.currentTimeMillis();
 			SecurityAdvisor advisor = sakaiProxy.addSiteUpdateSecurityAdvisor();
-			DefaultMutableTreeNode treeNode = null;
-			if(nodeId == null || "".equals(nodeId)){
-				TreeModel treeModel = projectLogic.getEntireTreePlusUserPerms(DelegatedAccessConstants.SHOPPING_PERIOD_USER);
-				if (treeModel != null && treeModel.getRoot() != null) {
-					treeNode = (DefaultMutableTreeNode) treeModel.getRoot();
+			List<DefaultMutableTreeNode> treeNodes = new ArrayList<DefaultMutableTreeNode>();
+			Date runDate = new Date();
+			boolean scheduledRun = nodeId == null || "".equals(nodeId);
+			if(scheduledRun){
+				//only the nodes whose shopping period opened or closed since the last run can change
+				Date lastRunDate = sakaiProxy.isShoppingPeriodJobIncremental() ? projectLogic.getShoppingPeriodJobLastRunDate() : null;
+				List<String> nodeIds = lastRunDate == null ? null : projectLogic.getShoppingPeriodNodesToUpdate(lastRunDate, runDate);
+				if(nodeIds == null){
+					TreeModel treeModel = projectLogic.getEntireTreePlusUserPerms(DelegatedAccessConstants.SHOPPING_PERIOD_USER);
+					if (treeModel != null && treeModel.getRoot() != null) {
+						treeNodes.add((DefaultMutableTreeNode) treeModel.getRoot());
+					}
+				}else{
+					log.info("DelegatedAccessShoppingPeriodJob: " + nodeIds.size() + " nodes have a start or end date since " + lastRunDate);
+					for(String id : nodeIds){
+						treeNodes.add(getTreeNode(id));
+					}
 				}
 			}else{
-				NodeModel nodeModel = projectLogic.getNodeModel(nodeId, DelegatedAccessConstants.SHOPPING_PERIOD_USER);
-				treeNode = new DelegatedAccessMutableTreeNode();
-				treeNode.setUserObject(nodeModel);
+				treeNodes.add(getTreeNode(nodeId));
 			}
 			
-			if(treeNode != null){
-				projectLogic.updateShoppingPeriodSettings(treeNode);
-			
-				sakaiProxy.popSecurityAdvisor(advisor);
-				log.info("DelegatedAccessShoppingPeriodJob finished in " + (System.currentTimeMillis() - startTime) + " ms");
-				if(errors.size() > 0){
-					String warning = "The following sites had errors: \n\n";
-					for(Entry entry : errors.entrySet()){
-						warning += entry.getKey() + ": " + entry.getValue() + "\n";
-					}
-					log.warn(warning);
-					sakaiProxy.sendEmail("DelegatedAccessShoppingPeriodJob error", warning);
+			for(DefaultMutableTreeNode treeNode : treeNodes){
+				errors.putAll(projectLogic.updateShoppingPeriodSettings(treeNode));
+			}
+			if(scheduledRun){
+				//make sure the job runs for every start and end date that is coming up (older settings may not have been scheduled)
+				projectLogic.scheduleShoppingPeriodBoundaries();
+				if(errors.size() == 0){
+					projectLogic.saveShoppingPeriodJobLastRunDate(runDate);
 				}
 			}
+		
+			sakaiProxy.popSecurityAdvisor(advisor);
+			log.info("DelegatedAccessShoppingPeriodJob finished in " + (System.currentTimeMillis() - startTime) + " ms");
+			if(errors.size() > 0){
+				String warning = "The following sites had errors: \n\n";
+				for(Entry entry : errors.entrySet()){
+					warning += entry.getKey() + ": " + entry.getValue() + "\n";
+				}
+				log.warn(warning);
+				sakaiProxy.sendEmail("DelegatedAccessShoppingPeriodJob error", warning);
+			}
 		}catch (Exception e) {
 			log.error(e.getMessage(), e);
 			StringWriter sw = new StringWriter();
@@ -102,4 +125,11 @@ public class DelegatedAccessShoppingPeriodJob implements StatefulJob, ScheduledI
 			sakaiProxy.sendEmail("DelegatedAccessShoppingPeriodJob error", sw.toString());
 		}
 	}
+	
+	private DefaultMutableTreeNode getTreeNode(String nodeId){
+		NodeModel nodeModel = projectLogic.getNodeModel(nodeId, DelegatedAccessConstants.SHOPPING_PERIOD_USER);
+		DefaultMutableTreeNode treeNode = new DelegatedAccessMutableTreeNode();
+		treeNode.setUserObject(nodeModel);
+		return treeNode;
+	}
 }
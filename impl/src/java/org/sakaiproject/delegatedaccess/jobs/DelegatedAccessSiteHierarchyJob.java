@@ -18,13 +18,23 @@ package org.sakaiproject.delegatedaccess.jobs;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -37,10 +47,13 @@ import org.sakaiproject.delegatedaccess.dao.DelegatedAccessDao;
 import org.sakaiproject.delegatedaccess.logic.ProjectLogic;
 import org.sakaiproject.delegatedaccess.logic.SakaiProxy;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
-import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.hierarchy.HierarchyService;
 import org.sakaiproject.hierarchy.model.HierarchyNode;
 import org.sakaiproject.site.api.Site;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * 
@@ -60,13 +73,30 @@ import org.sakaiproject.site.api.Site;
  * 
  * 
  * You can run it as many times as you want.  Best bet would be to set up a quartz trigger to go off after every time your site integration runs.
- * 
+ *
+ * After changing the hierarchy properties, run it once with delegatedaccess.sitehierarchyjob.mode=rebuild.  The new hierarchy is built
+ * next to the active one and only switched to once it is complete, so users keep the old hierarchy until then.
+ * delegatedaccess.sitehierarchyjob.mode=rollback switches back to the old one.
+ *
  * @author Bryan Holladay (holladay@longsight.com)
  *
  */
 public class DelegatedAccessSiteHierarchyJob implements Job{
 
 	private static final Logger log = Logger.getLogger(DelegatedAccessSiteHierarchyJob.class);
+	//sites queued for each worker before the streaming thread has to wait
+	private static final int SITE_QUEUE_SIZE_PER_THREAD = 100;
+	//plan operations applied per transaction
+	private static final int PLAN_BATCH_SIZE = 500;
+	//operations listed in a dry run report
+	private static final int MAX_PLAN_REPORT_LINES = 5000;
+	//sites between the checkpoints of an update run
+	private static final int CHECKPOINT_INTERVAL = 1000;
+	//failed sites kept for the next run to retry, if more fail the next run starts over
+	private static final int MAX_RETRY_SITES = 1000;
+	//distinct error messages and stack traces in the error report
+	private static final int MAX_ERROR_MESSAGES = 50;
+	private static final int MAX_ERROR_TRACES = 5;
 	@Getter @Setter
 	private HierarchyService hierarchyService;
 	@Getter @Setter	
@@ -75,195 +105,890 @@ public class DelegatedAccessSiteHierarchyJob implements Job{
 	private DelegatedAccessDao dao;
 	@Getter @Setter
 	private ProjectLogic projectLogic;
-		
-	private static boolean semaphore = false;
+	@Getter @Setter
+	private PlatformTransactionManager transactionManager;
 
 	public void init() {
 
 	}
 
 	public void execute(JobExecutionContext arg0) throws JobExecutionException {
-		//this will stop the job if there is already another instance running
-		if(semaphore){
-			log.warn("Stopping job since this job is already running");
-			return;
-		}
-		semaphore = true;
-
+		JobLock jobLock = null;
+		HierarchySiteHandler siteHandler = null;
 		try{
 			log.info("DelegatedAccessSiteHierarchyJob started");
 			long startTime = System.currentTimeMillis();
 
 //			newHiearchyNodeIds = new HashSet<String>();
 
-			HierarchyNode rootNode = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
-			Date hierarchyJobLastRunDate = null;
-			if (rootNode == null) {
+			//the original hierarchy's root holds the job lock and the active hierarchy id, so it is always kept
+			HierarchyNode lockNode = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+			if (lockNode == null) {
 				// create the hierarchy if it is not there already
-				rootNode = hierarchyService.createHierarchy(DelegatedAccessConstants.HIERARCHY_ID);
+				lockNode = hierarchyService.createHierarchy(DelegatedAccessConstants.HIERARCHY_ID);
 				String rootTitle = sakaiProxy.getRootName();
-				hierarchyService.saveNodeMetaData(rootNode.id, rootTitle, rootTitle, null);
+				hierarchyService.saveNodeMetaData(lockNode.id, rootTitle, rootTitle, null);
 				log.info("Created the root node for the delegated access hierarchy: " + DelegatedAccessConstants.HIERARCHY_ID);
-			}else{
-				hierarchyJobLastRunDate = projectLogic.getHierarchyJobLastRunDate(rootNode.id);
 			}
 
+			//this will stop the job if there is already another instance running on any server
+			long leaseMillis = sakaiProxy.getSiteHierarchyJobLockLeaseMinutes() * 60000L;
+			jobLock = JobLock.acquire(projectLogic, lockNode.id, leaseMillis);
+			if(jobLock == null){
+				log.warn("Stopping job since this job is already running");
+				return;
+			}
+
+			//another server may have switched the active hierarchy within the cache time
+			projectLogic.refreshActiveHierarchyId();
+			String hierarchyId = projectLogic.getActiveHierarchyId();
+			HierarchyNode rootNode = hierarchyService.getRootNode(hierarchyId);
+			if(rootNode == null){
+				log.error("DelegatedAccessSiteHierarchyJob: the active hierarchy " + hierarchyId + " doesn't exist, stopping");
+				sakaiProxy.sendEmail("Error occurred in DelegatedAccessSiteHierarchyJob", "The active hierarchy " + hierarchyId + " doesn't exist");
+				return;
+			}
+			Date hierarchyJobLastRunDate = projectLogic.getHierarchyJobLastRunDate(rootNode.id);
+
 			//get hierarchy structure:
 			String[] hierarchy = sakaiProxy.getServerConfigurationStrings(DelegatedAccessConstants.HIERARCHY_SITE_PROPERTIES);
 			if(hierarchy == null || hierarchy.length == 0){
 				hierarchy = DelegatedAccessConstants.DEFAULT_HIERARCHY;
 			}
+			String termField = sakaiProxy.getTermField();
+			String[] siteProperties = new String[hierarchy.length + 1];
+			System.arraycopy(hierarchy, 0, siteProperties, 0, hierarchy.length);
+			siteProperties[hierarchy.length] = termField;
 
-			int page = 1;
-			int pageFirstRecord = 1;
-			int pageLastRecord = DelegatedAccessConstants.MAX_SITES_PER_PAGE;
-			boolean hasMoreSites = true;
-			int processedSites = 0;
-			String errors = "";
-			Map<String,String> propsMap = null;
-			//only care about modified date if the job has ran at least once (otherwise, we don't want to slow down anything in the search)
-			boolean orderByModifiedDate = hierarchyJobLastRunDate != null;
-			if(!orderByModifiedDate){
-				//we can only limit the sites search to known properties if the job has never ran before,
-				//this is because a site could have been removed from the hierarchy (doesn't have props anymore)
-				//which needs to be removed.  The date will limit the length of the job enough to make this
-				//speed up not matter as much
-				propsMap = new HashMap<String, String>();
-				for(String prop : hierarchy){
-					propsMap.put(prop, "");
+			String mode = sakaiProxy.getSiteHierarchyJobMode();
+			if(DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_REBUILD.equals(mode) || DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_ROLLBACK.equals(mode)){
+				String errors;
+				if(DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_REBUILD.equals(mode)){
+					errors = rebuildHierarchy(hierarchyId, rootNode, hierarchy, termField, siteProperties, jobLock);
+				}else{
+					errors = rollbackHierarchy(hierarchyId, jobLock);
+				}
+				if(!"".equals(errors)){
+					log.warn(errors);
+					sakaiProxy.sendEmail("DelegatedAccessSiteHierarchyJob error", errors);
 				}
+				log.info("DelegatedAccessSiteHierarchyJob " + mode + " finished in " + (System.currentTimeMillis() - startTime) + " ms, the active hierarchy is " + projectLogic.getActiveHierarchyId());
+				return;
 			}
-			while (hasMoreSites) {
-				//sites are ordered by
-				List<Site> sites = sakaiProxy.getAllSitesByPages(propsMap, pageFirstRecord, pageLastRecord, orderByModifiedDate);
-				log.info("DelegatedAccessSiteHierarchyJob: Processing site results: " + pageFirstRecord + " to " + pageLastRecord);
-				for(Site site : sites){
-					if(orderByModifiedDate){
-						//check the date to see if we can break out:
-						if(site.getModifiedDate() != null && hierarchyJobLastRunDate.after(site.getModifiedDate())){
-							hasMoreSites = false;
-							break;
-						}
-						if(site.getModifiedDate() == null && site.getCreatedDate() != null && hierarchyJobLastRunDate.after(site.getCreatedDate())){
-							break;
-						}
-					}
-					//search through all sites and add it to the hierarchy if the site has information (otherwise skip)
-					try{
-						HierarchyNode siteParentNode = rootNode;
-						ResourceProperties props = site.getProperties();
-
-						//find lowest hierarchy node:
-						for(String hiearchyProperty : hierarchy){
-							String siteProperty = props.getProperty(hiearchyProperty);
-							if(siteProperty != null && !"".equals(siteProperty)){
-								siteParentNode = checkAndAddNode(siteParentNode, siteProperty, siteProperty, null);
-							}else{
-								//nothing, so break
-								break;
-							}
-						}
+			
+			//load every node up front so the checks for existing nodes don't have to query the database for each site
+			List<String[]> hierarchyNodes = dao.getHierarchyNodes(hierarchyId);
+			if(hierarchyNodes == null){
+				//without the existing nodes every site would be added again
+				log.error("DelegatedAccessSiteHierarchyJob: unable to load the hierarchy nodes, stopping");
+				sakaiProxy.sendEmail("Error occurred in DelegatedAccessSiteHierarchyJob", "Unable to load the hierarchy nodes");
+				return;
+			}
+			SiteHierarchyIndex index = new SiteHierarchyIndex(hierarchyNodes);
+			hierarchyNodes = null;
+			log.info("DelegatedAccessSiteHierarchyJob: loaded " + index.size() + " nodes in " + (System.currentTimeMillis() - startTime) + " ms");
 
+			//nodes that were added or changed, only these (and their ancestors) need to be removed from the node cache
+			Set<String> changedNodeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			int threads = 1;
+			int processedSites;
+			String errors;
+			//whether every site was read and added (or put on the retry list), so the next run can start from this run's start date
+			boolean completed;
+			long runStartTime = startTime;
+			if(DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_RECONCILE.equals(mode) || DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_DRY_RUN.equals(mode)){
+				//work out the whole tree from every site first, then only make the changes that are needed
+				HierarchyPlan plan = new HierarchyPlan(index, rootNode.id);
+				PlanSiteHandler planHandler = new PlanSiteHandler(plan, hierarchy, termField, jobLock);
+				boolean streamed = dao.streamSites(siteProperties, null, null, null, planHandler);
+				processedSites = planHandler.processedSites;
+				if(!streamed){
+					//a site that wasn't read would be deleted from the hierarchy, so nothing can be applied
+					errors = "Unable to read the sites from the database\n\n";
+				}else if(DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_DRY_RUN.equals(mode)){
+					String report = plan.getReport(MAX_PLAN_REPORT_LINES);
+					log.info(report);
+					sakaiProxy.sendEmail("DelegatedAccessSiteHierarchyJob dry run", report);
+					log.info("DelegatedAccessSiteHierarchyJob dry run finished in " + (System.currentTimeMillis() - startTime) + " ms and read " + processedSites + " sites.");
+					return;
+				}else{
+					errors = applyPlan(plan, hierarchyId, changedNodeIds, jobLock);
+				}
+				completed = "".equals(errors);
+			}else{
+				//a run that didn't finish left a checkpoint, so carry on after the last site it saved
+				Checkpoint checkpoint = Checkpoint.parse(projectLogic.getHierarchyJobCheckpoint(rootNode.id));
+				boolean resumed = checkpoint != null;
+				if(resumed){
+					log.info("DelegatedAccessSiteHierarchyJob: resuming the run started at " + new Date(checkpoint.runStartTime) + " after site " + checkpoint.siteId);
+					//the nodes changed before the checkpoint are not known anymore, so drop every server's cached nodes
+					//and have the next shopping period job run update the entire tree
+					projectLogic.invalidateEntireNodeCache();
+					projectLogic.saveShoppingPeriodJobLastRunDate(null);
+				}else{
+					checkpoint = new Checkpoint(startTime, hierarchyJobLastRunDate, null);
+				}
+				runStartTime = checkpoint.runStartTime;
+				//only care about modified date if the job has ran at least once
+				boolean incremental = checkpoint.modifiedSince != null;
+				//we can only limit the sites to ones with hierarchy properties if the job has never ran before,
+				//this is because a site could have been removed from the hierarchy (doesn't have props anymore)
+				//which needs to be removed.  The date will limit the length of the job enough to make this
+				//speed up not matter as much
+				String requiredProperty = incremental ? null : hierarchy[0];
 
-						if(!rootNode.id.equals(siteParentNode.id)){
-							//save the site under the parent hierarchy if any data was found
-							//Site
-							checkAndAddNode(siteParentNode, site.getReference(), site.getTitle(), props.getProperty(sakaiProxy.getTermField()));
-						}else{
-							if(orderByModifiedDate){
-								//the job grabs all sites when orderBy is set, so this site was recently updated
-								//we need to make sure it wasn't removed from the hierarchy:
-								Map<String, List<String>> nodeIds = dao.getNodesBySiteRef(new String[]{site.getReference()}, DelegatedAccessConstants.HIERARCHY_ID);
-								if(nodeIds != null && nodeIds.containsKey(site.getReference())){
-									for(String nodeId : nodeIds.get(site.getReference())){
-										projectLogic.removeNode(hierarchyService.getNodeById(nodeId));
-									}
-								}
-							}
-						}
-						processedSites++;
-					}catch (Exception e) {
-						log.error(e.getMessage(), e);
-						if("".equals(errors)){
-							errors += "The following sites had errors: \n\n";
-						}
-						errors += site.getId() + ": " + e.getMessage() + "\n\n";
-						StringWriter sw = new StringWriter();
-						e.printStackTrace(new PrintWriter(sw));
-						errors += sw.toString();
-					}
+				threads = sakaiProxy.getSiteHierarchyJobThreads();
+				//every recently modified site is returned when the job is incremental, so a site without
+				//hierarchy information was recently updated and needs to be removed from the hierarchy
+				SiteHierarchyUpdater updater = new SiteHierarchyUpdater(hierarchyService, projectLogic, index, hierarchyId, rootNode.id, hierarchy, termField, incremental, changedNodeIds);
+				Set<String> retrySiteIds = projectLogic.getHierarchyJobRetrySiteIds(rootNode.id);
+				siteHandler = new HierarchySiteHandler(updater, threads, jobLock);
+				siteHandler.setCheckpoint(rootNode.id, checkpoint, retrySiteIds);
+				boolean streamed = dao.streamSites(siteProperties, requiredProperty, checkpoint.modifiedSince, checkpoint.siteId, siteHandler);
+				siteHandler.finish();
+				if(streamed){
+					//the sites that failed in earlier runs and weren't fixed by this one
+					siteHandler.retrySites(retrySiteIds, hierarchy, termField);
 				}
-				pageFirstRecord = (DelegatedAccessConstants.MAX_SITES_PER_PAGE * page) + 1;
-				page ++;
-				pageLastRecord = DelegatedAccessConstants.MAX_SITES_PER_PAGE * page;
-				if (sites.isEmpty()) {
-					hasMoreSites = false;
+				processedSites = siteHandler.processedSites.get();
+				errors = siteHandler.getErrors();
+				completed = streamed && !siteHandler.isRetryListFull();
+				if(!streamed){
+					//keep the checkpoint so the next run picks up after the last site that was saved
+					errors = "Unable to read the sites from the database\n\n" + errors;
+				}else if(!completed){
+					//the failed sites didn't fit on the retry list, so the next run starts over from the last run date
+					projectLogic.saveHierarchyJobCheckpoint(rootNode.id, null);
+					errors = "More than " + MAX_RETRY_SITES + " sites failed, the next run will read all of the sites again\n\n" + errors;
+				}else{
+					projectLogic.saveHierarchyJobRetrySiteIds(rootNode.id, siteHandler.getRetrySiteIds());
+					projectLogic.saveHierarchyJobCheckpoint(rootNode.id, null);
 				}
 			}
 
 			//Deletet empty sites:
-			projectLogic.deleteEmptyNonSiteNodes(DelegatedAccessConstants.HIERARCHY_ID);
+			projectLogic.deleteEmptyNonSiteNodes(hierarchyId);
 			
 			//report the errors
 			if(!"".equals(errors)){
 				log.warn(errors);
 				sakaiProxy.sendEmail("DelegatedAccessSiteHierarchyJob error", errors);
-			}else{
-				//no errors, so let's save this date so we can save time next run:
-				projectLogic.saveHierarchyJobLastRunDate(new Date(), rootNode.id);
+			}
+			if(completed){
+				//save the date the run started so we can save time next run, sites modified while it ran are picked up again
+				projectLogic.saveHierarchyJobLastRunDate(new Date(runStartTime), rootNode.id);
 			}
 
-			projectLogic.clearNodeCache();
+			//removed nodes have already been evicted by removeNode
+			projectLogic.invalidateNodeCache(changedNodeIds);
+			projectLogic.refreshHierarchySnapshot();
+			//new sites under a shopping period node need the shopping period settings applied
+			projectLogic.scheduleShoppingPeriodUpdate(changedNodeIds);
+			//have every server's site search index read the sites that were modified since it last caught up
+			sakaiProxy.postEvent(DelegatedAccessConstants.EVENT_SITE_SEARCH_INDEX_CATCH_UP, "/sitesearch", false);
 			//remove any sites that don't exist in the hierarchy (aka properties changed or site has been deleted):
 	//		removeMissingNodes(rootNode);
 
-			log.info("DelegatedAccessSiteHierarchyJob finished in " + (System.currentTimeMillis() - startTime) + " ms and processed " + processedSites + " sites.");		
+			log.info("DelegatedAccessSiteHierarchyJob finished in " + (System.currentTimeMillis() - startTime) + " ms and processed " + processedSites + " sites on " + threads + " threads.");		
 		}catch (Exception e) {
 			log.error(e.getMessage(), e);
 			sakaiProxy.sendEmail("Error occurred in DelegatedAccessSiteHierarchyJob", e.getMessage());
 		}finally{
-			semaphore = false;
+			if(siteHandler != null){
+				siteHandler.shutdown();
+			}
+			if(jobLock != null){
+				jobLock.release();
+			}
+		}
+	}
+
+	/**
+	 * Applies the plan's operations in order, PLAN_BATCH_SIZE operations per transaction.  If a batch fails it is
+	 * rolled back and the rest of the plan is skipped, since later operations can depend on it.  The next run
+	 * works out a new plan.
+	 * 
+	 * @param plan
+	 * @param hierarchyId
+	 * @param changedNodeIds
+	 * @param jobLock
+	 * @return the errors, or an empty string
+	 */
+	private String applyPlan(HierarchyPlan plan, final String hierarchyId, Set<String> changedNodeIds, JobLock jobLock){
+		List<HierarchyPlan.Operation> operations = plan.diff();
+		log.info("DelegatedAccessSiteHierarchyJob: " + plan.getSummary());
+		for(int batchStart = 0; batchStart < operations.size(); batchStart += PLAN_BATCH_SIZE){
+			jobLock.renew();
+			final List<HierarchyPlan.Operation> batch = operations.subList(batchStart, Math.min(batchStart + PLAN_BATCH_SIZE, operations.size()));
+			final Set<String> batchChangedNodeIds = new HashSet<String>();
+			try{
+				if(transactionManager == null){
+					applyOperations(batch, hierarchyId, batchChangedNodeIds);
+				}else{
+					new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+						protected void doInTransactionWithoutResult(TransactionStatus status) {
+							applyOperations(batch, hierarchyId, batchChangedNodeIds);
+						}
+					});
+				}
+			}catch (Exception e) {
+				log.error(e.getMessage(), e);
+				StringWriter sw = new StringWriter();
+				e.printStackTrace(new PrintWriter(sw));
+				return "The site hierarchy plan stopped after " + batchStart + " of " + operations.size() + " operations: " + e.getMessage() + "\n\n" + sw.toString();
+			}
+			changedNodeIds.addAll(batchChangedNodeIds);
+		}
+		return "";
+	}
+
+	private void applyOperations(List<HierarchyPlan.Operation> operations, String hierarchyId, Set<String> changedNodeIds){
+		for(HierarchyPlan.Operation operation : operations){
+			HierarchyPlan.PlanNode node = operation.getNode();
+			switch (operation.getType()) {
+			case CREATE:
+				String parentId = node.getParent().getNodeId();
+				HierarchyNode newNode = hierarchyService.addNode(hierarchyId, parentId);
+				hierarchyService.saveNodeMetaData(newNode.id, node.getTitle(), node.getDescription(), node.getTerm());
+				hierarchyService.addChildRelation(parentId, newNode.id);
+				node.setNodeId(newNode.id);
+				changedNodeIds.add(newNode.id);
+				changedNodeIds.add(parentId);
+				break;
+			case MOVE:
+				//add the new parent first so the node is never without a parent
+				hierarchyService.addChildRelation(node.getParent().getNodeId(), operation.getNodeId());
+				if(operation.getFromParentId() != null){
+					hierarchyService.removeChildRelation(operation.getFromParentId(), operation.getNodeId());
+					changedNodeIds.add(operation.getFromParentId());
+				}
+				changedNodeIds.add(operation.getNodeId());
+				changedNodeIds.add(node.getParent().getNodeId());
+				break;
+			case UPDATE:
+				hierarchyService.saveNodeMetaData(operation.getNodeId(), node.getTitle(), node.getDescription(), node.getTerm());
+				changedNodeIds.add(operation.getNodeId());
+				break;
+			case DELETE:
+				//removed nodes are evicted from the cache by removeNode
+				projectLogic.removeNode(hierarchyService.getNodeById(operation.getNodeId()));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Builds the hierarchy from scratch under a new hierarchy id while the active hierarchy is left alone, then
+	 * moves the permissions over and switches to it.  The hierarchy that was active is kept so it can be rolled back to.
+	 *
+	 * @param activeHierarchyId
+	 * @param activeRootNode
+	 * @param hierarchy
+	 * @param termField
+	 * @param siteProperties
+	 * @param jobLock
+	 * @return the errors, or an empty string
+	 * @throws InterruptedException
+	 */
+	private String rebuildHierarchy(String activeHierarchyId, HierarchyNode activeRootNode, String[] hierarchy, String termField,
+			String[] siteProperties, JobLock jobLock) throws InterruptedException{
+		//a rebuild that didn't finish (or a hierarchy that was rolled back from) is left behind as the staging hierarchy
+		destroyHierarchy(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_STAGING_HIERARCHY_ID), jobLock);
+		String stagingHierarchyId = DelegatedAccessConstants.HIERARCHY_ID + "-" + System.currentTimeMillis();
+		projectLogic.saveHierarchyPointer(DelegatedAccessConstants.NODE_PERM_STAGING_HIERARCHY_ID, stagingHierarchyId);
+		HierarchyNode stagingRootNode = hierarchyService.createHierarchy(stagingHierarchyId);
+		hierarchyService.saveNodeMetaData(stagingRootNode.id, activeRootNode.title, activeRootNode.description, null);
+		log.info("DelegatedAccessSiteHierarchyJob: rebuilding the hierarchy in " + stagingHierarchyId);
+
+		//nothing reads the staging hierarchy, so it is built from an empty index without touching any caches
+		Set<String> changedNodeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		SiteHierarchyUpdater updater = new SiteHierarchyUpdater(hierarchyService, projectLogic, new SiteHierarchyIndex(new ArrayList<String[]>()),
+				stagingHierarchyId, stagingRootNode.id, hierarchy, termField, false, changedNodeIds);
+		HierarchySiteHandler siteHandler = new HierarchySiteHandler(updater, sakaiProxy.getSiteHierarchyJobThreads(), jobLock);
+		boolean streamed;
+		try{
+			//only sites with hierarchy information end up in the hierarchy
+			streamed = dao.streamSites(siteProperties, hierarchy[0], null, null, siteHandler);
+			siteHandler.finish();
+		}finally{
+			siteHandler.shutdown();
+		}
+		String errors = siteHandler.getErrors();
+		if(!streamed){
+			errors = "Unable to read the sites from the database\n\n" + errors;
+		}
+		if(!"".equals(errors)){
+			//an incomplete hierarchy is never switched to, it is removed by the next rebuild
+			return "The rebuilt hierarchy " + stagingHierarchyId + " was not switched to, " + activeHierarchyId + " is still active.\n\n" + errors;
 		}
+		log.info("DelegatedAccessSiteHierarchyJob: added " + siteHandler.processedSites.get() + " sites to " + stagingHierarchyId + ", " + changedNodeIds.size() + " nodes");
+
+		errors = swapHierarchy(activeHierarchyId, stagingHierarchyId, true, jobLock);
+		if("".equals(errors)){
+			//the next run only needs the sites modified since the rebuild
+			projectLogic.saveHierarchyJobLastRunDate(new Date(), stagingRootNode.id);
+		}
+		return errors;
+	}
+
+	/**
+	 * Switches back to the hierarchy that was active before the last rebuild.  The hierarchy that is rolled back
+	 * from becomes the staging hierarchy (removed by the next rebuild), so running this again does nothing.
+	 *
+	 * @param activeHierarchyId
+	 * @param jobLock
+	 * @return the errors, or an empty string
+	 */
+	private String rollbackHierarchy(String activeHierarchyId, JobLock jobLock){
+		String previousHierarchyId = projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_PREVIOUS_HIERARCHY_ID);
+		if(previousHierarchyId == null || previousHierarchyId.equals(activeHierarchyId) || hierarchyService.getRootNode(previousHierarchyId) == null){
+			return "There is no previous hierarchy to roll back to, " + activeHierarchyId + " is still active.";
+		}
+		return swapHierarchy(activeHierarchyId, previousHierarchyId, false, jobLock);
 	}
 
-	private HierarchyNode checkAndAddNode(HierarchyNode parentNode, String title, String description, String term){
-		HierarchyNode node = null;
-		if(title != null && !"".equals(title)){
-
-			Map<String, List<String>> nodeIds = dao.getNodesBySiteRef(new String[]{title}, DelegatedAccessConstants.HIERARCHY_ID);
-			boolean hasChild = false;
-			String childNodeId = "";
-			if(nodeIds != null && nodeIds.containsKey(title) && nodeIds.get(title).size() > 0){
-				for(String id : nodeIds.get(title)){
-					if(parentNode.directChildNodeIds.contains(id)){
-						hasChild = true;
-						childNodeId = id;
-					}else if(title.startsWith("/site/")){
-						//If this is a site, there should (and can only be) 1 parent, delete
-						//delete the other nodes since they are old
-						projectLogic.removeNode(hierarchyService.getNodeById(id));
+	/**
+	 * Moves the permissions from the nodes of one hierarchy to the nodes with the same path in the other and switches
+	 * the active hierarchy, in one transaction.  Permissions on nodes without a match stay where they are and the
+	 * paths of those nodes are emailed.
+	 *
+	 * @param fromHierarchyId the active hierarchy
+	 * @param toHierarchyId
+	 * @param keepFrom true to keep fromHierarchyId as the previous hierarchy, false to make it the staging hierarchy
+	 * @param jobLock
+	 * @return the errors, or an empty string
+	 */
+	private String swapHierarchy(final String fromHierarchyId, final String toHierarchyId, final boolean keepFrom, JobLock jobLock){
+		if(transactionManager == null){
+			return "A transaction manager is needed to switch hierarchies, " + fromHierarchyId + " is still active.";
+		}
+		List<String[]> fromNodes = dao.getHierarchyNodes(fromHierarchyId);
+		List<String[]> toNodes = dao.getHierarchyNodes(toHierarchyId);
+		if(fromNodes == null || toNodes == null){
+			return "Unable to load the hierarchy nodes, " + fromHierarchyId + " is still active.";
+		}
+		//fromNodeId -> toNodeId
+		final Map<String, String> nodeIds = new HashMap<String, String>();
+		Set<String> duplicatePaths = new TreeSet<String>();
+		Map<String, String> toNodeIds = getNodeIdsByPath(toNodes, duplicatePaths);
+		Map<String, String> fromNodeIds = getNodeIdsByPath(fromNodes, duplicatePaths);
+		if(!duplicatePaths.isEmpty()){
+			//only one of the nodes with a path would get its permissions moved, so nothing is switched
+			StringBuilder report = new StringBuilder("More than one node has the same path in " + fromHierarchyId + " or " + toHierarchyId
+					+ ", so the permissions can't be matched up and " + fromHierarchyId + " is still active.  Merge or remove these nodes:\n\n");
+			appendPaths(report, new ArrayList<String>(duplicatePaths));
+			return report.toString();
+		}
+		List<String> unmatchedPaths = new ArrayList<String>();
+		for(Entry<String, String> entry : fromNodeIds.entrySet()){
+			String toNodeId = toNodeIds.get(entry.getKey());
+			if(toNodeId != null){
+				nodeIds.put(entry.getValue(), toNodeId);
+			}else{
+				unmatchedPaths.add(entry.getKey());
+			}
+		}
+		fromNodes = null;
+		toNodes = null;
+
+		//the hierarchies that may not be needed after the switch
+		Set<String> oldHierarchyIds = new HashSet<String>();
+		oldHierarchyIds.add(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_PREVIOUS_HIERARCHY_ID));
+		oldHierarchyIds.add(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_STAGING_HIERARCHY_ID));
+		if(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID) == null){
+			//the original hierarchy has always been active, save it so there is a row to switch
+			projectLogic.saveHierarchyPointer(DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID, fromHierarchyId);
+		}
+		jobLock.renew();
+		try{
+			new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					//the job's own dates, locks and hierarchy ids stay where they are
+					if(!dao.moveNodePermissions(nodeIds, DelegatedAccessConstants.SITE_HIERARCHY_USER)){
+						throw new IllegalStateException("Unable to move the permissions to " + toHierarchyId);
+					}
+					if(!projectLogic.swapActiveHierarchyId(fromHierarchyId, toHierarchyId)){
+						throw new IllegalStateException("The active hierarchy is no longer " + fromHierarchyId);
 					}
+					projectLogic.saveHierarchyPointer(DelegatedAccessConstants.NODE_PERM_PREVIOUS_HIERARCHY_ID, keepFrom ? fromHierarchyId : null);
+					projectLogic.saveHierarchyPointer(DelegatedAccessConstants.NODE_PERM_STAGING_HIERARCHY_ID, keepFrom ? null : fromHierarchyId);
 				}
+			});
+		}catch (Exception e) {
+			log.error(e.getMessage(), e);
+			StringWriter sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			return "Unable to switch from " + fromHierarchyId + " to " + toHierarchyId + ", " + fromHierarchyId + " is still active: " + e.getMessage() + "\n\n" + sw.toString();
+		}
+		//this server switches right away, the others when they receive the event
+		projectLogic.refreshActiveHierarchyId();
+		sakaiProxy.postEvent(DelegatedAccessConstants.EVENT_ACTIVE_HIERARCHY_CHANGED, "/hierarchy/" + toHierarchyId, false);
+		log.info("DelegatedAccessSiteHierarchyJob: switched from " + fromHierarchyId + " to " + toHierarchyId + " and moved the permissions of " + nodeIds.size() + " nodes");
+
+		oldHierarchyIds.remove(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_PREVIOUS_HIERARCHY_ID));
+		oldHierarchyIds.remove(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_STAGING_HIERARCHY_ID));
+		for(String hierarchyId : oldHierarchyIds){
+			destroyHierarchy(hierarchyId, jobLock);
+		}
+
+		if(!unmatchedPaths.isEmpty()){
+			Collections.sort(unmatchedPaths);
+			StringBuilder report = new StringBuilder("The active hierarchy was switched from " + fromHierarchyId + " to " + toHierarchyId
+					+ ". These nodes don't exist in " + toHierarchyId + ", so any permissions on them were not moved:\n\n");
+			appendPaths(report, unmatchedPaths);
+			sakaiProxy.sendEmail("DelegatedAccessSiteHierarchyJob switched hierarchies", report.toString());
+		}
+		return "";
+	}
+
+	private void appendPaths(StringBuilder report, List<String> paths){
+		for(int i = 0; i < paths.size() && i < MAX_PLAN_REPORT_LINES; i++){
+			report.append(paths.get(i)).append("\n");
+		}
+		if(paths.size() > MAX_PLAN_REPORT_LINES){
+			report.append("... and ").append(paths.size() - MAX_PLAN_REPORT_LINES).append(" more\n");
+		}
+	}
+
+	/**
+	 * returns path -> nodeId for a hierarchy's nodes.  A site's path is its reference, since the nodes above it change
+	 * with the hierarchy properties.  The other nodes' paths are their titles from the top level down, the root's is "".
+	 *
+	 * @param hierarchyNodes list of {nodeId, directParentIds, title, description}
+	 * @param duplicatePaths the paths that more than one node has are added to this
+	 * @return
+	 */
+	private Map<String, String> getNodeIdsByPath(List<String[]> hierarchyNodes, Set<String> duplicatePaths){
+		SiteHierarchyIndex index = new SiteHierarchyIndex(hierarchyNodes);
+		Map<String, String> nodeIds = new HashMap<String, String>();
+		for(String nodeId : index.getNodeIds()){
+			String title = index.getTitle(nodeId);
+			String path;
+			if(title != null && title.startsWith("/site/")){
+				path = title;
+			}else{
+				StringBuilder pathBuilder = new StringBuilder();
+				//guard against parent loops
+				String id = nodeId;
+				String parentId = index.getParentId(id);
+				for(int depth = 0; parentId != null && depth < 100; depth++){
+					pathBuilder.insert(0, "/" + index.getTitle(id));
+					id = parentId;
+					parentId = index.getParentId(id);
+				}
+				path = pathBuilder.toString();
 			}
-			if(!hasChild){
-				//if this parent/child relationship hasn't been created, create it
-				HierarchyNode newNode = hierarchyService.addNode(DelegatedAccessConstants.HIERARCHY_ID, parentNode.id);
-				hierarchyService.saveNodeMetaData(newNode.id, title, description, term);
-				hierarchyService.addChildRelation(parentNode.id, newNode.id);
-				node = newNode;
-				//since we don't want to keep lookup up the parent id after every child is added,
-				//(b/c the data is stale), just add this id to the set
-				parentNode.directChildNodeIds.add(node.id);
+			if(nodeIds.containsKey(path)){
+				duplicatePaths.add(path);
 			}else{
-				//just grab the node
-				node = hierarchyService.getNodeById(childNodeId);
-				if(!node.description.equals(description) || !node.title.equals(title)){
-					node = hierarchyService.saveNodeMetaData(node.id, title, description, term);
+				nodeIds.put(path, nodeId);
+			}
+		}
+		return nodeIds;
+	}
+
+	/**
+	 * Removes a hierarchy that isn't needed anymore.  The active one and the previous one are never removed.  The
+	 * original hierarchy's root holds the job lock and the hierarchy ids, so only the nodes under it are removed.
+	 *
+	 * @param hierarchyId
+	 * @param jobLock
+	 */
+	private void destroyHierarchy(String hierarchyId, JobLock jobLock){
+		if(hierarchyId == null || hierarchyId.equals(projectLogic.getActiveHierarchyId())
+				|| hierarchyId.equals(projectLogic.getHierarchyPointer(DelegatedAccessConstants.NODE_PERM_PREVIOUS_HIERARCHY_ID))){
+			return;
+		}
+		if(DelegatedAccessConstants.HIERARCHY_ID.equals(hierarchyId)){
+			pruneHierarchy(hierarchyId, jobLock);
+		}else if(hierarchyService.getRootNode(hierarchyId) != null){
+			hierarchyService.destroyHierarchy(hierarchyId);
+			//the hierarchy service leaves the permissions of the removed nodes behind
+			dao.cleanupOrphanedPermissions();
+			log.info("DelegatedAccessSiteHierarchyJob: removed the hierarchy " + hierarchyId);
+		}
+	}
+
+	/**
+	 * Removes every node of a hierarchy but its root.  A node is only removed once all of its children have been,
+	 * since the hierarchy service won't remove a node that still has children.
+	 *
+	 * @param hierarchyId
+	 * @param jobLock
+	 */
+	private void pruneHierarchy(String hierarchyId, JobLock jobLock){
+		List<String[]> hierarchyNodes = dao.getHierarchyNodes(hierarchyId);
+		if(hierarchyNodes == null){
+			log.error("DelegatedAccessSiteHierarchyJob: unable to load the nodes of " + hierarchyId + ", it was not pruned");
+			return;
+		}
+		//nodeId -> direct parent ids, and nodeId -> number of children that haven't been removed yet
+		Map<String, String[]> parentIds = new HashMap<String, String[]>();
+		Map<String, Integer> childCounts = new HashMap<String, Integer>();
+		for(String[] hierarchyNode : hierarchyNodes){
+			String directParentIds = hierarchyNode[1] == null ? "" : hierarchyNode[1].replaceAll("^:|:$", "");
+			String[] nodeParentIds = "".equals(directParentIds) ? new String[0] : directParentIds.split(":");
+			parentIds.put(hierarchyNode[0], nodeParentIds);
+			if(!childCounts.containsKey(hierarchyNode[0])){
+				childCounts.put(hierarchyNode[0], 0);
+			}
+			for(String parentId : nodeParentIds){
+				Integer count = childCounts.get(parentId);
+				childCounts.put(parentId, count == null ? 1 : count + 1);
+			}
+		}
+		hierarchyNodes = null;
+		LinkedList<String> leafNodeIds = new LinkedList<String>();
+		for(Entry<String, Integer> entry : childCounts.entrySet()){
+			if(entry.getValue() == 0){
+				leafNodeIds.add(entry.getKey());
+			}
+		}
+		int removed = 0;
+		while(!leafNodeIds.isEmpty()){
+			String nodeId = leafNodeIds.removeFirst();
+			String[] nodeParentIds = parentIds.get(nodeId);
+			if(nodeParentIds.length == 0){
+				//the root
+				continue;
+			}
+			jobLock.renew();
+			hierarchyService.removeNode(nodeId);
+			//since the hierarchy service doesn't really delete the nodes, we need to distinguish between deleted nodes
+			hierarchyService.setNodeDisabled(nodeId, true);
+			removed++;
+			for(String parentId : nodeParentIds){
+				int count = childCounts.get(parentId) - 1;
+				childCounts.put(parentId, count);
+				if(count == 0){
+					leafNodeIds.add(parentId);
 				}
 			}
 		}
-		return node;
+		//the hierarchy service leaves the permissions of the removed nodes behind
+		dao.cleanupOrphanedPermissions();
+		log.info("DelegatedAccessSiteHierarchyJob: removed " + removed + " nodes from " + hierarchyId + ", only its root is left");
 	}
+
+	/**
+	 * Adds each streamed site to the plan's desired tree
+	 */
+	private class PlanSiteHandler implements DelegatedAccessDao.SiteHandler {
+		private final HierarchyPlan plan;
+		private final String[] hierarchy;
+		private final String termField;
+		private final JobLock jobLock;
+		private int processedSites = 0;
+
+		public PlanSiteHandler(HierarchyPlan plan, String[] hierarchy, String termField, JobLock jobLock){
+			this.plan = plan;
+			this.hierarchy = hierarchy;
+			this.termField = termField;
+			this.jobLock = jobLock;
+		}
+
+		public void processSite(String siteId, String title, Map<String, String> props) {
+			jobLock.renew();
+			List<String> path = new ArrayList<String>(hierarchy.length);
+			for(String hiearchyProperty : hierarchy){
+				String siteProperty = props.get(hiearchyProperty);
+				if(siteProperty != null && !"".equals(siteProperty)){
+					path.add(siteProperty);
+				}else{
+					//nothing, so break
+					break;
+				}
+			}
+			//a site without any hierarchy information isn't in the desired tree, so its node is deleted
+			if(!path.isEmpty()){
+				plan.addSite("/site/" + siteId, title, props.get(termField), path);
+			}
+			processedSites++;
+		}
+	}
+
+	/**
+	 * Adds each streamed site to the hierarchy under the nodes for its hierarchy properties.  With more than one thread
+	 * the sites are handed to a pool of workers.  The queue is bounded and the streaming thread runs the site itself
+	 * when the queue is full, so the sites are never all read into memory.
+	 *
+	 * A site that fails is put on the retry list instead of stopping the run.  When a checkpoint is set, every
+	 * CHECKPOINT_INTERVAL sites the handler waits for the workers to catch up and saves the last site id and the retry
+	 * list, so a run that stops part way can be resumed from there.
+	 */
+	private class HierarchySiteHandler implements DelegatedAccessDao.SiteHandler {
+		private final SiteHierarchyUpdater updater;
+		private final ThreadPoolExecutor executor;
+		private final AtomicInteger processedSites = new AtomicInteger();
+		private final JobLock jobLock;
+		private final SiteErrors errors = new SiteErrors();
+		private final Set<String> retrySiteIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		private volatile boolean retryListFull = false;
+		//sites handed to the workers that haven't finished yet
+		private int queuedSites = 0;
+		private final Object queuedSitesLock = new Object();
+		private int streamedSites = 0;
+		private String checkpointNodeId;
+		private Checkpoint checkpoint;
+
+		public HierarchySiteHandler(SiteHierarchyUpdater updater, int threads, JobLock jobLock){
+			this.updater = updater;
+			this.jobLock = jobLock;
+			if(threads > 1){
+				executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * SITE_QUEUE_SIZE_PER_THREAD),
+						new ThreadPoolExecutor.CallerRunsPolicy());
+			}else{
+				executor = null;
+			}
+		}
+
+		/**
+		 * Saves checkpoints for this run on the node
+		 * @param nodeId
+		 * @param checkpoint
+		 * @param retrySiteIds the sites that failed in earlier runs, they stay on the retry list until they are added
+		 */
+		public void setCheckpoint(String nodeId, Checkpoint checkpoint, Set<String> retrySiteIds){
+			this.checkpointNodeId = nodeId;
+			this.checkpoint = checkpoint;
+			this.retrySiteIds.addAll(retrySiteIds);
+		}
+
+		public void processSite(final String siteId, final String title, final Map<String, String> props) {
+			jobLock.renew();
+			if(executor == null){
+				addSite(siteId, title, props);
+			}else{
+				synchronized (queuedSitesLock) {
+					queuedSites++;
+				}
+				executor.execute(new Runnable() {
+					public void run() {
+						try{
+							addSite(siteId, title, props);
+						}finally{
+							synchronized (queuedSitesLock) {
+								queuedSites--;
+								queuedSitesLock.notifyAll();
+							}
+						}
+					}
+				});
+			}
+			streamedSites++;
+			if(checkpoint != null && streamedSites % CHECKPOINT_INTERVAL == 0){
+				saveCheckpoint(siteId);
+			}
+		}
+
+		/**
+		 * Waits for every site up to this one to be added and saves the checkpoint
+		 * @param siteId
+		 */
+		private void saveCheckpoint(String siteId){
+			synchronized (queuedSitesLock) {
+				while(queuedSites > 0){
+					try{
+						queuedSitesLock.wait(60000);
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("DelegatedAccessSiteHierarchyJob was interrupted", e);
+					}
+					jobLock.renew();
+				}
+			}
+			if(!retryListFull){
+				//the retry list is saved first, so a failed site is never behind a saved checkpoint without being on it
+				projectLogic.saveHierarchyJobRetrySiteIds(checkpointNodeId, retrySiteIds);
+				checkpoint.siteId = siteId;
+				projectLogic.saveHierarchyJobCheckpoint(checkpointNodeId, checkpoint.toString());
+			}
+		}
+
+		/**
+		 * waits for the workers to finish the sites that have been queued
+		 * @throws InterruptedException
+		 */
+		public void finish() throws InterruptedException{
+			if(executor != null){
+				executor.shutdown();
+				while(!executor.awaitTermination(1, TimeUnit.MINUTES)){
+					jobLock.renew();
+				}
+			}
+		}
+
+		/**
+		 * stops the workers, any sites still queued are dropped
+		 */
+		public void shutdown(){
+			if(executor != null){
+				executor.shutdownNow();
+			}
+		}
+
+		/**
+		 * Tries the sites from earlier runs again that are still on the retry list, one at a time.  Sites that have been
+		 * deleted are dropped from the list.
+		 * @param siteIds
+		 * @param hierarchy
+		 * @param termField
+		 */
+		public void retrySites(Set<String> siteIds, String[] hierarchy, String termField){
+			for(String siteId : siteIds){
+				if(!retrySiteIds.contains(siteId)){
+					//this run already added it
+					continue;
+				}
+				jobLock.renew();
+				Site site = sakaiProxy.getSiteByRef("/site/" + siteId);
+				if(site == null){
+					retrySiteIds.remove(siteId);
+					continue;
+				}
+				Map<String, String> props = new HashMap<String, String>();
+				for(String hierarchyProperty : hierarchy){
+					props.put(hierarchyProperty, site.getProperties().getProperty(hierarchyProperty));
+				}
+				props.put(termField, site.getProperties().getProperty(termField));
+				addSite(siteId, site.getTitle(), props);
+			}
+		}
+
+		private void addSite(String siteId, String title, Map<String, String> props){
+			try{
+				updater.addSite(siteId, title, props);
+				retrySiteIds.remove(siteId);
+				int processed = processedSites.incrementAndGet();
+				if(processed % DelegatedAccessConstants.MAX_SITES_PER_PAGE == 0){
+					log.info("DelegatedAccessSiteHierarchyJob: processed " + processed + " sites");
+				}
+			}catch (Exception e) {
+				log.error(siteId + ": " + e.getMessage(), e);
+				errors.add(siteId, e);
+				if(retrySiteIds.size() < MAX_RETRY_SITES){
+					retrySiteIds.add(siteId);
+				}else if(!retrySiteIds.contains(siteId)){
+					retryListFull = true;
+				}
+			}
+		}
+
+		/**
+		 * returns the ids of the sites that still need to be added
+		 * @return
+		 */
+		public Set<String> getRetrySiteIds(){
+			return retrySiteIds;
+		}
+
+		/**
+		 * returns true if a site failed that didn't fit on the retry list
+		 * @return
+		 */
+		public boolean isRetryListFull(){
+			return retryListFull;
+		}
+
+		public String getErrors(){
+			return errors.getSummary();
+		}
+	}
+
+	/**
+	 * Counts the errors by message and keeps the stack traces of the first few, so a run with many failed
+	 * sites doesn't build a huge report
+	 */
+	private static class SiteErrors {
+		//message -> number of sites
+		private final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		private final StringBuilder traces = new StringBuilder();
+		private int failedSites = 0;
+		private int otherErrors = 0;
+
+		public synchronized void add(String siteId, Exception e){
+			failedSites++;
+			String message = e.getClass().getName() + ": " + e.getMessage();
+			Integer count = counts.get(message);
+			if(count != null){
+				counts.put(message, count + 1);
+			}else if(counts.size() < MAX_ERROR_MESSAGES){
+				counts.put(message, 1);
+			}else{
+				otherErrors++;
+			}
+			if(failedSites <= MAX_ERROR_TRACES){
+				StringWriter sw = new StringWriter();
+				e.printStackTrace(new PrintWriter(sw));
+				traces.append(siteId).append(": ").append(sw.toString()).append("\n");
+			}
+		}
+
+		/**
+		 * returns the summary or an empty string if there weren't any errors
+		 * @return
+		 */
+		public synchronized String getSummary(){
+			if(failedSites == 0){
+				return "";
+			}
+			StringBuilder summary = new StringBuilder();
+			summary.append(failedSites).append(" sites had errors:\n\n");
+			for(Entry<String, Integer> entry : counts.entrySet()){
+				summary.append(entry.getValue()).append(" x ").append(entry.getKey()).append("\n");
+			}
+			if(otherErrors > 0){
+				summary.append(otherErrors).append(" x other errors\n");
+			}
+			summary.append("\nThe first errors:\n\n").append(traces);
+			return summary.toString();
+		}
+	}
+
+	/**
+	 * Where an update run is: the time the run started, the modified date it reads sites from (null when it
+	 * reads every site) and the last site id it saved.  The sites are streamed in site id order, so every site up to
+	 * and including siteId has been added or put on the retry list.
+	 */
+	private static class Checkpoint {
+		private final long runStartTime;
+		private final Date modifiedSince;
+		private String siteId;
+
+		public Checkpoint(long runStartTime, Date modifiedSince, String siteId){
+			this.runStartTime = runStartTime;
+			this.modifiedSince = modifiedSince;
+			this.siteId = siteId;
+		}
+
+		/**
+		 * returns the checkpoint saved by toString or null if there isn't one
+		 * @param value
+		 * @return
+		 */
+		public static Checkpoint parse(String value){
+			if(value == null){
+				return null;
+			}
+			//the site id is last since it can contain ":"
+			String[] parts = value.split(":", 3);
+			if(parts.length != 3){
+				return null;
+			}
+			try{
+				Date modifiedSince = "".equals(parts[1]) ? null : new Date(Long.parseLong(parts[1]));
+				return new Checkpoint(Long.parseLong(parts[0]), modifiedSince, "".equals(parts[2]) ? null : parts[2]);
+			}catch (NumberFormatException e) {
+				//wrong format, start over
+				return null;
+			}
+		}
+
+		public String toString(){
+			return runStartTime + ":" + (modifiedSince == null ? "" : modifiedSince.getTime()) + ":" + (siteId == null ? "" : siteId);
+		}
+	}
+
 //
 //	//Only checks direct children b/c we want to ensure hierarchy didn't change (a child could have moved in the hierarchy)
 //	private String findChildIdFromReference(HierarchyNode parentNode, String childRef){
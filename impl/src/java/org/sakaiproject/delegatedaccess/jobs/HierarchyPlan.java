@@ -0,0 +1,299 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes needed to make the hierarchy match the site properties.  Every site is added to the desired tree
+ * with addSite, then diff() compares the desired tree to the current hierarchy (the index) and works out the
+ * smallest list of operations:
+ *
+ * CREATE a node that doesn't exist under its parent
+ * MOVE a site node that exists under another parent (so it keeps its id and permissions)
+ * UPDATE the title of a site node that was renamed
+ * DELETE the topmost nodes that aren't in the desired tree (their subtree is deleted with them)
+ *
+ * The operations are ordered so they can be applied in sequence: creates from the top down, then moves, updates
+ * and finally deletes.
+ */
+class HierarchyPlan {
+	public enum Type {CREATE, MOVE, UPDATE, DELETE}
+
+	private final SiteHierarchyIndex index;
+	private final String rootNodeId;
+	private final PlanNode root;
+	private List<Operation> operations;
+
+	public HierarchyPlan(SiteHierarchyIndex index, String rootNodeId){
+		this.index = index;
+		this.rootNodeId = rootNodeId;
+		this.root = new PlanNode(null, index.getTitle(rootNodeId), null, null);
+		this.root.nodeId = rootNodeId;
+	}
+
+	/**
+	 * A node in the desired tree, nodeId is set once it has been matched to an existing node or created
+	 */
+	public static class PlanNode {
+		private final PlanNode parent;
+		private final String title;
+		private final String description;
+		private final String term;
+		private final Map<String, PlanNode> children = new LinkedHashMap<String, PlanNode>();
+		private String nodeId;
+
+		private PlanNode(PlanNode parent, String title, String description, String term){
+			this.parent = parent;
+			this.title = title;
+			this.description = description;
+			this.term = term;
+		}
+
+		public PlanNode getParent() {
+			return parent;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public String getTerm() {
+			return term;
+		}
+
+		public String getNodeId() {
+			return nodeId;
+		}
+
+		public void setNodeId(String nodeId) {
+			this.nodeId = nodeId;
+		}
+
+		public boolean isSite(){
+			return title.startsWith("/site/");
+		}
+
+		public String getPath(){
+			return parent == null ? "" : parent.getPath() + "/" + title;
+		}
+	}
+
+	public static class Operation {
+		private final Type type;
+		private final PlanNode node;
+		private final String nodeId;
+		private final String fromParentId;
+
+		private Operation(Type type, PlanNode node, String nodeId, String fromParentId){
+			this.type = type;
+			this.node = node;
+			this.nodeId = nodeId;
+			this.fromParentId = fromParentId;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * the desired node, null for deletes
+		 * @return
+		 */
+		public PlanNode getNode() {
+			return node;
+		}
+
+		/**
+		 * the existing node this operation changes, null for creates
+		 * @return
+		 */
+		public String getNodeId() {
+			return nodeId;
+		}
+
+		/**
+		 * the parent a moved node is moved from
+		 * @return
+		 */
+		public String getFromParentId() {
+			return fromParentId;
+		}
+	}
+
+	/**
+	 * Adds a site to the desired tree
+	 * @param siteRef
+	 * @param title
+	 * @param term
+	 * @param path the site's hierarchy property values from the top level down, must not be empty
+	 */
+	public void addSite(String siteRef, String title, String term, List<String> path){
+		PlanNode parent = root;
+		for(String level : path){
+			PlanNode child = parent.children.get(level);
+			if(child == null){
+				child = new PlanNode(parent, level, level, null);
+				parent.children.put(level, child);
+			}
+			parent = child;
+		}
+		parent.children.put(siteRef, new PlanNode(parent, siteRef, title, term));
+		operations = null;
+	}
+
+	/**
+	 * Compares the desired tree to the index and returns the operations needed, in the order they need to be applied
+	 * @return
+	 */
+	public List<Operation> diff(){
+		if(operations == null){
+			List<Operation> creates = new ArrayList<Operation>();
+			List<Operation> moves = new ArrayList<Operation>();
+			List<Operation> updates = new ArrayList<Operation>();
+			Set<String> matched = new HashSet<String>();
+			matched.add(rootNodeId);
+			//the tree is only as deep as the number of hierarchy levels, so this can be recursive
+			diff(root, matched, creates, moves, updates);
+
+			List<Operation> deletes = new ArrayList<Operation>();
+			for(String nodeId : index.getNodeIds()){
+				//only the topmost node of a subtree that isn't wanted needs to be deleted
+				if(!matched.contains(nodeId) && matched.contains(index.getParentId(nodeId))){
+					deletes.add(new Operation(Type.DELETE, null, nodeId, null));
+				}
+			}
+
+			operations = new ArrayList<Operation>(creates.size() + moves.size() + updates.size() + deletes.size());
+			operations.addAll(creates);
+			operations.addAll(moves);
+			operations.addAll(updates);
+			operations.addAll(deletes);
+		}
+		return operations;
+	}
+
+	private void diff(PlanNode node, Set<String> matched, List<Operation> creates, List<Operation> moves, List<Operation> updates){
+		for(PlanNode child : node.children.values()){
+			String existingId = null;
+			if(node.nodeId != null){
+				for(String id : index.getNodeIds(child.title)){
+					if(!matched.contains(id) && index.isDirectChild(id, node.nodeId)){
+						existingId = id;
+						break;
+					}
+				}
+			}
+			if(existingId == null && child.isSite()){
+				//the site is somewhere else in the hierarchy
+				for(String id : index.getNodeIds(child.title)){
+					if(!matched.contains(id)){
+						existingId = id;
+						moves.add(new Operation(Type.MOVE, child, id, index.getParentId(id)));
+						break;
+					}
+				}
+			}
+			if(existingId != null){
+				child.nodeId = existingId;
+				matched.add(existingId);
+				String description = index.getDescription(existingId);
+				if(child.description == null ? description != null : !child.description.equals(description)){
+					updates.add(new Operation(Type.UPDATE, child, existingId, null));
+				}
+			}else{
+				creates.add(new Operation(Type.CREATE, child, null, null));
+			}
+			diff(child, matched, creates, moves, updates);
+		}
+	}
+
+	/**
+	 * returns the number of operations of this type
+	 * @param type
+	 * @return
+	 */
+	public int count(Type type){
+		int count = 0;
+		for(Operation operation : diff()){
+			if(operation.type == type){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public String getSummary(){
+		return "Site hierarchy plan: " + count(Type.CREATE) + " creates, " + count(Type.MOVE) + " moves, "
+			+ count(Type.UPDATE) + " updates, " + count(Type.DELETE) + " deletes";
+	}
+
+	/**
+	 * A readable list of the operations, for dry runs
+	 * @param maxLines only this many operations are listed
+	 * @return
+	 */
+	public String getReport(int maxLines){
+		List<Operation> ops = diff();
+		StringBuilder report = new StringBuilder();
+		report.append(getSummary()).append("\n\n");
+		for(int i = 0; i < ops.size() && i < maxLines; i++){
+			Operation operation = ops.get(i);
+			report.append(operation.type).append(" ");
+			switch (operation.type) {
+			case CREATE:
+				report.append(operation.node.getPath());
+				break;
+			case MOVE:
+				report.append(operation.node.title).append(" from ").append(getExistingPath(operation.fromParentId))
+					.append(" to ").append(operation.node.parent.getPath());
+				break;
+			case UPDATE:
+				report.append(operation.node.getPath()).append(" \"").append(index.getDescription(operation.nodeId))
+					.append("\" -> \"").append(operation.node.description).append("\"");
+				break;
+			case DELETE:
+				report.append(getExistingPath(operation.nodeId));
+				break;
+			}
+			report.append("\n");
+		}
+		if(ops.size() > maxLines){
+			report.append("... and ").append(ops.size() - maxLines).append(" more\n");
+		}
+		return report.toString();
+	}
+
+	private String getExistingPath(String nodeId){
+		StringBuilder path = new StringBuilder();
+		//guard against parent loops
+		for(int depth = 0; nodeId != null && !rootNodeId.equals(nodeId) && depth < 100; depth++){
+			path.insert(0, "/" + index.getTitle(nodeId));
+			nodeId = index.getParentId(nodeId);
+		}
+		return path.length() == 0 ? "/" : path.toString();
+	}
+}
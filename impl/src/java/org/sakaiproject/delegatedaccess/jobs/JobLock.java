@@ -0,0 +1,73 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import org.sakaiproject.delegatedaccess.logic.ProjectLogic;
+import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
+
+/**
+ * The site hierarchy job's cluster lock, renewed once a third of the lease has passed.  The site hierarchy job and
+ * the site hierarchy event queue share it, so only one of them changes the hierarchy at a time.
+ */
+class JobLock {
+	private final ProjectLogic projectLogic;
+	private final String nodeId;
+	private final long leaseMillis;
+	private String lock;
+	private long renewed = System.currentTimeMillis();
+
+	/**
+	 * Tries to take the lock
+	 *
+	 * @param projectLogic
+	 * @param nodeId the node the lock is saved on
+	 * @param leaseMillis
+	 * @return the lock, or null if another server holds it
+	 */
+	public static JobLock acquire(ProjectLogic projectLogic, String nodeId, long leaseMillis){
+		String lock = projectLogic.acquireJobLock(nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LOCK, leaseMillis);
+		return lock == null ? null : new JobLock(projectLogic, nodeId, lock, leaseMillis);
+	}
+
+	private JobLock(ProjectLogic projectLogic, String nodeId, String lock, long leaseMillis){
+		this.projectLogic = projectLogic;
+		this.nodeId = nodeId;
+		this.lock = lock;
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Extends the lock if it's due.  If another server has taken the lock over the work is stopped.
+	 */
+	public void renew(){
+		long now = System.currentTimeMillis();
+		if(lock != null && now - renewed > leaseMillis / 3){
+			lock = projectLogic.renewJobLock(nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LOCK, lock, leaseMillis);
+			if(lock == null){
+				throw new IllegalStateException("The site hierarchy job lock was lost, the job may be running on another server");
+			}
+			renewed = now;
+		}
+	}
+
+	public void release(){
+		if(lock != null){
+			projectLogic.releaseJobLock(nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LOCK, lock);
+			lock = null;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.apache.log4j.Logger;
+import org.sakaiproject.delegatedaccess.dao.DelegatedAccessDao;
+import org.sakaiproject.delegatedaccess.logic.ProjectLogic;
+import org.sakaiproject.delegatedaccess.logic.SakaiProxy;
+import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
+import org.sakaiproject.hierarchy.HierarchyService;
+import org.sakaiproject.hierarchy.model.HierarchyNode;
+import org.sakaiproject.site.api.Site;
+
+/**
+ * Sites that were added or updated on this server are queued here by DelegatedAccessObserver and a background
+ * thread places them in the hierarchy (or removes them) a few seconds later, with the same rules the site
+ * hierarchy job uses.  The site hierarchy job is still the safety net for anything that is missed here.
+ *
+ * Each batch holds (and renews) the site hierarchy job's cluster lock while it changes the hierarchy, so it never runs at the
+ * same time as the job or another server's queue.  If the lock is held the sites stay queued for the next batch.
+ *
+ * Only the nodes with the titles of the queued sites and their hierarchy property values are loaded, so a batch
+ * doesn't read the entire hierarchy.
+ */
+public class SiteHierarchyEventQueue {
+	private static final Logger log = Logger.getLogger(SiteHierarchyEventQueue.class);
+	//seconds between batches
+	private static final int QUEUE_DELAY = 10;
+	private static final int MAX_QUEUED_SITES = 10000;
+	private static final int MAX_BATCH_SIZE = 500;
+	private static final long LOCK_LEASE = 5 * 60000L;
+
+	@Getter @Setter
+	private HierarchyService hierarchyService;
+	@Getter @Setter
+	private SakaiProxy sakaiProxy;
+	@Getter @Setter
+	private DelegatedAccessDao dao;
+	@Getter @Setter
+	private ProjectLogic projectLogic;
+
+	private final Set<String> queuedSiteRefs = new LinkedHashSet<String>();
+	private ScheduledExecutorService executor;
+
+	public void init() {
+		if(!sakaiProxy.isSiteHierarchyEventsEnabled()){
+			log.info("Site hierarchy events are disabled, sites will only be added by the site hierarchy job");
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DelegatedAccessSiteHierarchyEventQueue");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try{
+					processQueue();
+				}catch (Exception e) {
+					//keep the thread running for the next batch
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, QUEUE_DELAY, QUEUE_DELAY, TimeUnit.SECONDS);
+	}
+
+	public void destroy() {
+		if(executor != null){
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queues a site to be placed in the hierarchy
+	 * @param siteRef
+	 */
+	public void add(String siteRef){
+		if(executor == null || siteRef == null || !siteRef.startsWith("/site/")){
+			return;
+		}
+		String siteId = siteRef.substring("/site/".length());
+		//user and special sites aren't part of the hierarchy
+		if("".equals(siteId) || siteId.startsWith("~") || siteId.startsWith("!")){
+			return;
+		}
+		synchronized (queuedSiteRefs) {
+			if(queuedSiteRefs.size() < MAX_QUEUED_SITES){
+				queuedSiteRefs.add(siteRef);
+			}else if(!queuedSiteRefs.contains(siteRef)){
+				//the site hierarchy job will pick it up
+				log.debug("The site hierarchy event queue is full, skipping " + siteRef);
+			}
+		}
+	}
+
+	private void processQueue(){
+		List<String> siteRefs = new ArrayList<String>();
+		synchronized (queuedSiteRefs) {
+			for(Iterator<String> i = queuedSiteRefs.iterator(); i.hasNext() && siteRefs.size() < MAX_BATCH_SIZE;){
+				siteRefs.add(i.next());
+				i.remove();
+			}
+		}
+		if(siteRefs.isEmpty()){
+			return;
+		}
+		//the lock is always on the root of the original hierarchy, even after the hierarchy has been rebuilt under a new id
+		HierarchyNode lockNode = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+		if(lockNode == null){
+			//the site hierarchy job hasn't created the hierarchy yet, it will add these sites when it does
+			return;
+		}
+		JobLock jobLock = JobLock.acquire(projectLogic, lockNode.id, LOCK_LEASE);
+		if(jobLock == null){
+			//the job is running, try again with the next batch
+			requeue(siteRefs);
+			return;
+		}
+		try{
+			long startTime = System.currentTimeMillis();
+			//the job may have switched to a rebuilt hierarchy while it held the lock
+			projectLogic.refreshActiveHierarchyId();
+			String hierarchyId = projectLogic.getActiveHierarchyId();
+			HierarchyNode rootNode = hierarchyService.getRootNode(hierarchyId);
+			if(rootNode == null){
+				return;
+			}
+			String[] hierarchy = sakaiProxy.getServerConfigurationStrings(DelegatedAccessConstants.HIERARCHY_SITE_PROPERTIES);
+			if(hierarchy == null || hierarchy.length == 0){
+				hierarchy = DelegatedAccessConstants.DEFAULT_HIERARCHY;
+			}
+			String termField = sakaiProxy.getTermField();
+
+			Map<String, Site> sites = new HashMap<String, Site>();
+			//the titles of the nodes the sites need
+			Set<String> titles = new HashSet<String>();
+			for(String siteRef : siteRefs){
+				Site site = sakaiProxy.getSiteByRef(siteRef);
+				if(site == null){
+					//deleted sites are removed by the observer
+					continue;
+				}
+				sites.put(site.getId(), site);
+				titles.add(siteRef);
+				for(String hierarchyProperty : hierarchy){
+					String value = site.getProperties().getProperty(hierarchyProperty);
+					if(value == null || "".equals(value)){
+						break;
+					}
+					titles.add(value);
+				}
+			}
+			if(sites.isEmpty()){
+				return;
+			}
+			jobLock.renew();
+			SiteHierarchyIndex index = getIndex(titles, hierarchyId);
+			if(index == null){
+				requeue(siteRefs);
+				return;
+			}
+
+			Set<String> changedNodeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			SiteHierarchyUpdater updater = new SiteHierarchyUpdater(hierarchyService, projectLogic, index, hierarchyId, rootNode.id, hierarchy, termField, true, changedNodeIds);
+			for(Site site : sites.values()){
+				//a batch of slow sites can outlast the lease
+				jobLock.renew();
+				Map<String, String> props = new HashMap<String, String>();
+				for(String hierarchyProperty : hierarchy){
+					props.put(hierarchyProperty, site.getProperties().getProperty(hierarchyProperty));
+				}
+				props.put(termField, site.getProperties().getProperty(termField));
+				try{
+					updater.addSite(site.getId(), site.getTitle(), props);
+				}catch (Exception e) {
+					//the site hierarchy job will try again
+					log.error("Unable to add " + site.getReference() + " to the hierarchy: " + e.getMessage(), e);
+				}
+			}
+
+			if(!changedNodeIds.isEmpty()){
+				projectLogic.invalidateNodeCache(changedNodeIds);
+				//new sites under a shopping period node need the shopping period settings applied
+				projectLogic.scheduleShoppingPeriodUpdate(changedNodeIds);
+			}
+			log.debug("SiteHierarchyEventQueue: placed " + sites.size() + " sites, " + changedNodeIds.size() + " nodes changed in " + (System.currentTimeMillis() - startTime) + " ms");
+		}finally{
+			jobLock.release();
+		}
+	}
+
+	/**
+	 * Loads the nodes with these titles, or returns null if they couldn't be read
+	 * @param titles
+	 * @param hierarchyId
+	 * @return
+	 */
+	private SiteHierarchyIndex getIndex(Set<String> titles, String hierarchyId){
+		Map<String, List<String>> titleNodeIds = dao.getNodesBySiteRef(titles.toArray(new String[titles.size()]), hierarchyId);
+		if(titleNodeIds == null){
+			return null;
+		}
+		Set<String> nodeIds = new HashSet<String>();
+		for(List<String> ids : titleNodeIds.values()){
+			nodeIds.addAll(ids);
+		}
+		List<String[]> hierarchyNodes = new ArrayList<String[]>();
+		if(!nodeIds.isEmpty()){
+			Map<String, HierarchyNode> nodes = hierarchyService.getNodesByIds(nodeIds.toArray(new String[nodeIds.size()]));
+			if(nodes == null){
+				return null;
+			}
+			for(HierarchyNode node : nodes.values()){
+				StringBuilder directParentIds = new StringBuilder(":");
+				if(node.directParentNodeIds != null){
+					for(String parentId : node.directParentNodeIds){
+						directParentIds.append(parentId).append(":");
+					}
+				}
+				hierarchyNodes.add(new String[]{node.id, directParentIds.toString(), node.title, node.description});
+			}
+		}
+		return new SiteHierarchyIndex(hierarchyNodes);
+	}
+
+	private void requeue(List<String> siteRefs){
+		for(String siteRef : siteRefs){
+			add(siteRef);
+		}
+	}
+}
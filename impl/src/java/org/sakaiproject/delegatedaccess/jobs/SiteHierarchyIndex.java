@@ -0,0 +1,157 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The title -> node lookup used by the site hierarchy job.  Every node in the hierarchy is loaded in one query
+ * when the job starts, and the job keeps it up to date as it adds and removes nodes, so checking whether a
+ * site or hierarchy level already exists doesn't need to go to the database.
+ *
+ * The job's workers share a single index, so all methods are synchronized on the index.
+ */
+class SiteHierarchyIndex {
+	private final Map<String, List<String>> titleNodeIds;
+	//nodeId -> {directParentIds, title, description}, directParentIds is in the hierarchy service's format (":id1:id2:")
+	private final Map<String, String[]> nodes;
+
+	/**
+	 * @param hierarchyNodes list of {nodeId, directParentIds, title, description}
+	 */
+	public SiteHierarchyIndex(List<String[]> hierarchyNodes){
+		titleNodeIds = new HashMap<String, List<String>>(hierarchyNodes.size() * 2);
+		nodes = new HashMap<String, String[]>(hierarchyNodes.size() * 2);
+		for(String[] node : hierarchyNodes){
+			add(node[0], node[1], node[2], node[3]);
+		}
+	}
+
+	private void add(String nodeId, String directParentIds, String title, String description){
+		nodes.put(nodeId, new String[]{directParentIds, title, description});
+		if(title != null){
+			List<String> nodeIds = titleNodeIds.get(title);
+			if(nodeIds == null){
+				nodeIds = new ArrayList<String>(1);
+				titleNodeIds.put(title, nodeIds);
+			}
+			nodeIds.add(nodeId);
+		}
+	}
+
+	/**
+	 * Adds a node that was just created
+	 * @param nodeId
+	 * @param parentId
+	 * @param title
+	 * @param description
+	 */
+	public synchronized void addNode(String nodeId, String parentId, String title, String description){
+		add(nodeId, ":" + parentId + ":", title, description);
+	}
+
+	/**
+	 * Removes a node that was just deleted.  Only the node itself is removed, so this is meant for site nodes (which have no children).
+	 * @param nodeId
+	 */
+	public synchronized void removeNode(String nodeId){
+		String[] node = nodes.remove(nodeId);
+		if(node != null && node[1] != null){
+			List<String> nodeIds = titleNodeIds.get(node[1]);
+			if(nodeIds != null){
+				nodeIds.remove(nodeId);
+				if(nodeIds.isEmpty()){
+					titleNodeIds.remove(node[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * returns a copy of the ids of the nodes with this title
+	 * @param title
+	 * @return
+	 */
+	public synchronized List<String> getNodeIds(String title){
+		List<String> nodeIds = titleNodeIds.get(title);
+		if(nodeIds == null){
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(nodeIds);
+	}
+
+	/**
+	 * returns true if parentId is one of the node's direct parents
+	 * @param nodeId
+	 * @param parentId
+	 * @return
+	 */
+	public synchronized boolean isDirectChild(String nodeId, String parentId){
+		String[] node = nodes.get(nodeId);
+		return node != null && node[0] != null && node[0].contains(":" + parentId + ":");
+	}
+
+	/**
+	 * returns the node's first direct parent or null if it has none
+	 * @param nodeId
+	 * @return
+	 */
+	public synchronized String getParentId(String nodeId){
+		String[] node = nodes.get(nodeId);
+		if(node != null && node[0] != null){
+			for(String parentId : node[0].split(":")){
+				if(!"".equals(parentId)){
+					return parentId;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * returns a copy of the ids of every node in the index
+	 * @return
+	 */
+	public synchronized List<String> getNodeIds(){
+		return new ArrayList<String>(nodes.keySet());
+	}
+
+	public synchronized String getTitle(String nodeId){
+		String[] node = nodes.get(nodeId);
+		return node == null ? null : node[1];
+	}
+
+	public synchronized String getDescription(String nodeId){
+		String[] node = nodes.get(nodeId);
+		return node == null ? null : node[2];
+	}
+
+	public synchronized void setDescription(String nodeId, String description){
+		String[] node = nodes.get(nodeId);
+		if(node != null){
+			node[2] = description;
+		}
+	}
+
+	public synchronized int size(){
+		return nodes.size();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.sakaiproject.delegatedaccess.logic.ProjectLogic;
+import org.sakaiproject.hierarchy.HierarchyService;
+import org.sakaiproject.hierarchy.model.HierarchyNode;
+
+/**
+ * Places a site in the hierarchy under the nodes for its hierarchy properties, adding any nodes that are missing.
+ * This is used by the site hierarchy job and by the site event queue, the index only needs to hold the nodes
+ * with the titles of the sites being placed and of their hierarchy property values.
+ *
+ * Sites can be added from several threads at once.  Checking for and adding a child holds a monitor for the
+ * parent so two threads can't add the same node.  The hierarchy service updates the child lists of every ancestor
+ * when a node is added or removed (which always includes the root), so those updates are done one at a time.
+ */
+class SiteHierarchyUpdater {
+	private final HierarchyService hierarchyService;
+	private final ProjectLogic projectLogic;
+	private final SiteHierarchyIndex index;
+	private final String hierarchyId;
+	private final String rootNodeId;
+	private final String[] hierarchy;
+	private final String termField;
+	private final boolean removeSitesWithoutHierarchy;
+	private final Set<String> changedNodeIds;
+	//parentNodeId -> monitor, held while checking for and adding a child
+	private final ConcurrentHashMap<String, Object> parentLocks = new ConcurrentHashMap<String, Object>();
+	private final Object structureLock = new Object();
+
+	/**
+	 * @param hierarchyService
+	 * @param projectLogic
+	 * @param index
+	 * @param hierarchyId the hierarchy new nodes are added to
+	 * @param rootNodeId
+	 * @param hierarchy the hierarchy site properties, from the top level down
+	 * @param termField
+	 * @param removeSitesWithoutHierarchy whether a site without any hierarchy properties is removed from the hierarchy
+	 * @param changedNodeIds the ids of the nodes that are added or changed are added to this, it must be thread safe
+	 */
+	public SiteHierarchyUpdater(HierarchyService hierarchyService, ProjectLogic projectLogic, SiteHierarchyIndex index, String hierarchyId,
+			String rootNodeId, String[] hierarchy, String termField, boolean removeSitesWithoutHierarchy, Set<String> changedNodeIds){
+		this.hierarchyService = hierarchyService;
+		this.projectLogic = projectLogic;
+		this.index = index;
+		this.hierarchyId = hierarchyId;
+		this.rootNodeId = rootNodeId;
+		this.hierarchy = hierarchy;
+		this.termField = termField;
+		this.removeSitesWithoutHierarchy = removeSitesWithoutHierarchy;
+		this.changedNodeIds = changedNodeIds;
+	}
+
+	/**
+	 * Adds the site to the hierarchy if the site has information (otherwise skip)
+	 * @param siteId
+	 * @param title
+	 * @param props the site's hierarchy and term properties
+	 */
+	public void addSite(String siteId, String title, Map<String, String> props){
+		String siteRef = "/site/" + siteId;
+		String siteParentNodeId = rootNodeId;
+
+		//find lowest hierarchy node:
+		for(String hiearchyProperty : hierarchy){
+			String siteProperty = props.get(hiearchyProperty);
+			if(siteProperty != null && !"".equals(siteProperty)){
+				siteParentNodeId = checkAndAddNode(siteParentNodeId, siteProperty, siteProperty, null);
+			}else{
+				//nothing, so break
+				break;
+			}
+		}
+
+		if(!rootNodeId.equals(siteParentNodeId)){
+			//save the site under the parent hierarchy if any data was found
+			checkAndAddNode(siteParentNodeId, siteRef, title, props.get(termField));
+		}else if(removeSitesWithoutHierarchy){
+			//make sure the site wasn't removed from the hierarchy:
+			for(String nodeId : index.getNodeIds(siteRef)){
+				removeNode(nodeId);
+			}
+		}
+	}
+
+	/**
+	 * Makes sure there is a node with this title under the parent node and returns its id, the node is created
+	 * if it doesn't exist yet.
+	 */
+	private String checkAndAddNode(String parentNodeId, String title, String description, String term){
+		String nodeId = null;
+		if(title != null && !"".equals(title)){
+			synchronized (getParentLock(parentNodeId)) {
+				boolean hasChild = false;
+				for(String id : index.getNodeIds(title)){
+					if(index.isDirectChild(id, parentNodeId)){
+						hasChild = true;
+						nodeId = id;
+					}else if(title.startsWith("/site/")){
+						//If this is a site, there should (and can only be) 1 parent, delete
+						//delete the other nodes since they are old
+						removeNode(id);
+					}
+				}
+				if(!hasChild){
+					//if this parent/child relationship hasn't been created, create it
+					synchronized (structureLock) {
+						HierarchyNode newNode = hierarchyService.addNode(hierarchyId, parentNodeId);
+						hierarchyService.saveNodeMetaData(newNode.id, title, description, term);
+						hierarchyService.addChildRelation(parentNodeId, newNode.id);
+						nodeId = newNode.id;
+					}
+					index.addNode(nodeId, parentNodeId, title, description);
+					changedNodeIds.add(nodeId);
+					changedNodeIds.add(parentNodeId);
+				}else if(description == null ? index.getDescription(nodeId) != null : !description.equals(index.getDescription(nodeId))){
+					hierarchyService.saveNodeMetaData(nodeId, title, description, term);
+					index.setDescription(nodeId, description);
+					changedNodeIds.add(nodeId);
+				}
+			}
+		}
+		return nodeId;
+	}
+
+	/**
+	 * Removes a site node, a site is only ever placed by one thread so its nodes aren't being used by any other thread
+	 * @param nodeId
+	 */
+	private void removeNode(String nodeId){
+		synchronized (structureLock) {
+			projectLogic.removeNode(hierarchyService.getNodeById(nodeId));
+		}
+		index.removeNode(nodeId);
+	}
+
+	private Object getParentLock(String parentNodeId){
+		Object parentLock = parentLocks.get(parentNodeId);
+		if(parentLock == null){
+			parentLock = new Object();
+			Object existing = parentLocks.putIfAbsent(parentNodeId, parentLock);
+			if(existing != null){
+				parentLock = existing;
+			}
+		}
+		return parentLock;
+	}
+}
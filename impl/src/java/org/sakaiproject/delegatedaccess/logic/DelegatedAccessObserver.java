@@ -16,6 +16,7 @@
 
 package org.sakaiproject.delegatedaccess.logic;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
@@ -25,6 +26,8 @@ import lombok.Getter;
 import lombok.Setter;
 
 import org.apache.log4j.Logger;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.delegatedaccess.jobs.SiteHierarchyEventQueue;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.EventTrackingService;
@@ -36,6 +39,9 @@ import org.sakaiproject.site.api.SiteService;
  * if they have any delegated access.  If so, then it populates the user's session with
  * the access information.
  * 
+ * Sites that are added or updated on this server are queued to be placed in the hierarchy.  Site and site realm
+ * changes on any server are queued to be updated in this server's site search index.
+ * 
  * @author Bryan Holladay (holladay@longsight.com)
  *
  */
@@ -44,12 +50,30 @@ public class DelegatedAccessObserver implements Observer {
 	private ProjectLogic projectLogic;
 	@Getter @Setter
 	private EventTrackingService eventTrackingService;	
+	@Getter @Setter
+	private SiteHierarchyEventQueue siteHierarchyEventQueue;
+	@Getter @Setter
+	private SiteSearchIndex siteSearchIndex;
 
 	private static final Logger log = Logger.getLogger(DelegatedAccessObserver.class);
 
 	public void init() {
 		log.info("init()");
 		eventTrackingService.addObserver(this);
+		//only the server the site was changed on queues it, otherwise every server would place the same site
+		eventTrackingService.addLocalObserver(new Observer() {
+			public void update(Observable arg0, Object arg) {
+				if (!(arg instanceof Event))
+					return;
+
+				Event event = (Event) arg;
+				if(SiteService.SECURE_ADD_SITE.equals(event.getEvent())
+						|| SiteService.SECURE_ADD_COURSE_SITE.equals(event.getEvent())
+						|| SiteService.SECURE_UPDATE_SITE.equals(event.getEvent())){
+					siteHierarchyEventQueue.add(event.getResource());
+				}
+			}
+		});
 	}
 
 	public void update(Observable arg0, Object arg) {
@@ -58,27 +82,114 @@ public class DelegatedAccessObserver implements Observer {
 
 		Event event = (Event) arg;
 
+		if(SiteService.SECURE_ADD_SITE.equals(event.getEvent())
+				|| SiteService.SECURE_ADD_COURSE_SITE.equals(event.getEvent())
+				|| SiteService.SECURE_UPDATE_SITE.equals(event.getEvent())
+				|| SiteService.SECURE_UPDATE_SITE_MEMBERSHIP.equals(event.getEvent())
+				|| SiteService.SECURE_REMOVE_SITE.equals(event.getEvent())){
+			siteSearchIndex.siteChanged(event.getResource());
+		}else if(AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP.equals(event.getEvent())
+				&& event.getResource() != null && event.getResource().startsWith("/realm//site/")){
+			//the site's instructors may have changed, the reference is /realm//site/{siteId}
+			siteSearchIndex.siteChanged(event.getResource().substring("/realm/".length()));
+		}else if(DelegatedAccessConstants.EVENT_SITE_SEARCH_INDEX_CATCH_UP.equals(event.getEvent())){
+			//the site hierarchy job finished (possibly on another server)
+			siteSearchIndex.catchUp();
+		}
+
 		// check the event function against the functions we have notifications watching for
 		if (UsageSessionService.EVENT_LOGIN.equals(event.getEvent())
 				|| UsageSessionService.EVENT_LOGIN_CONTAINER.equals(event.getEvent())) {
 			projectLogic.initializeDelegatedAccessSession();
 		}else if(SiteService.SECURE_REMOVE_SITE.equals(event.getEvent())){
 			//Site has been deleted, check if it exists and remove all nodes:
-			boolean deleted = false;
-			Map<String, List<String>> nodeIds = projectLogic.getNodesBySiteRef(new String[]{event.getResource()}, DelegatedAccessConstants.HIERARCHY_ID);
+			//(removeNode only evicts the removed nodes and their ancestors from the node cache)
+			Map<String, List<String>> nodeIds = projectLogic.getNodesBySiteRef(new String[]{event.getResource()}, projectLogic.getActiveHierarchyId());
 			if(nodeIds != null && nodeIds.containsKey(event.getResource())){
 				for(String nodeId : nodeIds.get(event.getResource())){
 					projectLogic.removeNode(nodeId);
-					deleted = true;
-				}
-				if(deleted){
-					projectLogic.clearNodeCache();
 				}
 			}
 		}else if(DelegatedAccessConstants.EVENT_CHECK_ACCESS.equals(event.getEvent())){
 			//this will set the Session attribute for this site and user
 			projectLogic.getCurrentUsersAccessToSite(event.getResource());
+		}else if(DelegatedAccessConstants.EVENT_NODE_CACHE_INVALIDATE.equals(event.getEvent())){
+			//nodes were changed (possibly on another server), the reference is /node/{id}/{id}...
+			//or just /node when too many nodes were changed to list
+			String reference = event.getResource();
+			if("/node".equals(reference)){
+				projectLogic.clearNodeCache();
+			}else if(reference != null && reference.startsWith("/node/")){
+				List<String> nodeIds = new ArrayList<String>();
+				for(String nodeId : reference.substring("/node/".length()).split("/")){
+					if(!"".equals(nodeId)){
+						nodeIds.add(nodeId);
+					}
+				}
+				projectLogic.evictCachedNodes(nodeIds);
+			}
+		}else if(DelegatedAccessConstants.EVENT_ACTIVE_HIERARCHY_CHANGED.equals(event.getEvent())){
+			//the site hierarchy job switched hierarchies (possibly on another server), don't wait for the cached id to expire
+			projectLogic.refreshActiveHierarchyId();
+			projectLogic.clearNodeCache();
+		}else if(DelegatedAccessConstants.EVENT_ADD_USER_PERMS.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_MODIFIED_USER_PERMS.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_DELETE_USER_PERMS.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_ADD_USER_SHOPPING_ADMIN.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_DELETE_USER_SHOPPING_ADMIN.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_ADD_USER_ACCESS_ADMIN.equals(event.getEvent())
+				|| DelegatedAccessConstants.EVENT_DELETE_USER_ACCESS_ADMIN.equals(event.getEvent())){
+			//the user's permissions were changed (possibly on another server), drop anything this server resolved from the old ones
+			String userId = getUserId(event.getResource());
+			if(userId != null){
+				projectLogic.evictUserAccess(userId);
+				String nodeId = getNodeId(event.getResource());
+				if(nodeId != null){
+					projectLogic.evictNodePermissions(userId, nodeId);
+				}
+				if(!DelegatedAccessConstants.EVENT_DELETE_USER_PERMS.equals(event.getEvent())
+						&& !DelegatedAccessConstants.EVENT_DELETE_USER_SHOPPING_ADMIN.equals(event.getEvent())
+						&& !DelegatedAccessConstants.EVENT_DELETE_USER_ACCESS_ADMIN.equals(event.getEvent())){
+					//the user may have been granted access on another server, make sure they aren't skipped here
+					projectLogic.addDelegatedAccessUser(userId);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * returns the user id from a "/user/{userId}/node/{nodeId}..." event reference
+	 * @param reference
+	 * @return
+	 */
+	private String getUserId(String reference){
+		if(reference != null && reference.startsWith("/user/")){
+			int end = reference.indexOf("/node/");
+			if(end > "/user/".length()){
+				return reference.substring("/user/".length(), end);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * returns the node id from a "/user/{userId}/node/{nodeId}..." event reference
+	 * @param reference
+	 * @return
+	 */
+	private String getNodeId(String reference){
+		if(reference != null && reference.startsWith("/user/")){
+			int start = reference.indexOf("/node/");
+			if(start > 0){
+				start += "/node/".length();
+				int end = reference.indexOf("/", start);
+				String nodeId = end < 0 ? reference.substring(start) : reference.substring(start, end);
+				if(!"".equals(nodeId)){
+					return nodeId;
+				}
+			}
 		}
+		return null;
 	}
 
 }
@@ -0,0 +1,302 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable copy of the structure of the delegated access hierarchy.  Every node gets an int index
+ * along with its parent, depth and the enter/exit position of an Euler tour of the tree, so
+ * "is this node under that node" is just two int comparisons instead of looking through the
+ * childNodeIds of the parent (which for the root node is the entire hierarchy).
+ *
+ * The snapshot is only as current as the last time it was built.  Nodes that aren't in the snapshot
+ * (added since or not reachable from the root) return false for contains() and callers should fall
+ * back to the hierarchy service for those.  Nodes that have moved, been removed or renamed since can be
+ * marked stale with withStaleNodes, which treats them and everything under them as missing until the
+ * snapshot is rebuilt.
+ */
+class HierarchySnapshot {
+	private final long created;
+	private final String[] ids;
+	private final String[] titles;
+	private final Map<String, Integer> indexes;
+	private final int[] parent;
+	private final int[] depth;
+	private final int[] enter;
+	private final int[] exit;
+	private final int[][] children;
+	//null if no nodes are stale
+	private final boolean[] stale;
+
+	/**
+	 * @param nodes list of {nodeId, directParentIds, title} where directParentIds is the hierarchy service
+	 * encoded list of parent ids (":id1:id2:")
+	 */
+	public HierarchySnapshot(List<String[]> nodes){
+		this.created = System.currentTimeMillis();
+		this.stale = null;
+		int size = nodes.size();
+		ids = new String[size];
+		titles = new String[size];
+		indexes = new HashMap<String, Integer>(size * 2);
+		parent = new int[size];
+		depth = new int[size];
+		enter = new int[size];
+		exit = new int[size];
+		for(int i = 0; i < size; i++){
+			String[] node = nodes.get(i);
+			ids[i] = node[0];
+			titles[i] = node[2];
+			indexes.put(node[0], i);
+		}
+
+		//the delegated access hierarchy is a tree, so only the first parent that exists is used
+		int[] childCount = new int[size];
+		for(int i = 0; i < size; i++){
+			parent[i] = -1;
+			String parentIds = nodes.get(i)[1];
+			if(parentIds != null){
+				for(String parentId : parentIds.split(":")){
+					Integer parentIndex = "".equals(parentId) ? null : indexes.get(parentId);
+					if(parentIndex != null && parentIndex != i){
+						parent[i] = parentIndex;
+						childCount[parentIndex]++;
+						break;
+					}
+				}
+			}
+		}
+		children = new int[size][];
+		for(int i = 0; i < size; i++){
+			children[i] = new int[childCount[i]];
+			childCount[i] = 0;
+		}
+		for(int i = 0; i < size; i++){
+			if(parent[i] >= 0){
+				children[parent[i]][childCount[parent[i]]++] = i;
+			}
+		}
+
+		//Euler tour starting at every root, done iteratively since the hierarchy can be deep and wide
+		for(int i = 0; i < size; i++){
+			enter[i] = -1;
+			exit[i] = -1;
+		}
+		int counter = 0;
+		int[] stack = new int[size];
+		int[] nextChild = new int[size];
+		for(int root = 0; root < size; root++){
+			if(parent[root] != -1){
+				continue;
+			}
+			int top = 0;
+			stack[0] = root;
+			depth[root] = 0;
+			enter[root] = counter++;
+			while(top >= 0){
+				int current = stack[top];
+				if(nextChild[current] < children[current].length){
+					int child = children[current][nextChild[current]++];
+					depth[child] = depth[current] + 1;
+					enter[child] = counter++;
+					stack[++top] = child;
+				}else{
+					exit[current] = counter++;
+					top--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A copy of source that shares its structure, with the stale nodes marked
+	 * @param source
+	 * @param stale
+	 */
+	private HierarchySnapshot(HierarchySnapshot source, boolean[] stale){
+		this.created = source.created;
+		this.ids = source.ids;
+		this.titles = source.titles;
+		this.indexes = source.indexes;
+		this.parent = source.parent;
+		this.depth = source.depth;
+		this.enter = source.enter;
+		this.exit = source.exit;
+		this.children = source.children;
+		this.stale = stale;
+	}
+
+	/**
+	 * returns a copy of this snapshot where these nodes and their subtrees are treated as missing, or this
+	 * snapshot if none of them are in it
+	 * @param nodeIds
+	 * @return
+	 */
+	public HierarchySnapshot withStaleNodes(Collection<String> nodeIds){
+		boolean[] newStale = null;
+		for(String nodeId : nodeIds){
+			Integer index = nodeId == null ? null : indexes.get(nodeId);
+			if(index != null){
+				if(newStale == null){
+					newStale = stale == null ? new boolean[ids.length] : stale.clone();
+				}
+				newStale[index] = true;
+			}
+		}
+		return newStale == null ? this : new HierarchySnapshot(this, newStale);
+	}
+
+	public boolean hasStaleNodes(){
+		return stale != null;
+	}
+
+	private int indexOf(String nodeId){
+		Integer index = nodeId == null ? null : indexes.get(nodeId);
+		//nodes in a parent loop are never reached from a root, treat them as missing
+		if(index == null || enter[index] == -1){
+			return -1;
+		}
+		if(stale != null){
+			//the hierarchy is only a few levels deep
+			for(int current = index; current != -1; current = parent[current]){
+				if(stale[current]){
+					return -1;
+				}
+			}
+		}
+		return index;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public int size(){
+		return ids.length;
+	}
+
+	public boolean contains(String nodeId){
+		return indexOf(nodeId) != -1;
+	}
+
+	/**
+	 * returns true if ancestorId is nodeId or one of its ancestors
+	 * @param ancestorId
+	 * @param nodeId
+	 * @return
+	 */
+	public boolean isAncestorOrSelf(String ancestorId, String nodeId){
+		int a = indexOf(ancestorId);
+		int n = indexOf(nodeId);
+		return a != -1 && n != -1 && enter[a] <= enter[n] && exit[n] <= exit[a];
+	}
+
+	/**
+	 * returns true if nodeId is one of the nodes in subtreeRootIds or is under one of them
+	 * @param nodeId
+	 * @param subtreeRootIds
+	 * @return
+	 */
+	public boolean isInSubtree(String nodeId, Collection<String> subtreeRootIds){
+		int n = indexOf(nodeId);
+		if(n == -1){
+			return false;
+		}
+		for(String rootId : subtreeRootIds){
+			int a = indexOf(rootId);
+			if(a != -1 && enter[a] <= enter[n] && exit[n] <= exit[a]){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Walks up from the node and returns the closest node that is in nodeIds, or null if there isn't one
+	 * @param nodeId
+	 * @param nodeIds
+	 * @param includeSelf whether nodeId itself can be returned
+	 * @return
+	 */
+	public String getNearestAncestor(String nodeId, Set<String> nodeIds, boolean includeSelf){
+		int n = indexOf(nodeId);
+		if(n == -1 || nodeIds.isEmpty()){
+			return null;
+		}
+		int current = includeSelf ? n : parent[n];
+		while(current != -1){
+			if(nodeIds.contains(ids[current])){
+				return ids[current];
+			}
+			current = parent[current];
+		}
+		return null;
+	}
+
+	/**
+	 * returns the ancestors of this node ordered from the root down to the direct parent
+	 * @param nodeId
+	 * @return
+	 */
+	public List<String> getAncestorIds(String nodeId){
+		int n = indexOf(nodeId);
+		if(n == -1){
+			return Collections.emptyList();
+		}
+		String[] ancestors = new String[depth[n]];
+		int current = parent[n];
+		for(int i = ancestors.length - 1; i >= 0; i--){
+			ancestors[i] = ids[current];
+			current = parent[current];
+		}
+		List<String> returnList = new ArrayList<String>(ancestors.length);
+		Collections.addAll(returnList, ancestors);
+		return returnList;
+	}
+
+	/**
+	 * returns the parent id or null if this is a root node (or isn't in the snapshot)
+	 * @param nodeId
+	 * @return
+	 */
+	public String getParentId(String nodeId){
+		int n = indexOf(nodeId);
+		return n == -1 || parent[n] == -1 ? null : ids[parent[n]];
+	}
+
+	/**
+	 * returns the depth of the node (root is 0) or -1 if it isn't in the snapshot
+	 * @param nodeId
+	 * @return
+	 */
+	public int getDepth(String nodeId){
+		int n = indexOf(nodeId);
+		return n == -1 ? -1 : depth[n];
+	}
+
+	public String getTitle(String nodeId){
+		int n = indexOf(nodeId);
+		return n == -1 ? null : titles[n];
+	}
+}
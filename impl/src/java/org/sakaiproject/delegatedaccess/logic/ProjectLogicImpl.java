@@ -23,14 +23,28 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
@@ -48,9 +62,12 @@ import org.sakaiproject.delegatedaccess.model.AccessSearchResult;
 import org.sakaiproject.delegatedaccess.model.HierarchyNodeSerialized;
 import org.sakaiproject.delegatedaccess.model.ListOptionSerialized;
 import org.sakaiproject.delegatedaccess.model.NodeModel;
+import org.sakaiproject.delegatedaccess.model.NodePermissions;
 import org.sakaiproject.delegatedaccess.model.SearchResult;
 import org.sakaiproject.delegatedaccess.model.SiteSearchResult;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResultPage;
 import org.sakaiproject.delegatedaccess.model.SiteSerialized;
+import org.sakaiproject.delegatedaccess.util.BoundedAccessMap;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessMutableTreeNode;
 import org.sakaiproject.hierarchy.HierarchyService;
@@ -92,10 +109,61 @@ public class ProjectLogicImpl implements ProjectLogic {
 	private ScheduledInvocationManager scheduledInvocationManager;
 	@Getter @Setter
 	private TimeService timeService;
+	@Getter @Setter
+	private SiteSearchIndex siteSearchIndex;
 	
 	private Cache restrictedPublicToolsCache;
 	
 	private Cache hierarchySearchCache;
+	//Stores the resolved site access (siteRef -> AccessNode) for each user so we only have to walk the hierarchy once per site
+	private Cache accessIndexCache;
+	//Stores the parsed permissions (nodeId:userId -> NodePermissions) so the raw permission strings are only parsed once
+	private Cache nodePermissionsCache;
+	//Stores every node permission a user has (userId -> UserAccessGrants), loaded in one query when the user logs in
+	private Cache userGrantsCache;
+	//userId;searchKey -> SiteSearchResults, the most recently used searches on this server.  This is a plain local map
+	//since the results are only paged through on the server that searched them and aren't serializable
+	private final Map<String, SiteSearchResults> siteSearchResults = new LinkedHashMap<String, SiteSearchResults>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, SiteSearchResults> eldest) {
+			return size() > MAX_SITE_SEARCH_RESULTS;
+		}
+	};
+	//Shares the denied tools arrays between sites and sessions, lazily created since tools register after this bean
+	private volatile ToolDictionary toolDictionary;
+	//In memory copy of the hierarchy structure, replaced (never modified) when it's rebuilt
+	private volatile HierarchySnapshot hierarchySnapshot;
+	private final Object hierarchySnapshotLock = new Object();
+	//counts the node changes, so a snapshot read before a change isn't swapped in after it (guarded by hierarchySnapshotLock)
+	private long hierarchySnapshotVersion = 0;
+	//held while the first snapshot is built, hierarchySnapshotLock is never held while reading the database
+	private final Object hierarchySnapshotBuildLock = new Object();
+	//rebuilds the snapshot in the background once nodes have changed or it has expired
+	private ScheduledExecutorService hierarchySnapshotExecutor;
+	private final AtomicBoolean hierarchySnapshotRefreshQueued = new AtomicBoolean(false);
+	private volatile long hierarchySnapshotRefreshed = 0;
+	//the snapshot is rebuilt at most this often, changed nodes fall back to the hierarchy service until then
+	private static final long HIERARCHY_SNAPSHOT_REFRESH_INTERVAL = 60000L;
+	//max number of nodes looked up in one call when loading nodes that aren't cached
+	private static final int NODE_LOOKUP_CHUNK_SIZE = 1000;
+	//SAKAI_EVENT.REF is 255 characters
+	private static final int EVENT_REF_MAX_LENGTH = 255;
+	//Every user that has delegated access permissions, users not in here are skipped without any lookups
+	private volatile Set<String> delegatedAccessUsers;
+	private volatile long delegatedAccessUsersLoaded;
+	private final Object delegatedAccessUsersLock = new Object();
+	private static final String SHOPPING_PERIOD_JOB_ID = "org.sakaiproject.delegatedaccess.jobs.DelegatedAccessShoppingPeriodJob";
+	//when more sites than this need the shopping period settings applied, the next job run updates the whole tree instead
+	private static final int MAX_SCHEDULED_SHOPPING_UPDATES = 1000;
+	//the active hierarchy id is read from the database at most this often, unless a dac.hierarchy.activechanged event arrives first
+	private static final long ACTIVE_HIERARCHY_ID_TTL = 60000L;
+	//how long a user's site search results are paged through before the search is run again
+	private static final long SITE_SEARCH_RESULTS_TTL = 5 * 60000L;
+	//how many site searches are kept to be paged through, across all users
+	private static final int MAX_SITE_SEARCH_RESULTS = 100;
+	private volatile String activeHierarchyId;
+	private volatile long activeHierarchyIdLoaded;
+	private final Object activeHierarchyIdLock = new Object();
 	/**
 	 * init - perform any actions required here for when this bean starts up
 	 */
@@ -105,6 +173,22 @@ public class ProjectLogicImpl implements ProjectLogic {
 		restrictedAuthToolsCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.restrictedAuthToolsCache");
 		restrictedPublicToolsCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.restrictedPublicToolsCache");
 		hierarchySearchCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.hierarchySearchCache");
+		accessIndexCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.accessIndexCache");
+		nodePermissionsCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.nodePermissionsCache");
+		userGrantsCache = memoryService.newCache("org.sakaiproject.delegatedaccess.logic.ProjectLogic.userGrantsCache");
+		hierarchySnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DelegatedAccessHierarchySnapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void destroy() {
+		if(hierarchySnapshotExecutor != null){
+			hierarchySnapshotExecutor.shutdownNow();
+		}
 	}
 
 	/**
@@ -220,10 +304,14 @@ public class ProjectLogicImpl implements ProjectLogic {
 			}
 		}
 		
+		//the user's permissions have changed, so anything resolved from them has to be looked up again
+		clearNodePermissions(userId, nodeModel.getNodeId());
+		clearAccessIndex(userId);
+		addDelegatedAccessUser(userId);
+		
 		if(DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId)){
 			// Remove any existing notifications for this node
-	    	DelayedInvocation[] fdi = scheduledInvocationManager.findDelayedInvocations("org.sakaiproject.delegatedaccess.jobs.DelegatedAccessShoppingPeriodJob",
-	    			nodeModel.getNode().id);
+	    	DelayedInvocation[] fdi = scheduledInvocationManager.findDelayedInvocations(SHOPPING_PERIOD_JOB_ID, nodeModel.getNode().id);
 	    	if (fdi != null && fdi.length > 0)
 	    	{
 	    		for (DelayedInvocation d : fdi)
@@ -232,9 +320,12 @@ public class ProjectLogicImpl implements ProjectLogic {
 	    		}
 	    	}
 			//update the shopping period site settings (realm, site properties, etc)
-			scheduledInvocationManager.createDelayedInvocation(timeService.newTime(),
-					"org.sakaiproject.delegatedaccess.jobs.DelegatedAccessShoppingPeriodJob",
-					nodeModel.getNode().id);
+			scheduledInvocationManager.createDelayedInvocation(timeService.newTime(), SHOPPING_PERIOD_JOB_ID, nodeModel.getNode().id);
+			//and again when the shopping period opens and closes, since the old invocations for this node were just removed
+			if(nodeModel.isDirectAccess()){
+				scheduleShoppingPeriodBoundary(nodeModel.getNode().id, nodeModel.getShoppingPeriodStartDate());
+				scheduleShoppingPeriodBoundary(nodeModel.getNode().id, nodeModel.getShoppingPeriodEndDate());
+			}
 		}
 	}
 
@@ -300,24 +391,266 @@ public class ProjectLogicImpl implements ProjectLogic {
 				
 	public void saveHierarchyJobLastRunDate(Date runDate, String nodeId){
 		if(runDate != null){
-			clearHierarchyJobLastRunDate(nodeId);
-			hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE + runDate.getTime(), false);
+			saveLastRunDate(nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE, runDate);
+		}
+	}
+	
+	public Date getHierarchyJobLastRunDate(String nodeId){
+		return getLastRunDate(nodeId, DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE);
+	}
+	
+	public String getHierarchyJobCheckpoint(String nodeId){
+		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId})){
+			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_CHECKPOINT)){
+				return perm.substring(DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_CHECKPOINT.length());
+			}
+		}
+		return null;
+	}
+	
+	public void saveHierarchyJobCheckpoint(String nodeId, String checkpoint){
+		String prefix = DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_CHECKPOINT;
+		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId})){
+			if(perm.startsWith(prefix)){
+				hierarchyService.removeUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, perm, false);
+			}
+		}
+		if(checkpoint != null){
+			hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, prefix + checkpoint, false);
+		}
+	}
+	
+	public Set<String> getHierarchyJobRetrySiteIds(String nodeId){
+		String prefix = DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_RETRY;
+		Set<String> siteIds = new HashSet<String>();
+		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId})){
+			if(perm.startsWith(prefix)){
+				siteIds.add(perm.substring(prefix.length()));
+			}
+		}
+		return siteIds;
+	}
+	
+	public void saveHierarchyJobRetrySiteIds(String nodeId, Set<String> siteIds){
+		String prefix = DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_RETRY;
+		Set<String> currentSiteIds = getHierarchyJobRetrySiteIds(nodeId);
+		//only add and remove the sites that changed
+		for(String siteId : currentSiteIds){
+			if(!siteIds.contains(siteId)){
+				hierarchyService.removeUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, prefix + siteId, false);
+			}
+		}
+		for(String siteId : siteIds){
+			if(!currentSiteIds.contains(siteId)){
+				hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, prefix + siteId, false);
+			}
+		}
+	}
+	
+	public Date getShoppingPeriodJobLastRunDate(){
+		HierarchyNode root = hierarchyService.getRootNode(getActiveHierarchyId());
+		if(root != null){
+			return getLastRunDate(root.id, DelegatedAccessConstants.NODE_PERM_SHOPPING_JOB_LAST_RUN_DATE);
+		}
+		return null;
+	}
+	
+	public void saveShoppingPeriodJobLastRunDate(Date runDate){
+		HierarchyNode root = hierarchyService.getRootNode(getActiveHierarchyId());
+		if(root != null){
+			saveLastRunDate(root.id, DelegatedAccessConstants.NODE_PERM_SHOPPING_JOB_LAST_RUN_DATE, runDate);
+		}
+	}
+	
+	public String acquireJobLock(String nodeId, String prefix, long leaseMillis){
+		Set<String> locks = getSiteHierarchyUserPerms(nodeId, prefix);
+		if(locks == null){
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		String current = null;
+		for(String lock : locks){
+			if(!prefix.equals(lock) && getJobLockExpiry(lock) > now){
+				log.info("The lock " + lock + " is held until " + new Date(getJobLockExpiry(lock)));
+				return null;
+			}
+			current = lock;
+		}
+		if(current == null){
+			//first run, add the released lock so there is a row to swap the lock into
+			hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, prefix, false);
+			current = prefix;
+		}
+		String lock = prefix + sakaiProxy.getServerId().replace(":", "") + "-" + UUID.randomUUID().toString() + ":" + (now + leaseMillis);
+		//only one server's update can match the value that was read
+		if(!dao.replaceNodePermission(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, current, lock)){
+			return null;
+		}
+		//two servers that both added the first row could each swap into their own row, back off if any other lock is held
+		locks = getSiteHierarchyUserPerms(nodeId, prefix);
+		if(locks == null){
+			releaseJobLock(nodeId, prefix, lock);
+			return null;
+		}
+		for(String otherLock : locks){
+			if(!prefix.equals(otherLock) && !lock.equals(otherLock) && getJobLockExpiry(otherLock) > now){
+				releaseJobLock(nodeId, prefix, lock);
+				return null;
+			}
+		}
+		return lock;
+	}
+	
+	public String renewJobLock(String nodeId, String prefix, String lock, long leaseMillis){
+		String renewedLock = lock.substring(0, lock.lastIndexOf(':') + 1) + (System.currentTimeMillis() + leaseMillis);
+		if(dao.replaceNodePermission(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, lock, renewedLock)){
+			return renewedLock;
+		}
+		return null;
+	}
+	
+	public void releaseJobLock(String nodeId, String prefix, String lock){
+		dao.replaceNodePermission(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, lock, prefix);
+	}
+	
+	public String getActiveHierarchyId(){
+		if(activeHierarchyId == null || System.currentTimeMillis() - activeHierarchyIdLoaded > ACTIVE_HIERARCHY_ID_TTL){
+			synchronized (activeHierarchyIdLock) {
+				//another thread may have already read it while we were waiting
+				if(activeHierarchyId == null || System.currentTimeMillis() - activeHierarchyIdLoaded > ACTIVE_HIERARCHY_ID_TTL){
+					refreshActiveHierarchyId();
+				}
+			}
+		}
+		return activeHierarchyId;
+	}
+	
+	public void refreshActiveHierarchyId(){
+		synchronized (activeHierarchyIdLock) {
+			String hierarchyId = DelegatedAccessConstants.HIERARCHY_ID;
+			HierarchyNode root = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+			if(root != null){
+				Set<String> perms = getSiteHierarchyUserPerms(root.id, DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID);
+				if(perms == null){
+					//keep using the current id and try again next time
+					if(activeHierarchyId != null){
+						activeHierarchyIdLoaded = System.currentTimeMillis();
+						return;
+					}
+				}else{
+					for(String perm : perms){
+						hierarchyId = perm.substring(DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID.length());
+					}
+				}
+			}
+			String oldHierarchyId = activeHierarchyId;
+			activeHierarchyId = hierarchyId;
+			activeHierarchyIdLoaded = System.currentTimeMillis();
+			if(oldHierarchyId != null && !oldHierarchyId.equals(hierarchyId)){
+				log.info("The active hierarchy changed from " + oldHierarchyId + " to " + hierarchyId);
+				//everything cached belongs to the old hierarchy
+				clearNodeCache();
+				refreshHierarchySnapshot();
+			}
+		}
+	}
+	
+	public boolean swapActiveHierarchyId(String fromHierarchyId, String toHierarchyId){
+		HierarchyNode root = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+		if(root == null){
+			return false;
+		}
+		return dao.replaceNodePermission(DelegatedAccessConstants.SITE_HIERARCHY_USER, root.id,
+				DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID + fromHierarchyId, DelegatedAccessConstants.NODE_PERM_ACTIVE_HIERARCHY_ID + toHierarchyId);
+	}
+	
+	public String getHierarchyPointer(String prefix){
+		HierarchyNode root = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+		if(root != null){
+			for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{root.id})){
+				if(perm.startsWith(prefix)){
+					return perm.substring(prefix.length());
+				}
+			}
+		}
+		return null;
+	}
+	
+	public void saveHierarchyPointer(String prefix, String hierarchyId){
+		HierarchyNode root = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+		if(root == null){
+			return;
+		}
+		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{root.id})){
+			if(perm.startsWith(prefix)){
+				hierarchyService.removeUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, root.id, perm, false);
+			}
+		}
+		if(hierarchyId != null){
+			hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, root.id, prefix + hierarchyId, false);
+		}
+	}
+	
+	/**
+	 * returns the site hierarchy user's permissions on the node that start with prefix (read from the database, not the
+	 * hierarchy service) or null if they couldn't be read
+	 * @param nodeId
+	 * @param prefix
+	 * @return
+	 */
+	private Set<String> getSiteHierarchyUserPerms(String nodeId, String prefix){
+		Map<String, Set<String>> nodesAndPerms = dao.getNodesAndPermsForUser(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId});
+		if(nodesAndPerms == null){
+			return null;
+		}
+		Set<String> locks = new HashSet<String>();
+		if(nodesAndPerms.containsKey(nodeId)){
+			for(String perm : nodesAndPerms.get(nodeId)){
+				if(perm.startsWith(prefix)){
+					locks.add(perm);
+				}
+			}
 		}
+		return locks;
 	}
-	private void clearHierarchyJobLastRunDate(String nodeId){
+	
+	/**
+	 * returns the expiry time of a lock, a released lock (or one in the wrong format) has expired
+	 * @param lock
+	 * @return
+	 */
+	private long getJobLockExpiry(String lock){
+		try{
+			return Long.parseLong(lock.substring(lock.lastIndexOf(':') + 1));
+		}catch (Exception e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Job run dates are saved as a permission for the site hierarchy user, this replaces the current date.
+	 * A null date just removes it.
+	 * @param nodeId
+	 * @param prefix
+	 * @param runDate
+	 */
+	private void saveLastRunDate(String nodeId, String prefix, Date runDate){
 		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId})){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE)){
+			if(perm.startsWith(prefix)){
 				hierarchyService.removeUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, perm, false);
 			}	
 		}
+		if(runDate != null){
+			hierarchyService.assignUserNodePerm(DelegatedAccessConstants.SITE_HIERARCHY_USER, nodeId, prefix + runDate.getTime(), false);
+		}
 	}
 	
-	public Date getHierarchyJobLastRunDate(String nodeId){
+	private Date getLastRunDate(String nodeId, String prefix){
 		Date returnDate = null;
 		for(String perm : hierarchyService.getPermsForUserNodes(DelegatedAccessConstants.SITE_HIERARCHY_USER, new String[]{nodeId})){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE)){
+			if(perm.startsWith(prefix)){
 				try{
-					returnDate = new Date(Long.parseLong(perm.substring(DelegatedAccessConstants.NODE_PERM_SITE_HIERARCHY_JOB_LAST_RUN_DATE.length())));
+					returnDate = new Date(Long.parseLong(perm.substring(prefix.length())));
 				}catch (Exception e) {
 					//wrong format, ignore
 				}
@@ -325,6 +658,131 @@ public class ProjectLogicImpl implements ProjectLogic {
 		}
 		return returnDate;
 	}
+	
+	public List<String> getShoppingPeriodNodesToUpdate(Date from, Date to){
+		UserAccessGrants grants = getUserAccessGrants(DelegatedAccessConstants.SHOPPING_PERIOD_USER);
+		if(grants == null){
+			return null;
+		}
+		Set<String> dueNodeIds = new HashSet<String>();
+		for(Set<String> nodeIds : getShoppingPeriodBoundaries(grants).subMap(from.getTime(), false, to.getTime(), true).values()){
+			dueNodeIds.addAll(nodeIds);
+		}
+		//updating a node updates its entire subtree, so skip any node that is under another due node
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		List<String> returnList = new ArrayList<String>();
+		for(String nodeId : dueNodeIds){
+			if(snapshot == null || snapshot.getNearestAncestor(nodeId, dueNodeIds, false) == null){
+				returnList.add(nodeId);
+			}
+		}
+		return returnList;
+	}
+	
+	public void scheduleShoppingPeriodBoundaries(){
+		UserAccessGrants grants = getUserAccessGrants(DelegatedAccessConstants.SHOPPING_PERIOD_USER);
+		if(grants == null){
+			return;
+		}
+		//nodeId -> dates the job is already scheduled for (in seconds), read for every node at once
+		Map<String, Set<Long>> scheduled = dao.getDelayedInvocationTimes(SHOPPING_PERIOD_JOB_ID);
+		//if that failed, look up each node's invocations instead
+		boolean lookupEachNode = scheduled == null;
+		if(lookupEachNode){
+			scheduled = new HashMap<String, Set<Long>>();
+		}
+		int count = 0;
+		for(Entry<Long, Set<String>> entry : getShoppingPeriodBoundaries(grants).tailMap(System.currentTimeMillis(), false).entrySet()){
+			for(String nodeId : entry.getValue()){
+				Set<Long> dates = scheduled.get(nodeId);
+				if(dates == null){
+					dates = new HashSet<Long>();
+					DelayedInvocation[] fdi = lookupEachNode ? scheduledInvocationManager.findDelayedInvocations(SHOPPING_PERIOD_JOB_ID, nodeId) : null;
+					if(fdi != null){
+						for(DelayedInvocation d : fdi){
+							if(d.date != null){
+								dates.add(d.date.getTime() / 1000);
+							}
+						}
+					}
+					scheduled.put(nodeId, dates);
+				}
+				if(dates.add(entry.getKey() / 1000)){
+					scheduledInvocationManager.createDelayedInvocation(timeService.newTime(entry.getKey()), SHOPPING_PERIOD_JOB_ID, nodeId);
+					count++;
+				}
+			}
+		}
+		log.debug("scheduleShoppingPeriodBoundaries: scheduled " + count + " invocations");
+	}
+	
+	public void scheduleShoppingPeriodUpdate(Collection<String> nodeIds){
+		if(nodeIds == null || nodeIds.isEmpty()){
+			return;
+		}
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		UserAccessGrants grants = getUserAccessGrants(DelegatedAccessConstants.SHOPPING_PERIOD_USER);
+		if(snapshot == null || grants == null){
+			//we can't tell which sites need to be updated, so have the next job run update the entire tree
+			saveShoppingPeriodJobLastRunDate(null);
+			return;
+		}
+		Set<String> shoppingNodeIds = grants.getAccessNodeIds();
+		List<String> updateNodeIds = new ArrayList<String>();
+		for(String nodeId : nodeIds){
+			String title = snapshot.getTitle(nodeId);
+			if(title != null && title.startsWith("/site/") && snapshot.getNearestAncestor(nodeId, shoppingNodeIds, true) != null){
+				updateNodeIds.add(nodeId);
+			}
+		}
+		if(updateNodeIds.size() > MAX_SCHEDULED_SHOPPING_UPDATES){
+			log.info("scheduleShoppingPeriodUpdate: " + updateNodeIds.size() + " sites need to be updated, the next shopping period job run will update the entire tree");
+			saveShoppingPeriodJobLastRunDate(null);
+		}else{
+			for(String nodeId : updateNodeIds){
+				scheduledInvocationManager.createDelayedInvocation(timeService.newTime(), SHOPPING_PERIOD_JOB_ID, nodeId);
+			}
+		}
+	}
+	
+	/**
+	 * returns start/end date -> ids of the nodes whose shopping period opens or closes at that time.  Only the dates
+	 * set directly on a node are included, nodes that inherit them are updated along with the node they inherit from.
+	 * @param grants the shopping period user's permissions
+	 * @return
+	 */
+	private NavigableMap<Long, Set<String>> getShoppingPeriodBoundaries(UserAccessGrants grants){
+		NavigableMap<Long, Set<String>> boundaries = new TreeMap<Long, Set<String>>();
+		for(Entry<String, NodePermissions> entry : grants.getNodePermissions().entrySet()){
+			if(entry.getValue().isDirectAccess()){
+				addShoppingPeriodBoundary(boundaries, entry.getValue().getShoppingStartDate(), entry.getKey());
+				addShoppingPeriodBoundary(boundaries, entry.getValue().getShoppingEndDate(), entry.getKey());
+			}
+		}
+		return boundaries;
+	}
+	
+	private void addShoppingPeriodBoundary(NavigableMap<Long, Set<String>> boundaries, Date date, String nodeId){
+		if(date != null){
+			Set<String> nodeIds = boundaries.get(date.getTime());
+			if(nodeIds == null){
+				nodeIds = new HashSet<String>();
+				boundaries.put(date.getTime(), nodeIds);
+			}
+			nodeIds.add(nodeId);
+		}
+	}
+	
+	/**
+	 * Schedules the shopping period job to run for this node at this date, if it hasn't passed yet
+	 * @param nodeId
+	 * @param date
+	 */
+	private void scheduleShoppingPeriodBoundary(String nodeId, Date date){
+		if(date != null && date.getTime() > System.currentTimeMillis()){
+			scheduledInvocationManager.createDelayedInvocation(timeService.newTime(date.getTime()), SHOPPING_PERIOD_JOB_ID, nodeId);
+		}
+	}
 
 	private void removeAllUserPermissions(String nodeId, String userId){
 		for(String perm : getPermsForUserNodes(userId, nodeId)){
@@ -337,6 +795,74 @@ public class ProjectLogicImpl implements ProjectLogic {
 				}
 			}
 		}
+		clearNodePermissions(userId, nodeId);
+		clearAccessIndex(userId);
+	}
+	
+	/**
+	 * removes the resolved site access and the loaded grants for this user, this needs to be called any time a user's permissions change
+	 * @param userId
+	 */
+	private void clearAccessIndex(String userId){
+		try{
+			accessIndexCache.remove(userId);
+			userGrantsCache.remove(userId);
+		}catch (Exception e) {
+			log.error("clearAccessIndex: " + userId, e);
+		}
+	}
+	
+	public void evictUserAccess(String userId){
+		clearAccessIndex(userId);
+	}
+	
+	public void evictNodePermissions(String userId, String nodeId){
+		clearNodePermissions(userId, nodeId);
+	}
+	
+	/**
+	 * returns every node permission this user has, loading them in a single query if they aren't cached yet
+	 * @param userId
+	 * @return null if the lookup failed
+	 */
+	private UserAccessGrants getUserAccessGrants(String userId){
+		Object el = userGrantsCache.get(userId);
+		if(el instanceof UserAccessGrants){
+			return (UserAccessGrants) el;
+		}
+		return loadUserAccessGrants(userId);
+	}
+	
+	/**
+	 * loads every node permission this user has in a single query and caches it, replacing anything already cached
+	 * @param userId
+	 * @return null if the lookup failed
+	 */
+	private UserAccessGrants loadUserAccessGrants(String userId){
+		Map<String, Set<String>> nodesAndPerms = dao.getAllNodesAndPermsForUser(userId);
+		if(nodesAndPerms == null){
+			return null;
+		}
+		UserAccessGrants grants = new UserAccessGrants(nodesAndPerms);
+		try{
+			userGrantsCache.put(userId, grants);
+		}catch (Exception e) {
+			log.error("getUserAccessGrants: " + userId, e);
+		}
+		return grants;
+	}
+	
+	/**
+	 * returns the resolved site access for this user, if nothing has been resolved yet, an empty index is returned
+	 * @param userId
+	 * @return
+	 */
+	private UserAccessIndex getUserAccessIndex(String userId){
+		Object el = accessIndexCache.get(userId);
+		if(el instanceof UserAccessIndex){
+			return (UserAccessIndex) el;
+		}
+		return new UserAccessIndex(sakaiProxy.getSessionAccessMapMax());
 	}
 
 	/**
@@ -405,10 +931,20 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 */
 	public void initializeDelegatedAccessSession(){
 		String userId = sakaiProxy.getCurrentUserId();
-		if(userId != null && !"".equals(userId)){
+		if(userId != null && !"".equals(userId) && isDelegatedAccessUser(userId)){
 			Session session = sakaiProxy.getCurrentSession();
-			Set accessNodes = getAccessNodesForUser(userId);
-			if(accessNodes != null && accessNodes.size() > 0){
+			//always read the user's grants fresh at login, site lookups for the rest of the session only need the site's node.
+			//anything resolved from the previously cached grants is dropped as well
+			accessIndexCache.remove(userId);
+			UserAccessGrants grants = loadUserAccessGrants(userId);
+			boolean hasAccess;
+			if(grants != null){
+				hasAccess = !grants.getAccessNodeIds().isEmpty();
+			}else{
+				Set accessNodes = getAccessNodesForUser(userId);
+				hasAccess = accessNodes != null && accessNodes.size() > 0;
+			}
+			if(hasAccess){
 				session.setAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DELEGATED_ACCESS_FLAG, true);
 				//need to clear sakai realm permissions cache for user since Denied Tools list is tied to
 				//session and permissions are a saved in a system cache
@@ -440,7 +976,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 
 	private HierarchyNodeSerialized getRootNode(){
-		return new HierarchyNodeSerialized(hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID));
+		return new HierarchyNodeSerialized(hierarchyService.getRootNode(getActiveHierarchyId()));
 	}
 
 	/**
@@ -482,23 +1018,56 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 
 	/**
-	 * returns the user's realm and role information for the given node.  Doesn't include inherited information, will return
-	 * a "" if not found.
+	 * returns the permissions the user has directly on this node (nothing inherited).  The parsed
+	 * permissions are cached until the user's permissions for this node are updated.
 	 * @param userId
 	 * @param nodeId
 	 * @return
 	 */
-	private String[] getAccessRealmRole(Set<String> perms){
-		String realmId = "";
-		String roleId = "";
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_REALM_PREFIX)){
-				realmId = perm.substring(DelegatedAccessConstants.NODE_PERM_REALM_PREFIX.length());
-			}else if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_ROLE_PREFIX)){
-				roleId = perm.substring(DelegatedAccessConstants.NODE_PERM_ROLE_PREFIX.length());
+	private NodePermissions getNodePermissions(String userId, String nodeId){
+		if(DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId)){
+			//the shopping period job walks the tree node by node, so all of the shopping period user's permissions
+			//are loaded once (and kept until they change) instead of looking up each node
+			UserAccessGrants grants = getUserAccessGrants(userId);
+			if(grants != null){
+				NodePermissions perms = grants.getNodePermissions().get(nodeId);
+				//nodes without any permissions aren't in the grants
+				return perms != null ? perms : NodePermissions.parse(null);
 			}
 		}
-		return new String[]{realmId, roleId};
+		String key = nodeId + ":" + userId;
+		Object el = nodePermissionsCache.get(key);
+		if(el instanceof NodePermissions){
+			return (NodePermissions) el;
+		}
+		NodePermissions perms = NodePermissions.parse(getPermsForUserNodes(userId, nodeId));
+		try{
+			nodePermissionsCache.put(key, perms);
+		}catch (Exception e) {
+			log.error("getNodePermissions: " + key, e);
+		}
+		return perms;
+	}
+	
+	private void clearNodePermissions(String userId, String nodeId){
+		try{
+			nodePermissionsCache.remove(nodeId + ":" + userId);
+		}catch (Exception e) {
+			log.error("clearNodePermissions: " + nodeId + ":" + userId, e);
+		}
+	}
+	
+	/**
+	 * parses a nodeId -> raw permissions map (as returned by the bulk lookups)
+	 * @param nodesAndPerms
+	 * @return
+	 */
+	private Map<String, NodePermissions> parseNodePermissions(Map<String, Set<String>> nodesAndPerms){
+		Map<String, NodePermissions> returnMap = new HashMap<String, NodePermissions>();
+		for(Entry<String, Set<String>> entry : nodesAndPerms.entrySet()){
+			returnMap.put(entry.getKey(), NodePermissions.parse(entry.getValue()));
+		}
+		return returnMap;
 	}
 
 	/**
@@ -507,17 +1076,17 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 * @param nodeId
 	 * @return
 	 */
-	public List<ListOptionSerialized> getRestrictedAuthToolSerializedList(Set<String> perms){
+	public List<ListOptionSerialized> getRestrictedAuthToolSerializedList(NodePermissions perms){
 		return getRestrictedAuthToolSerializedList(perms, getEntireToolsList());
 	}
 	
-	public List<ListOptionSerialized> getRestrictedPublicToolSerializedList(Set<String> perms){
+	public List<ListOptionSerialized> getRestrictedPublicToolSerializedList(NodePermissions perms){
 		return getRestrictedPublicToolSerializedList(perms, getEntireToolsList());
 	}
 
 
-	public List<ListOptionSerialized> getRestrictedAuthToolSerializedList(Set<String> perms, List<ListOptionSerialized> blankList){
-		List<String> restrictedTools = getRestrictedAuthToolsForUser(perms);
+	public List<ListOptionSerialized> getRestrictedAuthToolSerializedList(NodePermissions perms, List<ListOptionSerialized> blankList){
+		Set<String> restrictedTools = perms.getDeniedAuthToolSet();
 		for(ListOptionSerialized tool : blankList){
 			if(restrictedTools.contains(tool.getId()))
 				tool.setSelected(true);
@@ -525,8 +1094,8 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return blankList;
 	}
 	
-	public List<ListOptionSerialized> getRestrictedPublicToolSerializedList(Set<String> perms, List<ListOptionSerialized> blankList){
-		List<String> restrictedTools = getRestrictedPublicToolsForUser(perms);
+	public List<ListOptionSerialized> getRestrictedPublicToolSerializedList(NodePermissions perms, List<ListOptionSerialized> blankList){
+		Set<String> restrictedTools = perms.getDeniedPublicToolSet();
 		for(ListOptionSerialized tool : blankList){
 			if(restrictedTools.contains(tool.getId()))
 				tool.setSelected(true);
@@ -534,6 +1103,26 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return blankList;
 	}
 
+	private ToolDictionary getToolDictionary(){
+		ToolDictionary dictionary = toolDictionary;
+		if(dictionary == null){
+			synchronized (this) {
+				dictionary = toolDictionary;
+				if(dictionary == null){
+					Set<String> toolIds = new HashSet<String>();
+					for(Tool tool : sakaiProxy.getAllTools()){
+						toolIds.add(tool.getId());
+					}
+					//the home tool is special, so add this case
+					toolIds.add("Home");
+					dictionary = new ToolDictionary(toolIds);
+					toolDictionary = dictionary;
+				}
+			}
+		}
+		return dictionary;
+	}
+	
 	public List<ListOptionSerialized> getEntireToolsList(){
 		List<ListOptionSerialized> returnList = new ArrayList<ListOptionSerialized>();
 		for(Tool tool : sakaiProxy.getAllTools()){
@@ -552,26 +1141,6 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return returnList;
 	}
 
-	private List<String> getRestrictedAuthToolsForUser(Set<String> userPerms){
-		List<String> returnList = new ArrayList<String>();
-		for(String userPerm : userPerms){
-			if(userPerm.startsWith(DelegatedAccessConstants.NODE_PERM_DENY_TOOL_PREFIX)){
-				returnList.add(userPerm.substring(DelegatedAccessConstants.NODE_PERM_DENY_TOOL_PREFIX.length()));
-			}
-		}
-		return returnList;
-	}
-	
-	private List<String> getRestrictedPublicToolsForUser(Set<String> userPerms){
-		List<String> returnList = new ArrayList<String>();
-		for(String userPerm : userPerms){
-			if(userPerm.startsWith(DelegatedAccessConstants.NODE_PERM_DENY_TOOL2_PREFIX)){
-				returnList.add(userPerm.substring(DelegatedAccessConstants.NODE_PERM_DENY_TOOL2_PREFIX.length()));
-			}
-		}
-		return returnList;
-	}
-
 	private void saveRestrictedAuthToolsForUser(String userId, String nodeId, List<String> toolIds){
 		//add new tools:
 		for(String newTool : toolIds){
@@ -645,6 +1214,58 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return returnList;
 	}
 
+	public SiteSearchResultPage searchUserSites(String search, Map<String, Object> advancedOptions, boolean shoppingPeriod, boolean activeShoppingData,
+			int orderBy, boolean orderAsc, String afterSiteId, int offset, int limit){
+		String userId = sakaiProxy.getCurrentUserId();
+		String searchKey = getSiteSearchKey(search, advancedOptions, shoppingPeriod, activeShoppingData);
+		String resultsKey = userId + ";" + searchKey;
+		SiteSearchResults results;
+		synchronized (siteSearchResults) {
+			results = siteSearchResults.get(resultsKey);
+		}
+		if(results == null || System.currentTimeMillis() - results.getCreated() > SITE_SEARCH_RESULTS_TTL){
+			results = new SiteSearchResults(searchKey, searchUserSites(search, advancedOptions, shoppingPeriod, activeShoppingData));
+			synchronized (siteSearchResults) {
+				siteSearchResults.put(resultsKey, results);
+			}
+		}
+		return results.getPage(orderBy, orderAsc, afterSiteId, offset, limit);
+	}
+	
+	public void clearSiteSearchResults(){
+		String prefix = sakaiProxy.getCurrentUserId() + ";";
+		synchronized (siteSearchResults) {
+			for(Iterator<String> i = siteSearchResults.keySet().iterator(); i.hasNext();){
+				if(i.next().startsWith(prefix)){
+					i.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * returns a key that is the same for the same search, no matter what order the options were added in
+	 * @param search
+	 * @param advancedOptions
+	 * @param shoppingPeriod
+	 * @param activeShoppingData
+	 * @return
+	 */
+	private String getSiteSearchKey(String search, Map<String, Object> advancedOptions, boolean shoppingPeriod, boolean activeShoppingData){
+		StringBuilder key = new StringBuilder();
+		key.append(search == null ? "" : search).append(";").append(shoppingPeriod).append(";").append(activeShoppingData).append(";");
+		if(advancedOptions != null){
+			for(Entry<String, Object> entry : new TreeMap<String, Object>(advancedOptions).entrySet()){
+				Object value = entry.getValue();
+				if(value instanceof Map){
+					value = new TreeMap<Object, Object>((Map<?, ?>) value);
+				}
+				key.append(entry.getKey()).append("=").append(value).append(";");
+			}
+		}
+		return key.toString();
+	}
+
 	public Collection<SiteSearchResult> searchSites(String search, Map<String, Object> advancedOptions, boolean publishedSitesOnly){
 		if("".equals(search)){
 			search = null;
@@ -720,7 +1341,12 @@ public class ProjectLogicImpl implements ProjectLogic {
 		if(advancedOptions != null && advancedOptions.containsKey(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR_TYPE)){
 			instructorType = advancedOptions.get(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR_TYPE).toString();
 		}
-		List<Object[]> siteResults = dao.searchSites(search, propsMap, instructorMap.keySet().toArray(new String[instructorMap.keySet().size()]), instructorType, publishedSitesOnly);
+		String[] instructorIds = instructorMap.keySet().toArray(new String[instructorMap.keySet().size()]);
+		//the local site index answers most searches without scanning the site tables
+		List<Object[]> siteResults = siteSearchIndex.search(search, propsMap, instructorIds, instructorType, publishedSitesOnly);
+		if(siteResults == null){
+			siteResults = dao.searchSites(search, propsMap, instructorIds, instructorType, publishedSitesOnly);
+		}
 		if(siteResults != null && siteResults.size() > 0){
 			//create an array of the siteIds returned:
 			String[] siteIds = new String[siteResults.size()];
@@ -851,7 +1477,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 		
 		//Remove the shopping period nodes:
 		if(l1 != null){
-			HierarchyNode hierarchyRoot = hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID);
+			HierarchyNode hierarchyRoot = hierarchyService.getRootNode(getActiveHierarchyId());
 			String hierarchyRootId = "-1";
 			if(hierarchyRoot != null){
 				hierarchyRootId = hierarchyRoot.id;
@@ -957,132 +1583,6 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return model;
 	}
 
-	private Date getShoppingStartDate(Set<String> perms){
-		Date returnDate = null;
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_START_DATE)){
-				try{
-					returnDate = new Date(Long.parseLong(perm.substring(DelegatedAccessConstants.NODE_PERM_SHOPPING_START_DATE.length())));
-				}catch (Exception e) {
-					//wrong format, ignore
-				}
-			}
-		}
-
-		return returnDate;
-	}
-
-	private Date getShoppingEndDate(Set<String> perms){
-		Date returnDate = null;
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_END_DATE)){
-				try{
-					returnDate = new Date(Long.parseLong(perm.substring(DelegatedAccessConstants.NODE_PERM_SHOPPING_END_DATE.length())));
-				}catch (Exception e) {
-					//wrong format, ignore
-				}
-			}
-		}
-
-		return returnDate;
-	}
-
-	private Date getPermDate(Set<String> perms, String permName){
-		Date returnDate = null;
-		for(String perm : perms){
-			if(perm.startsWith(permName)){
-				try{
-					returnDate = new Date(Long.parseLong(perm.substring(permName.length())));
-				}catch (Exception e) {
-					//wrong format, ignore
-				}
-			}
-		}
-		return returnDate;
-	}
-
-	private String getShoppingAdminModifiedBy(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED_BY)){
-				return perm.substring(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED_BY.length());
-			}
-		}
-		return null;
-	}
-	
-	private String getModifiedBy(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_MODIFIED_BY)){
-				return perm.substring(DelegatedAccessConstants.NODE_PERM_MODIFIED_BY.length());
-			}
-		}
-		return null;
-	}
-	
-	
-	private boolean isShoppingPeriodAdmin(Set<String> perms){
-		for(String perm : perms){
-			if(perm.equals(DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN)){
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private boolean isShoppingPeriodRevokeInstructorEditable(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_REVOKE_INSTRUCTOR_EDITABLE)){
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private boolean isShoppingPeriodRevokeInstructorPublicOpt(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_SHOPPING_REVOKE_INSTRUCTOR_PUBLIC_OPT)){
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private boolean isAllowBecomeUser(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_ALLOW_BECOME_USER)){
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private boolean isInstructorEdited(Set<String> perms){
-		for(String perm : perms){
-			if(perm.startsWith(DelegatedAccessConstants.NODE_PERM_INSTRUCTOR_EDITED)){
-				return true;
-			}
-		}
-		return false;
-	}
-
-	private boolean getIsDirectAccess(Set<String> perms){
-		for(String perm : perms){
-			if(perm.equals(DelegatedAccessConstants.NODE_PERM_SITE_VISIT)){
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private boolean getIsAccessAdmin(Set<String> perms){
-		for(String perm : perms){
-			if(perm.equals(DelegatedAccessConstants.NODE_PERM_ACCESS_ADMIN)){
-				return true;
-			}
-		}
-		return false;
-	}
-
 	private List<ListOptionSerialized> copyListOptions(List<ListOptionSerialized> options){
 		List<ListOptionSerialized> returnList = new ArrayList<ListOptionSerialized>();
 		for(ListOptionSerialized option : options){
@@ -1125,25 +1625,24 @@ public class ProjectLogicImpl implements ProjectLogic {
 			List<ListOptionSerialized> restrictedPublicTools = copyListOptions(blankRestrictedTools);
 			boolean accessAdmin = accessAdminNodes.contains(node.id);
 			boolean shoppingPeriodAdmin = shoppingPeriodAdminNodes.contains(node.id);
-			Set<String> perms = null;
+			NodePermissions perms = null;
 			if((!shoppingPeriodTool && DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId)) || accessNodes.contains(node.id) || shoppingPeriodAdminNodes.contains(node.id)){
-				perms = getPermsForUserNodes(userId, node.id);
-				String[] realmRole = getAccessRealmRole(perms);
-				realm = realmRole[0];
-				role = realmRole[1];
-				startDate = getShoppingStartDate(perms);
-				endDate = getShoppingEndDate(perms);
+				perms = getNodePermissions(userId, node.id);
+				realm = perms.getRealm();
+				role = perms.getRole();
+				startDate = perms.getShoppingStartDate();
+				endDate = perms.getShoppingEndDate();
 				restrictedAuthTools = getRestrictedAuthToolSerializedList(perms, restrictedAuthTools);
 				restrictedPublicTools = getRestrictedPublicToolSerializedList(perms, restrictedPublicTools);
-				directAccess = getIsDirectAccess(perms);
-				shoppingAdminModified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED);
-				shoppingAdminModifiedBy = getShoppingAdminModifiedBy(perms);
-				modified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_MODIFIED);
-				modifiedBy = getModifiedBy(perms);
-				shoppingPeriodRevokeInstructorEditable = isShoppingPeriodRevokeInstructorEditable(perms);
-				shoppingPeriodRevokeInstructorPublicOpt = isShoppingPeriodRevokeInstructorPublicOpt(perms);
-				allowBecomeUser = isAllowBecomeUser(perms);
-				instructorEdited = isInstructorEdited(perms);
+				directAccess = perms.isDirectAccess();
+				shoppingAdminModified = perms.getShoppingAdminModified();
+				shoppingAdminModifiedBy = perms.getShoppingAdminModifiedBy();
+				modified = perms.getModified();
+				modifiedBy = perms.getModifiedBy();
+				shoppingPeriodRevokeInstructorEditable = perms.isShoppingPeriodRevokeInstructorEditable();
+				shoppingPeriodRevokeInstructorPublicOpt = perms.isShoppingPeriodRevokeInstructorPublicOpt();
+				allowBecomeUser = perms.isAllowBecomeUser();
+				instructorEdited = perms.isInstructorEdited();
 			}
 			NodeModel parentNodeModel = null;
 			if(parent != null){
@@ -1175,9 +1674,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 				//we need to make sure we keep track of the subadmin's permissions if subAdminsSiteAccessNodes is set
 				for(String nodeId : subAdminsSiteAccessNodes){
 					if(childNodeModel.getNodeId().equals(nodeId)){
-						Set<String> permsSubAdmin = getPermsForUserNodes(sakaiProxy.getCurrentUserId(), nodeId);
-						String[] realmRole = getAccessRealmRole(permsSubAdmin);
-						childNodeModel.setSubAdminSiteAccess(realmRole);
+						childNodeModel.setSubAdminSiteAccess(getNodePermissions(sakaiProxy.getCurrentUserId(), nodeId).getAccess());
 					}
 				}
 
@@ -1242,6 +1739,10 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 * @return
 	 */
 	private List<String> getOrderedParentsList(HierarchyNodeSerialized node){
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		if(snapshot != null && snapshot.contains(node.id)){
+			return snapshot.getAncestorIds(node.id);
+		}
 		String directParentId = null;
 		if(node.directParentNodeIds != null && node.directParentNodeIds.size() > 0){
 			directParentId = node.directParentNodeIds.toArray(new String[node.directParentNodeIds.size()])[0];
@@ -1263,41 +1764,30 @@ public class ProjectLogicImpl implements ProjectLogic {
 		}
 	}
 	private List<List> getTreeListForUser(String userId, boolean addDirectChildren, boolean cascade, Set<HierarchyNodeSerialized> nodes){
-		List<List> l1 = new ArrayList<List>();
-		List<List> currentLevel = l1;
+		TreeListBuilder tree = new TreeListBuilder();
+		//parents whose direct children have already been added
+		Set<String> expandedNodeIds = new HashSet<String>();
 
 		for(HierarchyNodeSerialized node : nodes){
-			for(String parentId : getOrderedParentsList(node)){
-				HierarchyNodeSerialized parentNode = getCachedNode(parentId);
-
-				if(!hasNode(parentNode, currentLevel)){
-					List newNode = new ArrayList();
-					newNode.add(parentNode);
-					newNode.add(new ArrayList());
-					currentLevel.add(newNode);
-				}
-				currentLevel = getChildrenForNode(parentNode.id, currentLevel);
-				if(addDirectChildren){
-					for(List nodeList : getDirectChildren(parentNode)){
-						if(!hasNode((HierarchyNodeSerialized) nodeList.get(0), currentLevel)){
-							currentLevel.add(nodeList);
-						}
+			List<List> currentLevel = tree.getRoots();
+			for(HierarchyNodeSerialized parentNode : getCachedNodes(getOrderedParentsList(node))){
+				currentLevel = tree.add(parentNode, currentLevel);
+				if(addDirectChildren && expandedNodeIds.add(parentNode.id)){
+					for(HierarchyNodeSerialized childNode : getCachedNodes(parentNode.directChildNodeIds)){
+						tree.add(childNode, currentLevel);
 					}
 				}
 			}
 
-			if(!hasNode(node, currentLevel)){
-				List child = new ArrayList();
-				child.add(node);
-				child.add(new ArrayList());
-				currentLevel.add(child);
-			}
+			List<List> children = tree.add(node, currentLevel);
 			if(cascade){
 				//we need to grab all children (children of children, ect) for this node since this an access node
-				getCascadingChildren(node, getChildrenForNode(node.id, currentLevel));
+				//load the whole subtree up front, otherwise each level is looked up separately
+				getCachedNodes(node.childNodeIds);
+				getCascadingChildren(node, children, tree);
 			}
-			currentLevel = l1;
 		}
+		List<List> l1 = tree.getRoots();
 		if(l1.isEmpty() && addDirectChildren){
 			//since we want direct children, include the root's direct children (when the node model is empty)
 			HierarchyNodeSerialized root = getRootNode();
@@ -1320,7 +1810,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 * @param id
 	 * @return
 	 */
-	private HierarchyNodeSerialized getCachedNode(String id){
+	HierarchyNodeSerialized getCachedNode(String id){
 		Object el = nodeCache.get(id);
 		HierarchyNodeSerialized node = null;
 		if(el == null){
@@ -1337,20 +1827,46 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 
 	/**
-	 * returns the children for this node
+	 * Same as getCachedNode for a list of ids, except all the nodes that aren't cached are looked up
+	 * together (NODE_LOOKUP_CHUNK_SIZE at a time) instead of one at a time.
 	 * 
-	 * @param id
-	 * @param level
-	 * @return
+	 * @param ids
+	 * @return the nodes in the same order as ids
 	 */
-	private List<List> getChildrenForNode(String id, List<List> level){
-		for(List nodeList : level){
-			HierarchyNodeSerialized n = (HierarchyNodeSerialized) nodeList.get(0);
-			if(n.id.equals(id)){
-				return (List<List>) nodeList.get(1);
+	private List<HierarchyNodeSerialized> getCachedNodes(Collection<String> ids){
+		List<HierarchyNodeSerialized> returnList = new ArrayList<HierarchyNodeSerialized>(ids.size());
+		Map<String, HierarchyNodeSerialized> found = new HashMap<String, HierarchyNodeSerialized>();
+		List<String> missingIds = new ArrayList<String>();
+		for(String id : ids){
+			Object el = nodeCache.get(id);
+			if(el instanceof HierarchyNodeSerialized){
+				found.put(id, (HierarchyNodeSerialized) el);
+			}else if(el == null && !found.containsKey(id)){
+				missingIds.add(id);
+			}
+			//mark it as seen so duplicate ids are only looked up once
+			if(!found.containsKey(id)){
+				found.put(id, null);
+			}
+		}
+		for(int i = 0; i < missingIds.size(); i += NODE_LOOKUP_CHUNK_SIZE){
+			List<String> subList = missingIds.subList(i, Math.min(i + NODE_LOOKUP_CHUNK_SIZE, missingIds.size()));
+			Map<String, HierarchyNode> nodes = hierarchyService.getNodesByIds(subList.toArray(new String[subList.size()]));
+			for(String id : subList){
+				//nodes that don't exist are cached the same way getCachedNode does
+				HierarchyNodeSerialized node = new HierarchyNodeSerialized(nodes == null ? null : nodes.get(id));
+				found.put(id, node);
+				try{
+					nodeCache.put(id, node);
+				}catch (Exception e) {
+					log.error("getCachedNodes: " + id, e);
+				}
 			}
 		}
-		return null;
+		for(String id : ids){
+			returnList.add(found.get(id));
+		}
+		return returnList;
 	}
 
 	/**
@@ -1363,10 +1879,9 @@ public class ProjectLogicImpl implements ProjectLogic {
 		List<List>returnList = new ArrayList<List>();
 
 		if(parent != null){
-			Set<String> parentChildren = parent.directChildNodeIds;
-			for(String childId : parentChildren){
+			for(HierarchyNodeSerialized childNode : getCachedNodes(parent.directChildNodeIds)){
 				List child = new ArrayList();
-				child.add(getCachedNode(childId));
+				child.add(childNode);
 				child.add(new ArrayList());
 				returnList.add(child);
 			}
@@ -1375,49 +1890,48 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 
 	/**
-	 * Finds all children of chilren and returns the hierarchy
+	 * Finds all children of chilren and adds them to the tree
 	 * 
 	 * @param parent
-	 * @param children
-	 * @return
+	 * @param children the parent's children list
+	 * @param tree
 	 */
-	private List<List> getCascadingChildren(HierarchyNodeSerialized parent, List<List> children){
-		Set<String> parentChildren = parent.directChildNodeIds;
-		for(String childId : parentChildren){
-			HierarchyNodeSerialized childNode = getCachedNode(childId);
-
-			List childMap = getChildrenForNode(childNode.id, children);
-			if(childMap == null){
-				childMap = new ArrayList();
-			}
-
-			childMap = getCascadingChildren(childNode, childMap);
-			if(!hasNode(childNode, children)){
-				List childList = new ArrayList();
-				childList.add(childNode);
-				childList.add(childMap);
-				children.add(childList);
-			}
+	private void getCascadingChildren(HierarchyNodeSerialized parent, List<List> children, TreeListBuilder tree){
+		for(HierarchyNodeSerialized childNode : getCachedNodes(parent.directChildNodeIds)){
+			getCascadingChildren(childNode, tree.add(childNode, children), tree);
 		}
-
-		return children;
 	}
 
 	/**
-	 * checks if the node exist in the list
-	 * 
-	 * @param node
-	 * @param level
-	 * @return
+	 * Builds the List{ List{node, List<children>}, ...} representation of the tree.  Every node is indexed by id
+	 * so finding a node that has already been added doesn't need to scan its level.  A node is only ever added once,
+	 * since it can only have one place in the tree.
 	 */
-	private boolean hasNode(HierarchyNodeSerialized node, List<List> level){
-		for(List nodeList : level){
-			HierarchyNodeSerialized n = (HierarchyNodeSerialized) nodeList.get(0);
-			if(n.id.equals(node.id)){
-				return true;
+	private class TreeListBuilder{
+		private final List<List> roots = new ArrayList<List>();
+		private final Map<String, List> nodeLists = new HashMap<String, List>();
+
+		public List<List> getRoots(){
+			return roots;
+		}
+
+		/**
+		 * adds the node to level unless it's already in the tree
+		 * @param node
+		 * @param level
+		 * @return the node's children list
+		 */
+		public List<List> add(HierarchyNodeSerialized node, List<List> level){
+			List nodeList = nodeLists.get(node.id);
+			if(nodeList == null){
+				nodeList = new ArrayList();
+				nodeList.add(node);
+				nodeList.add(new ArrayList());
+				level.add(nodeList);
+				nodeLists.put(node.id, nodeList);
 			}
+			return (List<List>) nodeList.get(1);
 		}
-		return false;
 	}
 
 	/**
@@ -1433,29 +1947,55 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 * @return
 	 */
 	public boolean addChildrenNodes(Object node, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, List<String> accessAdminNodes, boolean shopping, boolean shoppingPeriodTool){
+		return addChildrenNodes(node, userId, blankRestrictedTools, onlyAccessNodes, accessAdminNodes, shopping, shoppingPeriodTool, 0);
+	}
+
+	public boolean addChildrenNodes(Object node, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, List<String> accessAdminNodes, boolean shopping, boolean shoppingPeriodTool, int pageSize){
 		boolean anyAdded = false;
 		Set<String> addedSites = new HashSet<String>();
 		DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) node;
 		NodeModel nodeModel = (NodeModel) ((DefaultMutableTreeNode) node).getUserObject();
 		if(nodeModel.getNode() != null){
-			List<List> childrenNodes = getDirectChildren(nodeModel.getNode());
-			Collections.sort(childrenNodes, new NodeListComparator());
-			for(List childList : childrenNodes){
+			//the "load more" node is added back at the end if there are still more children
+			Set<String> existingChildIds = new HashSet<String>();
+			for(int i = parentNode.getChildCount() - 1; i >= 0; i--){
+				DefaultMutableTreeNode child = (DefaultMutableTreeNode) parentNode.getChildAt(i);
+				if(((NodeModel) child.getUserObject()).isLoadMoreNode()){
+					parentNode.remove(i);
+				}else{
+					existingChildIds.add(((NodeModel) child.getUserObject()).getNodeId());
+				}
+			}
+			List<String> childIds = getOrderedChildIds(nodeModel.getNode());
+			int start = Math.min(nodeModel.getChildrenLoaded(), childIds.size());
+			int end = pageSize > 0 ? Math.min(start + pageSize, childIds.size()) : childIds.size();
+			List<String> pageIds = childIds.subList(start, end);
+			if(!shoppingPeriodTool && DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId)){
+				//look up the permissions for the whole page at once instead of one node at a time
+				loadNodePermissions(userId, pageIds);
+			}
+			for(HierarchyNodeSerialized childNode : getCachedNodes(pageIds)){
 				//check if the user can edit this node:
 				if(accessAdminNodes != null && !((NodeModel) parentNode.getUserObject()).isNodeEditable()){
 					//if accessAdmin nodes isn't null this means that the user is restricted to edit just those nodes and their children
-					if(!accessAdminNodes.contains(((HierarchyNodeSerialized) childList.get(0)).id)){
+					if(!accessAdminNodes.contains(childNode.id)){
 						//since the parent node isn't editable and this node doesn't show up in the editable nodes list
 						//we will not add this node
 						continue;
 					}
 				}
-				boolean newlyAdded = addChildNodeToTree((HierarchyNodeSerialized) childList.get(0), parentNode, userId, blankRestrictedTools, onlyAccessNodes, shoppingPeriodTool);
+				boolean newlyAdded = addChildNodeToTree(childNode, parentNode, existingChildIds, userId, blankRestrictedTools, onlyAccessNodes, shoppingPeriodTool);
 				anyAdded = anyAdded || newlyAdded;
-				if(newlyAdded && ((HierarchyNodeSerialized) childList.get(0)).title.startsWith("/site/")){
-					addedSites.add(((HierarchyNodeSerialized) childList.get(0)).title.substring(6));
+				if(newlyAdded && childNode.title.startsWith("/site/")){
+					addedSites.add(childNode.title.substring(6));
 				}
 			}
+			nodeModel.setChildrenLoaded(end);
+			nodeModel.setChildrenCount(childIds.size());
+			if(nodeModel.hasMoreChildren()){
+				parentNode.add(createLoadMoreNode(nodeModel));
+				anyAdded = true;
+			}
 		}
 		if(shopping && addedSites.size() > 0 && sakaiProxy.isActiveSiteFlagEnabled() ){
 			List<String> activeSites = dao.findActiveSites(addedSites.toArray(new String[addedSites.size()]));
@@ -1464,18 +2004,121 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return anyAdded;
 	}
 
+	/**
+	 * returns the direct children's ids ordered by title.  The titles come from the hierarchy snapshot,
+	 * so the child nodes only need to be loaded if they aren't all in it.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private List<String> getOrderedChildIds(HierarchyNodeSerialized node){
+		final Map<String, String> titles = new HashMap<String, String>();
+		if(node.directChildNodeIds == null || node.directChildNodeIds.isEmpty()){
+			return new ArrayList<String>();
+		}
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		boolean allInSnapshot = snapshot != null;
+		if(snapshot != null){
+			for(String childId : node.directChildNodeIds){
+				if(!snapshot.contains(childId)){
+					allInSnapshot = false;
+					break;
+				}
+				titles.put(childId, snapshot.getTitle(childId));
+			}
+		}
+		if(!allInSnapshot){
+			titles.clear();
+			for(HierarchyNodeSerialized childNode : getCachedNodes(node.directChildNodeIds)){
+				if(childNode.id != null && !"".equals(childNode.id)){
+					titles.put(childNode.id, childNode.title);
+				}
+			}
+		}
+		List<String> returnList = new ArrayList<String>(titles.keySet());
+		//same order as NodeListComparator
+		Collections.sort(returnList, new Comparator<String>() {
+			public int compare(String o1, String o2) {
+				String title1 = titles.get(o1);
+				String title2 = titles.get(o2);
+				if(title1 == null && title2 == null){
+					return 0;
+				}else if(title1 != null && title2 == null){
+					return 1;
+				}else if(title1 == null && title2 != null){
+					return -1;
+				}else{
+					return title1.compareToIgnoreCase(title2);
+				}
+			}
+		});
+		return returnList;
+	}
+
+	/**
+	 * Loads the user's permissions for all of these nodes that aren't cached yet with one query
+	 * 
+	 * @param userId
+	 * @param nodeIds
+	 */
+	private void loadNodePermissions(String userId, Collection<String> nodeIds){
+		if(DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId) && getUserAccessGrants(userId) != null){
+			//getNodePermissions reads these from the shopping period user's grants
+			return;
+		}
+		List<String> missingNodeIds = new ArrayList<String>();
+		for(String nodeId : nodeIds){
+			if(!(nodePermissionsCache.get(nodeId + ":" + userId) instanceof NodePermissions)){
+				missingNodeIds.add(nodeId);
+			}
+		}
+		if(missingNodeIds.isEmpty()){
+			return;
+		}
+		Map<String, Set<String>> nodesAndPerms = dao.getNodesAndPermsForUser(userId, missingNodeIds.toArray(new String[missingNodeIds.size()]));
+		if(nodesAndPerms == null){
+			return;
+		}
+		for(String nodeId : missingNodeIds){
+			try{
+				//nodes without any permissions aren't returned
+				nodePermissionsCache.put(nodeId + ":" + userId, NodePermissions.parse(nodesAndPerms.get(nodeId)));
+			}catch (Exception e) {
+				log.error("loadNodePermissions: " + nodeId + ":" + userId, e);
+			}
+		}
+	}
+
+	/**
+	 * creates the placeholder child that loads the next page of the parent's children
+	 * 
+	 * @param parentNodeModel
+	 * @return
+	 */
+	private DefaultMutableTreeNode createLoadMoreNode(NodeModel parentNodeModel){
+		HierarchyNodeSerialized placeholder = new HierarchyNodeSerialized(null);
+		placeholder.title = "";
+		placeholder.description = "";
+		NodeModel loadMore = new NodeModel("", placeholder, false, "", "", parentNodeModel, new ArrayList<ListOptionSerialized>(),
+				new ArrayList<ListOptionSerialized>(), null, null, true, false, null, null, null, null, false, false, false, false, false);
+		loadMore.setLoadMoreNode(true);
+		DefaultMutableTreeNode child = new DelegatedAccessMutableTreeNode();
+		child.setUserObject(loadMore);
+		return child;
+	}
+
 	/**
 	 * This is a helper function for addChildrenNodes.  It will add the child nodes to the parent node and create the NodeModel.
 	 * 
 	 * @param childNode
 	 * @param parentNode
-	 * @param realmMap
+	 * @param existingChildIds ids of the parent's current children, the child's id is added if it's added to the tree
 	 * @param userId
 	 * @return
 	 */
-	private boolean addChildNodeToTree(HierarchyNodeSerialized childNode, DefaultMutableTreeNode parentNode, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, boolean shoppingPeriodTool){
+	private boolean addChildNodeToTree(HierarchyNodeSerialized childNode, DefaultMutableTreeNode parentNode, Set<String> existingChildIds, String userId, List<ListOptionSerialized> blankRestrictedTools, boolean onlyAccessNodes, boolean shoppingPeriodTool){
 		boolean added = false;
-		if(!doesChildExist(childNode.id, parentNode)){
+		if(!existingChildIds.contains(childNode.id)){
 			//just create a blank child since the user should already have all the nodes with information in the db
 			String realm = "";
 			String role = "";
@@ -1499,24 +2142,23 @@ public class ProjectLogicImpl implements ProjectLogic {
 			
 			DefaultMutableTreeNode child = new DelegatedAccessMutableTreeNode();
 			if(!shoppingPeriodTool && DelegatedAccessConstants.SHOPPING_PERIOD_USER.equals(userId)){
-				Set<String> perms = getPermsForUserNodes(userId, childNode.id);
-				String[] realmRole = getAccessRealmRole(perms);
-				realm = realmRole[0];
-				role = realmRole[1];
-				startDate = getShoppingStartDate(perms);
-				endDate = getShoppingEndDate(perms);
+				NodePermissions perms = getNodePermissions(userId, childNode.id);
+				realm = perms.getRealm();
+				role = perms.getRole();
+				startDate = perms.getShoppingStartDate();
+				endDate = perms.getShoppingEndDate();
 				restrictedAuthTools = getRestrictedAuthToolSerializedList(perms, restrictedAuthTools);
 				restrictedPublicTools = getRestrictedPublicToolSerializedList(perms, restrictedPublicTools);
-				directAccess = getIsDirectAccess(perms);
-				shoppingAdminModified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED);
-				shoppingAdminModifiedBy = getShoppingAdminModifiedBy(perms);
-				modified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_MODIFIED);
-				modifiedBy = getModifiedBy(perms);
-				accessAdmin = getIsAccessAdmin(perms);
-				shoppingPeriodRevokeInstructorEditable = isShoppingPeriodRevokeInstructorEditable(perms);
-				shoppingPeriodRevokeInstructorPublicOpt = isShoppingPeriodRevokeInstructorPublicOpt(perms);
-				allowBecomeUser = isAllowBecomeUser(perms);
-				instructorEdited = isInstructorEdited(perms);
+				directAccess = perms.isDirectAccess();
+				shoppingAdminModified = perms.getShoppingAdminModified();
+				shoppingAdminModifiedBy = perms.getShoppingAdminModifiedBy();
+				modified = perms.getModified();
+				modifiedBy = perms.getModifiedBy();
+				accessAdmin = perms.isAccessAdmin();
+				shoppingPeriodRevokeInstructorEditable = perms.isShoppingPeriodRevokeInstructorEditable();
+				shoppingPeriodRevokeInstructorPublicOpt = perms.isShoppingPeriodRevokeInstructorPublicOpt();
+				allowBecomeUser = perms.isAllowBecomeUser();
+				instructorEdited = perms.isInstructorEdited();
 			}
 			NodeModel node = new NodeModel(childNode.id, childNode, directAccess, realm, role,
 					((NodeModel) parentNode.getUserObject()), restrictedAuthTools, restrictedPublicTools, startDate, endDate, 
@@ -1530,35 +2172,14 @@ public class ProjectLogicImpl implements ProjectLogic {
 				//make sure this node is available
 				shoppingAvailable = false;
 			}
-			
-			if(shoppingAvailable && (!onlyAccessNodes || node.getNodeAccess())){
-				parentNode.add(child);
-				added = true;
-			}
-		}
-		return added;
-	}
-
-	/**
-	 * Determines if the child exists in the tree structure.  This is a helper function for addChildNodeToTree to ensure 
-	 * the duplicate child nodes aren't added
-	 * 
-	 * @param childNodeId
-	 * @param parentNode
-	 * @return
-	 */
-	private boolean doesChildExist(String childNodeId, DefaultMutableTreeNode parentNode){
-		boolean exists = false;
-
-		for(int i = 0; i < parentNode.getChildCount(); i++){
-			DefaultMutableTreeNode child = (DefaultMutableTreeNode) parentNode.getChildAt(i);
-			if(childNodeId.equals(((NodeModel) child.getUserObject()).getNodeId())){
-				exists = true;
-				break;
-			}
+			
+			if(shoppingAvailable && (!onlyAccessNodes || node.getNodeAccess())){
+				parentNode.add(child);
+				existingChildIds.add(childNode.id);
+				added = true;
+			}
 		}
-
-		return exists;
+		return added;
 	}
 
 	public NodeModel getNodeModel(String nodeId, String userId){
@@ -1569,28 +2190,25 @@ public class ProjectLogicImpl implements ProjectLogic {
 			List<String> orderedParents = getOrderedParentsList(node);
 			parentNodeModel = getNodeModel(orderedParents.get(orderedParents.size() -1), userId);
 		}
-		Set<String> nodePerms = hierarchyService.getPermsForUserNodes(userId, new String[]{nodeId});
-		Set<String> perms = getPermsForUserNodes(userId, node.id);
-		String[] realmRole = getAccessRealmRole(perms);
-		String realm = realmRole[0];
-		String role = realmRole[1];
-		Date startDate = getShoppingStartDate(perms);
-		Date endDate = getShoppingEndDate(perms);
+		NodePermissions perms = getNodePermissions(userId, node.id);
+		String realm = perms.getRealm();
+		String role = perms.getRole();
+		Date startDate = perms.getShoppingStartDate();
+		Date endDate = perms.getShoppingEndDate();
 		List<ListOptionSerialized> restrictedAuthTools = getRestrictedAuthToolSerializedList(perms, getEntireToolsList());
 		List<ListOptionSerialized> restrictedPublicTools = getRestrictedPublicToolSerializedList(perms, getEntireToolsList());
-		boolean direct = getIsDirectAccess(perms);
-		boolean shoppingPeriodAdmin = isShoppingPeriodAdmin(perms);
-		boolean accessAdmin = getIsAccessAdmin(perms);
-		Date shoppingAdminModified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN_MODIFIED);
-		String shoppingAdminModifiedBy = getShoppingAdminModifiedBy(perms);
-		Date modified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_MODIFIED);
-		String modifiedBy = getModifiedBy(perms);
-		boolean shoppingPeriodRevokeInstructorEditable = isShoppingPeriodRevokeInstructorEditable(perms);
-		boolean shoppingPeriodRevokeInstructorPublicOpt = isShoppingPeriodRevokeInstructorPublicOpt(perms);
-		boolean allowBecomeUser = isAllowBecomeUser(perms);
-		boolean instructorEdited = isInstructorEdited(perms);
+		boolean shoppingPeriodAdmin = perms.isShoppingPeriodAdmin();
+		boolean accessAdmin = perms.isAccessAdmin();
+		Date shoppingAdminModified = perms.getShoppingAdminModified();
+		String shoppingAdminModifiedBy = perms.getShoppingAdminModifiedBy();
+		Date modified = perms.getModified();
+		String modifiedBy = perms.getModifiedBy();
+		boolean shoppingPeriodRevokeInstructorEditable = perms.isShoppingPeriodRevokeInstructorEditable();
+		boolean shoppingPeriodRevokeInstructorPublicOpt = perms.isShoppingPeriodRevokeInstructorPublicOpt();
+		boolean allowBecomeUser = perms.isAllowBecomeUser();
+		boolean instructorEdited = perms.isInstructorEdited();
 		
-		NodeModel nodeModel = new NodeModel(node.id, node, getIsDirectAccess(nodePerms),
+		NodeModel nodeModel = new NodeModel(node.id, node, perms.isDirectAccess(),
 				realm, role, parentNodeModel, restrictedAuthTools, restrictedPublicTools, startDate, endDate, false, shoppingPeriodAdmin,
 				modifiedBy, modified, shoppingAdminModified, shoppingAdminModifiedBy, accessAdmin, shoppingPeriodRevokeInstructorEditable,
 				shoppingPeriodRevokeInstructorPublicOpt, allowBecomeUser, instructorEdited);
@@ -1602,6 +2220,9 @@ public class ProjectLogicImpl implements ProjectLogic {
 	 */
 	public void assignUserNodePerm(String userId, String nodeId, String perm, boolean cascade) {		
 		hierarchyService.assignUserNodePerm(userId, nodeId, perm, false);
+		clearNodePermissions(userId, nodeId);
+		clearAccessIndex(userId);
+		addDelegatedAccessUser(userId);
 	}
 	
 	public void removeNode(String nodeId){
@@ -1609,11 +2230,23 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 	
 	public void removeNode(HierarchyNode node){
+		if(node != null){
+			Set<String> removedNodeIds = new HashSet<String>();
+			removeNode(node, removedNodeIds);
+			//the parents' child lists have changed as well
+			if(node.parentNodeIds != null){
+				removedNodeIds.addAll(node.parentNodeIds);
+			}
+			invalidateNodeCache(removedNodeIds);
+		}
+	}
+	
+	private void removeNode(HierarchyNode node, Set<String> removedNodeIds){
 		if(node != null){
 			if(node.childNodeIds != null && !node.childNodeIds.isEmpty()){
 				//we can delete this, otherwise, delete the children first the children
 				for(String childId : node.childNodeIds){		
-					removeNode(hierarchyService.getNodeById(childId));
+					removeNode(hierarchyService.getNodeById(childId), removedNodeIds);
 				}
 			}
 			//all the children nodes have been deleted, now its safe to delete
@@ -1625,6 +2258,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 			//since the hierarchy service doesn't really delete the nodes,
 			//we need to distinguish between deleted nodes
 			hierarchyService.setNodeDisabled(node.id, true);
+			removedNodeIds.add(node.id);
 		}
 	}
 	
@@ -1721,8 +2355,266 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return dao.getNodesBySiteRef(siteRefs, hierarchyId);
 	}
 	
+	/**
+	 * returns the current hierarchy snapshot, building it if it doesn't exist yet.  A snapshot that has expired or has
+	 * stale nodes is still returned while a new one is built in the background.
+	 * This will return null if it couldn't be built, so callers must be able to fall back to the hierarchy service.
+	 * @return
+	 */
+	private HierarchySnapshot getHierarchySnapshot(){
+		HierarchySnapshot snapshot = hierarchySnapshot;
+		if(snapshot == null){
+			synchronized (hierarchySnapshotBuildLock) {
+				//another thread may have already built it while we were waiting
+				if(hierarchySnapshot == null){
+					refreshHierarchySnapshot();
+				}
+				snapshot = hierarchySnapshot;
+			}
+		}else if(snapshot.hasStaleNodes() || System.currentTimeMillis() - snapshot.getCreated() > sakaiProxy.getHierarchySnapshotTTL() * 60000L){
+			queueHierarchySnapshotRefresh();
+		}
+		return snapshot;
+	}
+	
+	public void refreshHierarchySnapshot(){
+		long version;
+		synchronized (hierarchySnapshotLock) {
+			version = hierarchySnapshotVersion;
+		}
+		long startTime = System.currentTimeMillis();
+		List<String[]> nodes = dao.getHierarchyNodes(getActiveHierarchyId());
+		hierarchySnapshotRefreshed = System.currentTimeMillis();
+		if(nodes != null){
+			HierarchySnapshot snapshot = new HierarchySnapshot(nodes);
+			synchronized (hierarchySnapshotLock) {
+				if(version != hierarchySnapshotVersion){
+					//nodes changed while this was being read, the current snapshot has them marked stale so keep it and read again
+					queueHierarchySnapshotRefresh();
+					return;
+				}
+				hierarchySnapshot = snapshot;
+			}
+			log.debug("refreshHierarchySnapshot: " + nodes.size() + " nodes in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+	}
+	
+	/**
+	 * Rebuilds the snapshot on the background thread, no more than once every HIERARCHY_SNAPSHOT_REFRESH_INTERVAL
+	 */
+	private void queueHierarchySnapshotRefresh(){
+		if(hierarchySnapshotExecutor == null || !hierarchySnapshotRefreshQueued.compareAndSet(false, true)){
+			return;
+		}
+		long delay = Math.max(0, hierarchySnapshotRefreshed + HIERARCHY_SNAPSHOT_REFRESH_INTERVAL - System.currentTimeMillis());
+		try{
+			hierarchySnapshotExecutor.schedule(new Runnable() {
+				public void run() {
+					hierarchySnapshotRefreshQueued.set(false);
+					try{
+						refreshHierarchySnapshot();
+					}catch (Exception e) {
+						log.error("refreshHierarchySnapshot: " + e.getMessage(), e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}catch (RejectedExecutionException e) {
+			//shutting down
+			hierarchySnapshotRefreshQueued.set(false);
+		}
+	}
+	
+	/**
+	 * returns the denied tools map of this type that shares the access map's sites.  A denied tools map that was
+	 * restored from the restricted tools cache at login isn't linked to the session's access map yet, so its
+	 * sites are copied into the linked one.
+	 * 
+	 * @param accessMap
+	 * @param mapType BoundedAccessMap.DENIED_AUTH_TOOLS or BoundedAccessMap.DENIED_PUBLIC_TOOLS
+	 * @param sessionMap the map currently in the session, may be null
+	 * @return
+	 */
+	private Map<String, String[]> getLinkedAccessMap(BoundedAccessMap accessMap, int mapType, Object sessionMap){
+		BoundedAccessMap linkedMap = accessMap.getLinkedMap(mapType);
+		if(sessionMap != null && sessionMap != linkedMap){
+			linkedMap.putAll((Map<String, String[]>) sessionMap);
+		}
+		return linkedMap;
+	}
+	
+	/**
+	 * returns true if nodeId is one of subtreeRootIds or is below one of them
+	 * @param nodeId
+	 * @param subtreeRootIds
+	 * @return
+	 */
+	private boolean isInSubtree(String nodeId, Collection<String> subtreeRootIds){
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		if(snapshot != null && snapshot.contains(nodeId)){
+			return snapshot.isInSubtree(nodeId, subtreeRootIds);
+		}
+		for(String rootId : subtreeRootIds){
+			if(nodeId.equals(rootId)){
+				return true;
+			}
+			HierarchyNodeSerialized root = getCachedNode(rootId);
+			if(root != null && root.childNodeIds != null && root.childNodeIds.contains(nodeId)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public boolean isDelegatedAccessUser(String userId){
+		if(userId == null || "".equals(userId)){
+			return false;
+		}
+		Set<String> users = delegatedAccessUsers;
+		if(users == null || System.currentTimeMillis() - delegatedAccessUsersLoaded > sakaiProxy.getDelegatedAccessUserFilterTTL() * 60000L){
+			synchronized (delegatedAccessUsersLock) {
+				//another thread may have already reloaded it while we were waiting
+				if(delegatedAccessUsers == users){
+					refreshDelegatedAccessUsers();
+				}
+				users = delegatedAccessUsers;
+			}
+		}
+		//if the list couldn't be loaded, don't skip anyone
+		return users == null || users.contains(userId);
+	}
+	
+	private void refreshDelegatedAccessUsers(){
+		List<String> userIds = dao.getDelegatedAccessUsers();
+		if(userIds != null){
+			Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(userIds.size() * 2));
+			users.addAll(userIds);
+			delegatedAccessUsers = users;
+		}
+		//try again after the TTL even if the lookup failed
+		delegatedAccessUsersLoaded = System.currentTimeMillis();
+	}
+	
+	public void addDelegatedAccessUser(String userId){
+		Set<String> users = delegatedAccessUsers;
+		if(users != null && userId != null){
+			users.add(userId);
+		}
+	}
+	
+	public void invalidateNodeCache(Collection<String> nodeIds){
+		if(nodeIds == null || nodeIds.isEmpty()){
+			return;
+		}
+		//let the other servers evict the same nodes with a single event.  When the ids don't all fit in the
+		//event's reference, "/node" is sent on its own and every server clears its whole node cache instead
+		StringBuilder ref = new StringBuilder("/node");
+		for(String nodeId : nodeIds){
+			if(ref.length() + nodeId.length() + 1 > EVENT_REF_MAX_LENGTH){
+				ref = null;
+				break;
+			}
+			ref.append("/").append(nodeId);
+		}
+		if(ref != null){
+			evictCachedNodes(nodeIds);
+			sakaiProxy.postEvent(DelegatedAccessConstants.EVENT_NODE_CACHE_INVALIDATE, ref.toString(), false);
+		}else{
+			invalidateEntireNodeCache();
+		}
+	}
+	
+	public void invalidateEntireNodeCache(){
+		clearNodeCache();
+		sakaiProxy.postEvent(DelegatedAccessConstants.EVENT_NODE_CACHE_INVALIDATE, "/node", false);
+	}
+	
+	public void evictCachedNodes(Collection<String> nodeIds){
+		//use the current snapshot as is, its ancestors are the ones that cached the old structure
+		HierarchySnapshot snapshot = hierarchySnapshot;
+		Set<String> evictNodeIds = new HashSet<String>();
+		for(String nodeId : nodeIds){
+			evictNodeIds.add(nodeId);
+			//every ancestor has this node in its childNodeIds
+			Object el = nodeCache.get(nodeId);
+			if(el instanceof HierarchyNodeSerialized && ((HierarchyNodeSerialized) el).parentNodeIds != null){
+				evictNodeIds.addAll(((HierarchyNodeSerialized) el).parentNodeIds);
+			}
+			if(snapshot != null){
+				evictNodeIds.addAll(snapshot.getAncestorIds(nodeId));
+			}
+		}
+		for(String nodeId : evictNodeIds){
+			try{
+				nodeCache.remove(nodeId);
+			}catch (Exception e) {
+				log.error("evictCachedNodes: " + nodeId, e);
+			}
+		}
+		//the nodes as they are now, these aren't cached since every server does this lookup
+		Map<String, HierarchyNode> currentNodes = hierarchyService.getNodesByIds(nodeIds.toArray(new String[nodeIds.size()]));
+		//users with grants on the old or the new ancestors are the only ones whose access can have changed
+		Set<String> affectedNodeIds = new HashSet<String>(evictNodeIds);
+		List<String> staleNodeIds = new ArrayList<String>();
+		for(String nodeId : nodeIds){
+			HierarchyNode node = currentNodes == null ? null : currentNodes.get(nodeId);
+			if(node != null && node.parentNodeIds != null){
+				affectedNodeIds.addAll(node.parentNodeIds);
+			}
+			if(snapshot != null && snapshot.contains(nodeId)){
+				//the snapshot only needs to stop using nodes that were removed, moved or renamed, not their parents
+				String parentId = snapshot.getParentId(nodeId);
+				String title = snapshot.getTitle(nodeId);
+				if(node == null || (parentId != null && (node.directParentNodeIds == null || !node.directParentNodeIds.contains(parentId)))
+						|| (title == null ? node.title != null : !title.equals(node.title))){
+					staleNodeIds.add(nodeId);
+				}
+			}
+		}
+		synchronized (hierarchySnapshotLock) {
+			hierarchySnapshotVersion++;
+			if(hierarchySnapshot != null && !staleNodeIds.isEmpty()){
+				hierarchySnapshot = hierarchySnapshot.withStaleNodes(staleNodeIds);
+			}
+		}
+		//the new nodes aren't in the snapshot yet, they fall back to the hierarchy service until it's rebuilt
+		queueHierarchySnapshotRefresh();
+		evictAccessIndexes(affectedNodeIds);
+		log.debug("evictCachedNodes: evicted " + evictNodeIds.size() + " nodes, " + staleNodeIds.size() + " stale in the snapshot");
+	}
+	
+	/**
+	 * Removes the resolved site access of every user with a grant on one of these nodes
+	 * @param nodeIds
+	 */
+	private void evictAccessIndexes(Collection<String> nodeIds){
+		Map<String, Map<String, Set<String>>> usersAndPerms = hierarchyService.getUsersAndPermsForNodes(nodeIds.toArray(new String[nodeIds.size()]));
+		if(usersAndPerms == null){
+			accessIndexCache.clear();
+			return;
+		}
+		Set<String> userIds = new HashSet<String>();
+		for(Map<String, Set<String>> nodeUsers : usersAndPerms.values()){
+			userIds.addAll(nodeUsers.keySet());
+		}
+		for(String userId : userIds){
+			try{
+				accessIndexCache.remove(userId);
+			}catch (Exception e) {
+				log.error("evictAccessIndexes: " + userId, e);
+			}
+		}
+	}
+	
 	public void clearNodeCache(){
 		nodeCache.clear();
+		synchronized (hierarchySnapshotLock) {
+			hierarchySnapshotVersion++;
+			hierarchySnapshot = null;
+		}
+		//resolved access depends on the hierarchy structure, so this is stale as well
+		accessIndexCache.clear();
+		nodePermissionsCache.clear();
+		userGrantsCache.clear();
 	}
 	
 	public String[] getCurrentUsersAccessToSite(String siteRef){
@@ -1730,6 +2622,10 @@ public class ProjectLogicImpl implements ProjectLogic {
 		if(currentUserId == null || "".equals(currentUserId)){
 			return null;
 		}
+		if(!isDelegatedAccessUser(currentUserId)){
+			//most users don't have any delegated access, no need to look at the session or the db
+			return null;
+		}
 
 		//check the session first:
 		if(sakaiProxy.getCurrentSession().getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_ACCESS_MAP) != null 
@@ -1770,32 +2666,27 @@ public class ProjectLogicImpl implements ProjectLogic {
 		if(useSession){
 			session = sakaiProxy.getCurrentSession();
 		}
-		Map<String, String[]> deniedAuthToolsMap = new ConcurrentHashMap<String, String[]>();
-		if(useSession){
-			//only worry about the session for non shopping period queries
-			Object sessionDeniedToolsMap = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS);
-			if(sessionDeniedToolsMap != null){
-				deniedAuthToolsMap = (Map<String, String[]>) sessionDeniedToolsMap;
-			}
-		}
-		
-		Map<String, String[]> deniedPublicToolsMap = new ConcurrentHashMap<String, String[]>();
-		if(useSession){
-			//only worry about the session for non shopping period queries
-			Object sessionDeniedTools2Map = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS2);
-			if(sessionDeniedTools2Map != null){
-				deniedPublicToolsMap = (Map<String, String[]>) sessionDeniedTools2Map;
-			}
-		}
-
-		Map<String, String[]> accessMap = new ConcurrentHashMap<String, String[]>();
+		Object sessionAccessMap = null;
+		Object sessionDeniedToolsMap = null;
+		Object sessionDeniedTools2Map = null;
 		if(useSession){
 			//only worry about the session for non shopping period queries
-			Object sessionaccessMap = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_ACCESS_MAP);
-			if(sessionaccessMap != null){
-				accessMap = (Map<String, String[]>) sessionaccessMap;
+			sessionAccessMap = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_ACCESS_MAP);
+			sessionDeniedToolsMap = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS);
+			sessionDeniedTools2Map = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS2);
+		}
+		//the three maps share their sites, so a site is always dropped from all of them together
+		BoundedAccessMap accessMap;
+		if(sessionAccessMap instanceof BoundedAccessMap){
+			accessMap = ((BoundedAccessMap) sessionAccessMap).getLinkedMap(BoundedAccessMap.ACCESS);
+		}else{
+			accessMap = new BoundedAccessMap(sakaiProxy.getSessionAccessMapMax());
+			if(sessionAccessMap != null){
+				accessMap.putAll((Map<String, String[]>) sessionAccessMap);
 			}
 		}
+		Map<String, String[]> deniedAuthToolsMap = getLinkedAccessMap(accessMap, BoundedAccessMap.DENIED_AUTH_TOOLS, sessionDeniedToolsMap);
+		Map<String, String[]> deniedPublicToolsMap = getLinkedAccessMap(accessMap, BoundedAccessMap.DENIED_PUBLIC_TOOLS, sessionDeniedTools2Map);
 
 		for (Iterator iterator = siteRefs.iterator(); iterator.hasNext();) {
 			String siteRef = (String) iterator.next();
@@ -1812,7 +2703,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 			}
 		}
 		//Set user Id and hierarchy id
-		String hierarchyId = DelegatedAccessConstants.HIERARCHY_ID;
+		String hierarchyId = getActiveHierarchyId();
 		if(shoppingPeriod){
 			userId = DelegatedAccessConstants.SHOPPING_PERIOD_USER;
 		}
@@ -1824,112 +2715,66 @@ public class ProjectLogicImpl implements ProjectLogic {
 		if(useSession){
 			dAMapFlag = session.getAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DELEGATED_ACCESS_FLAG);
 		}
-		if(dAMapFlag != null || !useSession){
-			//get list of all site ref nodes:
-			Map<String, List<String>> siteRefToNodeMap = getNodesBySiteRef(siteRefs.toArray(new String[siteRefs.size()]), hierarchyId);
-			if(siteRefToNodeMap != null){
-				Set<String> nodeIds = new HashSet<String>();
-				for(List<String> nodeIdsList : siteRefToNodeMap.values()){
-					nodeIds.addAll(nodeIdsList);
-				}
-				Map<String, HierarchyNode> siteNodes = hierarchyService.getNodesByIds(nodeIds.toArray(new String[nodeIds.size()]));
-				//create a set of parent ID's and lookup the user's permissions for this sub-set:
-				Set<String> subSetNodeIds = new HashSet<String>();
-				if(siteNodes != null){
-					for(HierarchyNode node : siteNodes.values()){
-						subSetNodeIds.add(node.id);
-						if(node.parentNodeIds != null){
-							for(String pId : node.parentNodeIds){
-								subSetNodeIds.add(pId);
-							}
-						}
+		if((dAMapFlag != null || !useSession) && (shoppingPeriod || isDelegatedAccessUser(userId))){
+			//first check the user's access index, only sites that haven't been resolved before need to be looked up
+			UserAccessIndex accessIndex = getUserAccessIndex(userId);
+			Map<String, AccessNode> resolvedNodes = new HashMap<String, AccessNode>();
+			List<String> unresolvedSiteRefs = new ArrayList<String>();
+			for(String siteRef : siteRefs){
+				if(accessIndex.contains(siteRef)){
+					resolvedNodes.put(siteRef, accessIndex.get(siteRef));
+				}else{
+					unresolvedSiteRefs.add(siteRef);
+				}
+			}
+			if(unresolvedSiteRefs.size() > 0){
+				Map<String, AccessNode> lookedUpNodes = lookupAccessToSites(unresolvedSiteRefs, userId, hierarchyId);
+				if(lookedUpNodes != null){
+					for(String siteRef : unresolvedSiteRefs){
+						AccessNode accessNode = lookedUpNodes.get(siteRef);
+						accessIndex.put(siteRef, accessNode);
+						resolvedNodes.put(siteRef, accessNode);
+					}
+					try{
+						accessIndexCache.put(userId, accessIndex);
+					}catch (Exception e) {
+						log.error("grantAccessToSite: " + userId, e);
 					}
 				}
-				//find the node for the site
-				Map<String, Set<String>> userNodesAndPerms = dao.getNodesAndPermsForUser(userId, subSetNodeIds.toArray(new String[subSetNodeIds.size()]));
-				Map<String, String> memberRoles = new HashMap<String, String>();
-				if(!shoppingPeriod){
-					memberRoles = sakaiProxy.isUserMember(userId, siteRefs);
-				}
-				if(userNodesAndPerms != null){
-					for(String siteRef : siteRefs){
-						if(siteRefToNodeMap != null && siteRefToNodeMap.containsKey(siteRef) && siteRefToNodeMap.get(siteRef) != null && siteRefToNodeMap.get(siteRef).size() > 0){
-							//find the first access node for this user, if none found, then that means they don't have access
-							String nodeId = siteRefToNodeMap.get(siteRef).get(0);
-							while(nodeId != null && !"".equals(nodeId)){
-								Set<String> perms = userNodesAndPerms.get(nodeId);
-								if(perms != null && getIsDirectAccess(perms)){
-									//check first that the user's isn't a member of the site, if so, return null:
-									//don't waste time checking until we get to this level (for bulk searching speed)
-									if(!shoppingPeriod && memberRoles.get(siteRef) != null){
-										returnNodes.put(siteRef, null);
-									}else{
-										if(shoppingPeriod && activeShoppingData){
-											//do substring(6) b/c we need site ID and what is stored is a ref: /site/1231231
-											String siteId = siteRef.substring(6);
-											if(!isShoppingAvailable(perms)){
-												//check that shopping period is still available unless activeShoppingData is false
-												break;
-											}
-										}
-										//Access Map:
-										String[] access = getAccessRealmRole(perms);
-										if (access == null || access.length != 2
-												|| access[0] == null
-												|| access[1] == null
-												|| "".equals(access[0])
-												|| "".equals(access[1])
-												|| "null".equals(access[0])
-												|| "null".equals(access[1])) {
-											access = new String[]{"", ""};
-										}
-
-										accessMap.put(siteRef, access);
-
-										//Denied Auth Tools List
-										List<String> deniedAuthTools = getRestrictedAuthToolsForUser(perms);
-										String[] deniedAuthToolsArr = (String[]) deniedAuthTools.toArray(new String[deniedAuthTools.size()]);
-										if(deniedAuthToolsArr != null){
-											deniedAuthToolsMap.put(siteRef, deniedAuthToolsArr);
-										}else{
-											deniedAuthToolsMap.put(siteRef, new String[0]);
-										}
-										
-										//Denied Public List
-										List<String> deniedPublicTools = getRestrictedPublicToolsForUser(perms);
-										String[] deniedPublicToolsArr = (String[]) deniedPublicTools.toArray(new String[deniedPublicTools.size()]);
-										if(deniedPublicToolsArr != null){
-											deniedPublicToolsMap.put(siteRef, deniedPublicToolsArr);
-										}else{
-											deniedPublicToolsMap.put(siteRef, new String[0]);
-										}
-
-										Date startDate = getShoppingStartDate(perms);
-										Date endDate = getShoppingEndDate(perms);
-										Date modified = getPermDate(perms, DelegatedAccessConstants.NODE_PERM_MODIFIED);
-										String modifiedBy = getModifiedBy(perms);
-
-										//set returnNode
-										AccessNode returnNode = new AccessNode(userId, siteRef, access, deniedAuthToolsArr, deniedPublicToolsArr, startDate, endDate, modified, modifiedBy);
-										returnNodes.put(siteRef, returnNode);
-									}
-									//break out of loop
-									nodeId = null;
-									break;
-								}else{
-									Set<String> parentIds = null;
-									if(siteNodes != null && siteNodes.containsKey(nodeId)){
-										//we've already spent the time looking this up in bulk
-										parentIds = siteNodes.get(nodeId).parentNodeIds;
-									}else{
-										parentIds = getCachedNode(nodeId).parentNodeIds;
-									}
-									nodeId = getFirstAccessParent(parentIds, userNodesAndPerms);
-								}
-							}
-						}
+			}
+			
+			//check first that the user's isn't a member of the site, if so, return null:
+			//only check the sites the user has access to (for bulk searching speed)
+			Map<String, String> memberRoles = new HashMap<String, String>();
+			if(!shoppingPeriod){
+				List<String> accessSiteRefs = new ArrayList<String>();
+				for(Entry<String, AccessNode> entry : resolvedNodes.entrySet()){
+					if(entry.getValue() != null){
+						accessSiteRefs.add(entry.getKey());
 					}
 				}
+				if(accessSiteRefs.size() > 0){
+					memberRoles = sakaiProxy.isUserMember(userId, accessSiteRefs);
+				}
+			}
+			for(Entry<String, AccessNode> entry : resolvedNodes.entrySet()){
+				String siteRef = entry.getKey();
+				AccessNode accessNode = entry.getValue();
+				if(accessNode == null){
+					continue;
+				}
+				if(!shoppingPeriod && memberRoles != null && memberRoles.get(siteRef) != null){
+					returnNodes.put(siteRef, null);
+				}else if(shoppingPeriod && activeShoppingData
+						&& !isShoppingPeriodOpenForSite(accessNode.getStartDate(), accessNode.getEndDate(), accessNode.getAccess(), accessNode.getDeniedAuthTools(), accessNode.getDeniedPublicTools())){
+					//check that shopping period is still available unless activeShoppingData is false
+					continue;
+				}else{
+					accessMap.put(siteRef, accessNode.getAccess());
+					deniedAuthToolsMap.put(siteRef, accessNode.getDeniedAuthTools());
+					deniedPublicToolsMap.put(siteRef, accessNode.getDeniedPublicTools());
+					returnNodes.put(siteRef, accessNode);
+				}
 			}
 		}
 		if(useSession){
@@ -1937,6 +2782,9 @@ public class ProjectLogicImpl implements ProjectLogic {
 			session.setAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS, deniedAuthToolsMap);
 			session.setAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_DENIED_TOOLS2, deniedPublicToolsMap);
 			session.setAttribute(DelegatedAccessConstants.SESSION_ATTRIBUTE_ACCESS_MAP, accessMap);
+			if(log.isDebugEnabled()){
+				log.debug("grantAccessToSite: " + userId + " " + accessMap);
+			}
 			//update restrictedToolsCache
 			try{
 				restrictedAuthToolsCache.put(userId, deniedAuthToolsMap);
@@ -1953,69 +2801,161 @@ public class ProjectLogicImpl implements ProjectLogic {
 		return returnNodes;
 	}
 	
-	private String getFirstAccessParent(Set<String> parentIds, Map<String, Set<String>> userNodesAndPerms){
-		String accessParent = null;
-		
-		List<String> accessParents = new ArrayList<String>();
-		for(String parent: parentIds){
-			for(Entry<String, Set<String>> entry : userNodesAndPerms.entrySet()){
-				if(parent.equals(entry.getKey()) && getIsDirectAccess(entry.getValue())){
-					accessParents.add(parent);
-				}
+	/**
+	 * Walks up the hierarchy for each site and finds the closest node the user has been granted access to.
+	 * This doesn't check site membership or whether the shopping period is open, since neither are tied to the hierarchy.
+	 * 
+	 * @param siteRefs
+	 * @param userId
+	 * @param hierarchyId
+	 * @return a map of siteRef -> AccessNode for the sites the user has access to, or null if the lookup failed
+	 */
+	private Map<String, AccessNode> lookupAccessToSites(List<String> siteRefs, String userId, String hierarchyId){
+		//get list of all site ref nodes:
+		Map<String, List<String>> siteRefToNodeMap = getNodesBySiteRef(siteRefs.toArray(new String[siteRefs.size()]), hierarchyId);
+		if(siteRefToNodeMap == null){
+			return null;
+		}
+		Map<String, AccessNode> accessNodes = new HashMap<String, AccessNode>();
+		Set<String> nodeIds = new HashSet<String>();
+		for(List<String> nodeIdsList : siteRefToNodeMap.values()){
+			nodeIds.addAll(nodeIdsList);
+		}
+		//the snapshot already knows the parents, only look up nodes that aren't in it
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		Set<String> missingNodeIds = new HashSet<String>();
+		for(String nodeId : nodeIds){
+			if(snapshot == null || !snapshot.contains(nodeId)){
+				missingNodeIds.add(nodeId);
 			}
 		}
-		if(accessParents.size() == 1){
-			//there is only one parent which is an access node, so lets set it to that:
-			accessParent = accessParents.get(0);
-		}else if(accessParents.size() > 1){
-			//there are more than 1 parents with access, we need to find out which one is the closest to this node
-			
-			//reverse order since most of the time (not guaranteed) parents are ordered from top to bottom,
-			//so by starting at the bottom we have a better chance of using less cylces
-			Collections.reverse(accessParents);
-
-			for(String parent: accessParents){
-				HierarchyNodeSerialized pNode = getCachedNode(parent);
-				boolean foundAccessChild = false;
-				for(String child : pNode.childNodeIds){
-					for(String childCheck: accessParents){
-						if(childCheck.equals(child)){
-							//there is a parent with access permissions at a lower level,
-							//skip this parent and go to the next one
-							foundAccessChild = true;
-							break;
+		Map<String, HierarchyNode> siteNodes = null;
+		if(!missingNodeIds.isEmpty()){
+			siteNodes = hierarchyService.getNodesByIds(missingNodeIds.toArray(new String[missingNodeIds.size()]));
+		}
+		Map<String, NodePermissions> userNodesAndPerms = null;
+		Set<String> directAccessNodeIds = null;
+		//the user's grants are normally loaded when they log in, so there is nothing left to look up
+		UserAccessGrants grants = getUserAccessGrants(userId);
+		if(grants != null){
+			userNodesAndPerms = grants.getNodePermissions();
+			directAccessNodeIds = grants.getAccessNodeIds();
+		}else{
+			//create a set of parent ID's and lookup the user's permissions for this sub-set:
+			Set<String> subSetNodeIds = new HashSet<String>();
+			for(String nodeId : nodeIds){
+				if(!missingNodeIds.contains(nodeId)){
+					subSetNodeIds.add(nodeId);
+					subSetNodeIds.addAll(snapshot.getAncestorIds(nodeId));
+				}
+			}
+			if(siteNodes != null){
+				for(HierarchyNode node : siteNodes.values()){
+					subSetNodeIds.add(node.id);
+					if(node.parentNodeIds != null){
+						for(String pId : node.parentNodeIds){
+							subSetNodeIds.add(pId);
 						}
 					}
-					if(foundAccessChild){
-						break;
-					}
 				}
-				if(!foundAccessChild){
-					accessParent = parent;
-					break;
+			}
+			Map<String, Set<String>> userNodesAndPermsRaw = dao.getNodesAndPermsForUser(userId, subSetNodeIds.toArray(new String[subSetNodeIds.size()]));
+			if(userNodesAndPermsRaw == null){
+				return null;
+			}
+			userNodesAndPerms = parseNodePermissions(userNodesAndPermsRaw);
+			directAccessNodeIds = new HashSet<String>();
+			for(Entry<String, NodePermissions> entry : userNodesAndPerms.entrySet()){
+				if(entry.getValue().isDirectAccess()){
+					directAccessNodeIds.add(entry.getKey());
 				}
 			}
 		}
-		
-		return accessParent;
+		ToolDictionary dictionary = getToolDictionary();
+		for(String siteRef : siteRefs){
+			if(siteRefToNodeMap.containsKey(siteRef) && siteRefToNodeMap.get(siteRef) != null && siteRefToNodeMap.get(siteRef).size() > 0){
+				//find the first access node for this user, if none found, then that means they don't have access
+				String nodeId = siteRefToNodeMap.get(siteRef).get(0);
+				String accessNodeId = getNearestAccessNode(nodeId, directAccessNodeIds, snapshot, siteNodes);
+				if(accessNodeId != null){
+					NodePermissions perms = userNodesAndPerms.get(accessNodeId);
+					//Access Map:
+					String[] access = perms.getAccess();
+					if (access == null || access.length != 2
+							|| access[0] == null
+							|| access[1] == null
+							|| "".equals(access[0])
+							|| "".equals(access[1])
+							|| "null".equals(access[0])
+							|| "null".equals(access[1])) {
+						access = new String[]{"", ""};
+					}
+
+					//denied tools are shared with every other site that has the same set
+					accessNodes.put(siteRef, new AccessNode(userId, siteRef, access, dictionary.intern(perms.getDeniedAuthTools()), dictionary.intern(perms.getDeniedPublicTools()),
+							perms.getShoppingStartDate(), perms.getShoppingEndDate(), perms.getModified(), perms.getModifiedBy()));
+				}
+			}
+		}
+		return accessNodes;
 	}
 	
-	private boolean isShoppingAvailable(Set<String> perms){
-		Date startDate = getShoppingStartDate(perms);
-		Date endDate = getShoppingEndDate(perms);
-		String[] nodeAccessRealmRole = getAccessRealmRole(perms);
-		List<String> restrictedAuthTools = getRestrictedAuthToolsForUser(perms);
-		String[] restrictedAuthToolsArr = null;
-		if(restrictedAuthTools != null){
-			restrictedAuthToolsArr = restrictedAuthTools.toArray(new String[restrictedAuthTools.size()]); 
+	/**
+	 * Returns the closest node to nodeId (including itself) that is in accessNodeIds or null if there isn't one.
+	 * The ancestors are walked from the deepest up and the walk stops at the first access node.
+	 * 
+	 * @param nodeId
+	 * @param accessNodeIds
+	 * @param snapshot can be null
+	 * @param lookedUpNodes nodes that have already been looked up in bulk, can be null
+	 * @return
+	 */
+	String getNearestAccessNode(String nodeId, Set<String> accessNodeIds, HierarchySnapshot snapshot, Map<String, HierarchyNode> lookedUpNodes){
+		if(nodeId == null || "".equals(nodeId) || accessNodeIds.isEmpty()){
+			return null;
 		}
-		List<String> restrictedPublicTools = getRestrictedPublicToolsForUser(perms);
-		String[] restrictedPublicToolsArr = null;
-		if(restrictedPublicTools != null){
-			restrictedPublicToolsArr = restrictedPublicTools.toArray(new String[restrictedPublicTools.size()]);
+		if(snapshot != null && snapshot.contains(nodeId)){
+			return snapshot.getNearestAncestor(nodeId, accessNodeIds, true);
 		}
-		
-		return isShoppingPeriodOpenForSite(startDate, endDate, nodeAccessRealmRole, restrictedAuthToolsArr, restrictedPublicToolsArr);
+		if(accessNodeIds.contains(nodeId)){
+			return nodeId;
+		}
+		Set<String> parentIds = null;
+		Set<String> directParentIds = null;
+		if(lookedUpNodes != null && lookedUpNodes.containsKey(nodeId)){
+			//we've already spent the time looking this up in bulk
+			parentIds = lookedUpNodes.get(nodeId).parentNodeIds;
+			directParentIds = lookedUpNodes.get(nodeId).directParentNodeIds;
+		}else{
+			HierarchyNodeSerialized node = getCachedNode(nodeId);
+			parentIds = node.parentNodeIds;
+			directParentIds = node.directParentNodeIds;
+		}
+		//no need to walk up the tree if none of the parents are access nodes
+		boolean hasAccessParent = false;
+		if(parentIds != null){
+			for(String parentId : parentIds){
+				if(accessNodeIds.contains(parentId)){
+					hasAccessParent = true;
+					break;
+				}
+			}
+		}
+		//the hierarchy is a tree, so following the first direct parent walks every ancestor from the bottom up
+		int loopProtection = parentIds == null ? 0 : parentIds.size();
+		while(hasAccessParent && directParentIds != null && !directParentIds.isEmpty() && loopProtection >= 0){
+			String parentId = directParentIds.iterator().next();
+			if(accessNodeIds.contains(parentId)){
+				return parentId;
+			}
+			directParentIds = getCachedNode(parentId).directParentNodeIds;
+			loopProtection--;
+		}
+		return null;
+	}
+	
+	private boolean isShoppingAvailable(NodePermissions perms){
+		return isShoppingPeriodOpenForSite(perms.getShoppingStartDate(), perms.getShoppingEndDate(), perms.getAccess(), perms.getDeniedAuthTools(), perms.getDeniedPublicTools());
 	}
 	
 	public boolean isShoppingPeriodOpenForSite(Date startDate, Date endDate, String[] nodeAccessRealmRole, String[] restrictedAuthTools, String[] restrictedPublicTools){
@@ -2106,7 +3046,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 	
 	public Map<String, AccessNode> getUserAccessForSite(String siteRef){
 		Map<String, AccessNode> returnMap = new HashMap<String, AccessNode>();
-		Map<String, List<String>> siteNodeMap = getNodesBySiteRef(new String[]{siteRef}, DelegatedAccessConstants.HIERARCHY_ID);
+		Map<String, List<String>> siteNodeMap = getNodesBySiteRef(new String[]{siteRef}, getActiveHierarchyId());
 		if(siteNodeMap != null && siteNodeMap.containsKey(siteRef) && siteNodeMap.get(siteRef) != null && siteNodeMap.get(siteRef).size() > 0){
 			//there should only be 1 node with a siteRef like this, so just grab the first
 			HierarchyNodeSerialized node = getCachedNode(siteNodeMap.get(siteRef).get(0));
@@ -2135,117 +3075,190 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 	
 	public Map<String, String> updateShoppingPeriodSettings(DefaultMutableTreeNode node){
-		Map<String, String> errors = new HashMap<String, String>();
-		List<String> removeAnonAuthRefs = new ArrayList<String>();
-		Map<String, Map<String, List<String>>> realmRoleCopy = new HashMap<String, Map<String, List<String>>>();
-		List<String> removeAuthToolsSiteProp = new ArrayList<String>();
-		List<String> removePublicToolsSiteProp = new ArrayList<String>();
-		Map<String, List<String>> updateAuthToolsSiteProp = new HashMap<String, List<String>>();
-		Map<String, List<String>> updatePublicToolsSiteProp = new HashMap<String, List<String>>();
-		updateShoppingPeriodSettingsHelper(node, getEntireToolsList(), errors, removeAnonAuthRefs, realmRoleCopy, removeAuthToolsSiteProp, 
-				removePublicToolsSiteProp, updateAuthToolsSiteProp, updatePublicToolsSiteProp);
-		
-		if(removeAnonAuthRefs.size() > 0){
-			//remove all .anon and .auth roles for these sites
-			dao.removeAnonAndAuthRoles(removeAnonAuthRefs.toArray(new String[removeAnonAuthRefs.size()]));
-		}
-		if(realmRoleCopy.size() > 0){
-			for(Entry<String, Map<String, List<String>>> e : realmRoleCopy.entrySet()){
-				String[] realmRole = e.getKey().split(":");
-				if(realmRole.length == 2){
-					for(Entry<String, List<String>> e2 : e.getValue().entrySet()){
-						dao.copyRole(realmRole[0], realmRole[1], e2.getValue().toArray(new String[e2.getValue().size()]), e2.getKey());
+		List<ListOptionSerialized> blankRestrictedTools = getEntireToolsList();
+		ShoppingPeriodChanges changes = new ShoppingPeriodChanges();
+		int threads = sakaiProxy.getShoppingPeriodJobThreads();
+		if(threads > 1 && node != null){
+			//each child's subtree is independent of the others, so they can be worked out at the same time
+			updateShoppingPeriodSettingsForNode(node, blankRestrictedTools, changes);
+			updateShoppingPeriodSettingsInParallel(node, blankRestrictedTools, changes, threads);
+		}else{
+			updateShoppingPeriodSettingsHelper(node, blankRestrictedTools, changes);
+		}
+		changes.save();
+		return changes.getErrors();
+	}
+	
+	/**
+	 * Works out the changes for the subtree of each of the node's children on a pool of threads and merges them into changes.
+	 * The children have to already be added to the node.  A subtree that fails is reported as an error for the child node.
+	 * 
+	 * @param node
+	 * @param blankRestrictedTools
+	 * @param changes
+	 * @param threads
+	 */
+	private void updateShoppingPeriodSettingsInParallel(DefaultMutableTreeNode node, final List<ListOptionSerialized> blankRestrictedTools,
+			ShoppingPeriodChanges changes, int threads){
+		if(node.getChildCount() == 0){
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, node.getChildCount()));
+		try{
+			Map<String, Future<ShoppingPeriodChanges>> partitions = new LinkedHashMap<String, Future<ShoppingPeriodChanges>>();
+			for(int i = 0; i < node.getChildCount(); i++){
+				final DefaultMutableTreeNode child = (DefaultMutableTreeNode) node.getChildAt(i);
+				partitions.put(((NodeModel) child.getUserObject()).getNode().title, executor.submit(new Callable<ShoppingPeriodChanges>() {
+					public ShoppingPeriodChanges call() throws Exception {
+						ShoppingPeriodChanges partitionChanges = new ShoppingPeriodChanges();
+						updateShoppingPeriodSettingsHelper(child, blankRestrictedTools, partitionChanges);
+						return partitionChanges;
 					}
+				}));
+			}
+			for(Entry<String, Future<ShoppingPeriodChanges>> entry : partitions.entrySet()){
+				try{
+					changes.merge(entry.getValue().get());
+				}catch (ExecutionException e) {
+					log.error("Error updating the shopping period settings under " + entry.getKey(), e.getCause());
+					changes.addError(entry.getKey(), e.getCause());
 				}
 			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			changes.addError(((NodeModel) node.getUserObject()).getNode().title, e);
+		}finally{
+			executor.shutdownNow();
 		}
-		if(removeAuthToolsSiteProp.size() > 0){
-			dao.removeSiteProperty(removeAuthToolsSiteProp.toArray(new String[removeAuthToolsSiteProp.size()]), DelegatedAccessConstants.SITE_PROP_AUTH_TOOLS);
-		}
-		if(removePublicToolsSiteProp.size() > 0){
-			dao.removeSiteProperty(removePublicToolsSiteProp.toArray(new String[removePublicToolsSiteProp.size()]), DelegatedAccessConstants.SITE_PROP_PUBLIC_TOOLS);
+		log.debug("updateShoppingPeriodSettingsInParallel: " + node.getChildCount() + " subtrees on " + threads + " threads in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+	
+	private void updateShoppingPeriodSettingsHelper(DefaultMutableTreeNode node, List<ListOptionSerialized> blankRestrictedTools, ShoppingPeriodChanges changes){
+		if(node != null){
+			updateShoppingPeriodSettingsForNode(node, blankRestrictedTools, changes);
+			for(int i = 0; i < node.getChildCount(); i++){
+				updateShoppingPeriodSettingsHelper((DefaultMutableTreeNode) node.getChildAt(i), blankRestrictedTools, changes);
+			}
 		}
-		for(Entry<String, List<String>> e : updateAuthToolsSiteProp.entrySet()){
-			dao.updateSiteProperty(e.getValue().toArray(new String[e.getValue().size()]), DelegatedAccessConstants.SITE_PROP_AUTH_TOOLS, e.getKey());
+	}
+	
+	/**
+	 * Adds the changes for this node (if it's a site) and adds the node's children to the tree
+	 * @param node
+	 * @param blankRestrictedTools
+	 * @param changes
+	 */
+	private void updateShoppingPeriodSettingsForNode(DefaultMutableTreeNode node, List<ListOptionSerialized> blankRestrictedTools, ShoppingPeriodChanges changes){
+		NodeModel nodeModel = (NodeModel) node.getUserObject();
+		if(nodeModel.isSiteNode()){
+			try{
+				changes.add(updateShoppingPeriodSettings(nodeModel));
+			}catch(Exception e){
+				log.error(e.getMessage(), e);
+				changes.addError(nodeModel.getNode().title, e);
+			}
 		}
-		for(Entry<String, List<String>> e : updatePublicToolsSiteProp.entrySet()){
-			dao.updateSiteProperty(e.getValue().toArray(new String[e.getValue().size()]), DelegatedAccessConstants.SITE_PROP_PUBLIC_TOOLS, e.getKey());
+		if(!nodeModel.isAddedDirectChildrenFlag() || nodeModel.hasMoreChildren()){
+			addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false);
+			nodeModel.setAddedDirectChildrenFlag(true);
 		}
-		
-		return errors;
 	}
 	
-	private void updateShoppingPeriodSettingsHelper(DefaultMutableTreeNode node, List<ListOptionSerialized> blankRestrictedTools,
-			Map<String, String> errors, List<String> removeAnonAuthRefs, Map<String, Map<String, List<String>>> realmRoleCopy,
-			List<String> removeAuthToolsSiteProp, List<String> removePublicToolsSiteProp, Map<String, List<String>> updateAuthToolsSiteProp, 
-			Map<String, List<String>> updatePublicToolsSiteProp){
-		if(node != null){
-			NodeModel nodeModel = (NodeModel) node.getUserObject();
-			if(nodeModel.isSiteNode()){
-				try{
-					ShoppingPeriodUpdateStruct struct = updateShoppingPeriodSettings(nodeModel);
-					removeAnonAuthRefs.add(nodeModel.getNode().title);
-					if(struct != null && struct.getRealmRole() != null && struct.getRealmRole().length == 2 && (struct.isAnon() || struct.isAuth())){
-						String fromRealmRole = struct.getRealmRole()[0] + ":" + struct.getRealmRole()[1];
-						Map<String, List<String>> copyTo = realmRoleCopy.get(fromRealmRole);
-						if(copyTo == null){
-							copyTo = new HashMap<String, List<String>>();
-						}
-						if(struct.isAuth()){
-							List<String> siteRefs = copyTo.get(".auth");
-							if(siteRefs == null){
-								siteRefs = new ArrayList<String>();
-							}
-							siteRefs.add(struct.getSiteRef());
-							copyTo.put(".auth", siteRefs);
-						}
-						if(struct.isAnon()){
-							List<String> siteRefs = copyTo.get(".anon");
-							if(siteRefs == null){
-								siteRefs = new ArrayList<String>();
-							}
-							siteRefs.add(struct.getSiteRef());
-							copyTo.put(".anon", siteRefs);
-						}
-						realmRoleCopy.put(fromRealmRole, copyTo);
-					}
-					
-					if(struct.getRestrictedAuthToolsList() == null || "".equals(struct.getRestrictedAuthToolsList()) || ";".equals(struct.getRestrictedAuthToolsList())){
-						removeAuthToolsSiteProp.add(struct.getSiteRef().substring(6));
-					}else{
-						List<String> siteRefs = updateAuthToolsSiteProp.get(struct.getRestrictedAuthToolsList());
-						if(siteRefs == null){
-							siteRefs = new ArrayList<String>();
-						}
-						siteRefs.add(struct.getSiteRef().substring(6));
-						updateAuthToolsSiteProp.put(struct.getRestrictedAuthToolsList(), siteRefs);
-					}
-					
-					if(struct.getRestrictedPublicToolsList() == null || "".equals(struct.getRestrictedPublicToolsList()) || ";".equals(struct.getRestrictedPublicToolsList())){
-						removePublicToolsSiteProp.add(struct.getSiteRef().substring(6));
-					}else{
-						List<String> siteRefs = updatePublicToolsSiteProp.get(struct.getRestrictedPublicToolsList());
-						if(siteRefs == null){
-							siteRefs = new ArrayList<String>();
-						}
-						siteRefs.add(struct.getSiteRef().substring(6));
-						updatePublicToolsSiteProp.put(struct.getRestrictedPublicToolsList(), siteRefs);
-					}
-				}catch(Exception e){
-					log.error(e.getMessage(), e);
-					StringWriter sw = new StringWriter();
-					e.printStackTrace(new PrintWriter(sw));
-					errors.put(nodeModel.getNode().title, sw.toString());
+	/**
+	 * The site changes worked out by the shopping period update, collected so they can be saved with a few
+	 * batched queries at the end instead of one site at a time
+	 */
+	private class ShoppingPeriodChanges{
+		private Map<String, String> errors = new HashMap<String, String>();
+		//site ref -> .auth/.anon -> {realm, role} the role is copied from, a site without a role has it removed
+		private Map<String, Map<String, String[]>> anonAuthRoles = new HashMap<String, Map<String, String[]>>();
+		private List<String> removeAuthToolsSiteProp = new ArrayList<String>();
+		private List<String> removePublicToolsSiteProp = new ArrayList<String>();
+		//tools list -> site ids
+		private Map<String, List<String>> updateAuthToolsSiteProp = new HashMap<String, List<String>>();
+		private Map<String, List<String>> updatePublicToolsSiteProp = new HashMap<String, List<String>>();
+		
+		public void add(ShoppingPeriodUpdateStruct struct){
+			Map<String, String[]> roles = new HashMap<String, String[]>();
+			if(struct.getRealmRole() != null && struct.getRealmRole().length == 2){
+				if(struct.isAuth()){
+					roles.put(".auth", struct.getRealmRole());
+				}
+				if(struct.isAnon()){
+					roles.put(".anon", struct.getRealmRole());
 				}
 			}
-			if(!nodeModel.isAddedDirectChildrenFlag()){
-				addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false);
-				nodeModel.setAddedDirectChildrenFlag(true);
+			anonAuthRoles.put(struct.getSiteRef(), roles);
+			
+			String siteId = struct.getSiteRef().substring(6);
+			if(struct.getRestrictedAuthToolsList() == null || "".equals(struct.getRestrictedAuthToolsList()) || ";".equals(struct.getRestrictedAuthToolsList())){
+				removeAuthToolsSiteProp.add(siteId);
+			}else{
+				addSiteProp(updateAuthToolsSiteProp, struct.getRestrictedAuthToolsList(), Collections.singletonList(siteId));
 			}
-			for(int i = 0; i < node.getChildCount(); i++){
-				updateShoppingPeriodSettingsHelper((DefaultMutableTreeNode) node.getChildAt(i), blankRestrictedTools, errors, 
-						removeAnonAuthRefs, realmRoleCopy, removeAuthToolsSiteProp, removePublicToolsSiteProp, updateAuthToolsSiteProp, updatePublicToolsSiteProp);
+			
+			if(struct.getRestrictedPublicToolsList() == null || "".equals(struct.getRestrictedPublicToolsList()) || ";".equals(struct.getRestrictedPublicToolsList())){
+				removePublicToolsSiteProp.add(siteId);
+			}else{
+				addSiteProp(updatePublicToolsSiteProp, struct.getRestrictedPublicToolsList(), Collections.singletonList(siteId));
+			}
+		}
+		
+		public void addError(String title, Throwable e){
+			StringWriter sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			errors.put(title, sw.toString());
+		}
+		
+		public void merge(ShoppingPeriodChanges other){
+			errors.putAll(other.errors);
+			anonAuthRoles.putAll(other.anonAuthRoles);
+			removeAuthToolsSiteProp.addAll(other.removeAuthToolsSiteProp);
+			removePublicToolsSiteProp.addAll(other.removePublicToolsSiteProp);
+			for(Entry<String, List<String>> e : other.updateAuthToolsSiteProp.entrySet()){
+				addSiteProp(updateAuthToolsSiteProp, e.getKey(), e.getValue());
+			}
+			for(Entry<String, List<String>> e : other.updatePublicToolsSiteProp.entrySet()){
+				addSiteProp(updatePublicToolsSiteProp, e.getKey(), e.getValue());
+			}
+		}
+		
+		private void addSiteProp(Map<String, List<String>> siteProps, String value, List<String> siteIds){
+			List<String> toSiteIds = siteProps.get(value);
+			if(toSiteIds == null){
+				toSiteIds = new ArrayList<String>();
+				siteProps.put(value, toSiteIds);
+			}
+			toSiteIds.addAll(siteIds);
+		}
+		
+		/**
+		 * saves all of the changes, the realms that couldn't be updated are added to the errors
+		 */
+		public void save(){
+			if(anonAuthRoles.size() > 0){
+				//only the .anon and .auth roles that are different from what the sites have now are written
+				for(String realmId : dao.updateAnonAndAuthRoles(anonAuthRoles)){
+					errors.put(realmId, "Unable to update the .auth and .anon roles, the changes were rolled back");
+				}
+			}
+			if(removeAuthToolsSiteProp.size() > 0){
+				dao.removeSiteProperty(removeAuthToolsSiteProp.toArray(new String[removeAuthToolsSiteProp.size()]), DelegatedAccessConstants.SITE_PROP_AUTH_TOOLS);
+			}
+			if(removePublicToolsSiteProp.size() > 0){
+				dao.removeSiteProperty(removePublicToolsSiteProp.toArray(new String[removePublicToolsSiteProp.size()]), DelegatedAccessConstants.SITE_PROP_PUBLIC_TOOLS);
+			}
+			for(Entry<String, List<String>> e : updateAuthToolsSiteProp.entrySet()){
+				dao.updateSiteProperty(e.getValue().toArray(new String[e.getValue().size()]), DelegatedAccessConstants.SITE_PROP_AUTH_TOOLS, e.getKey());
 			}
+			for(Entry<String, List<String>> e : updatePublicToolsSiteProp.entrySet()){
+				dao.updateSiteProperty(e.getValue().toArray(new String[e.getValue().size()]), DelegatedAccessConstants.SITE_PROP_PUBLIC_TOOLS, e.getKey());
+			}
+		}
+		
+		public Map<String, String> getErrors() {
+			return errors;
 		}
 	}
 	
@@ -2470,7 +3483,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 	
 	public boolean isUserAllowBecomeUser(String userId, String siteRef){
-		Map<String, List<String>> nodeIds = getNodesBySiteRef(new String[]{siteRef}, DelegatedAccessConstants.HIERARCHY_ID);
+		Map<String, List<String>> nodeIds = getNodesBySiteRef(new String[]{siteRef}, getActiveHierarchyId());
 		if(nodeIds != null && nodeIds.containsKey(siteRef) && nodeIds.get(siteRef) != null && nodeIds.get(siteRef).size() == 1){
 			//we found the site, now look up this user's permission for this node
 			String nodeId = nodeIds.get(siteRef).get(0);
@@ -2486,16 +3499,14 @@ public class ProjectLogicImpl implements ProjectLogic {
 	}
 	
 	public HierarchyNodeSerialized getRootNodeId(){
-		return new HierarchyNodeSerialized(hierarchyService.getRootNode(DelegatedAccessConstants.HIERARCHY_ID));
+		return new HierarchyNodeSerialized(hierarchyService.getRootNode(getActiveHierarchyId()));
 	}
 	
 	public Set<HierarchyNodeSerialized> getDirectNodes(String nodeId){
 		HierarchyNodeSerialized node = getCachedNode(nodeId);
 		Set<HierarchyNodeSerialized> returnSet = new HashSet<HierarchyNodeSerialized>();
 		if(node != null && node.directChildNodeIds != null){
-			for(String id : node.directChildNodeIds){
-				returnSet.add(getCachedNode(id));
-			}
+			returnSet.addAll(getCachedNodes(node.directChildNodeIds));
 		}
 		return returnSet;
 	}
@@ -2504,12 +3515,12 @@ public class ProjectLogicImpl implements ProjectLogic {
 		List<AccessSearchResult> returnSet = new ArrayList<AccessSearchResult>();
 		if(user != null){
 			boolean isAdmin = sakaiProxy.isSuperUser();
+			//only the top access admin nodes are kept, children are checked against the hierarchy snapshot
 			Set<String> accessAdminNodesArr = new HashSet<String>();
 			if(!isAdmin){
 				Set<HierarchyNodeSerialized> accessAdminNodes = getAccessAdminNodesForUser(sakaiProxy.getCurrentUserId());
 				for(HierarchyNodeSerialized n : accessAdminNodes){
 					accessAdminNodesArr.add(n.id);
-					accessAdminNodesArr.addAll(n.childNodeIds);
 				}
 			}
 			
@@ -2517,7 +3528,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 			Set<HierarchyNodeSerialized> accessNodes = getAccessNodesForUser(user.getId());
 			for(HierarchyNodeSerialized n : accessNodes){
 				boolean canEdit = false;
-				if(isAdmin || accessAdminNodesArr.contains(n.id)){
+				if(isAdmin || isInSubtree(n.id, accessAdminNodesArr)){
 					canEdit = true;
 				}
 				AccessSearchResult r = new AccessSearchResult();
@@ -2533,16 +3544,16 @@ public class ProjectLogicImpl implements ProjectLogic {
 				r.setHierarchyNodes(getHierarchyForNode(n));
 				r.setNodeId(n.id);
 				r.setCanEdit(canEdit);
-				Set<String> perms = getPermsForUserNodes(user.getId(), n.id);
-				r.setAccess(getAccessRealmRole(perms));
-				r.setRestrictedTools(getRestrictedAuthToolsForUser(perms));
+				NodePermissions perms = getNodePermissions(user.getId(), n.id);
+				r.setAccess(perms.getAccess());
+				r.setRestrictedTools(new ArrayList<String>(perms.getDeniedAuthToolSet()));
 				returnSet.add(r);
 			}
 			//Shoppinger period nodes
 			Set<HierarchyNodeSerialized> shoppingAdminNodes = getShoppingPeriodAdminNodesForUser(user.getId());
 			for(HierarchyNodeSerialized n : shoppingAdminNodes){
 				boolean canEdit = false;
-				if(isAdmin || accessAdminNodesArr.contains(n.id)){
+				if(isAdmin || isInSubtree(n.id, accessAdminNodesArr)){
 					canEdit = true;
 				}
 				AccessSearchResult r = new AccessSearchResult();
@@ -2564,7 +3575,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 			Set<HierarchyNodeSerialized> accessAdminNodes = getAccessAdminNodesForUser(user.getId());
 			for(HierarchyNodeSerialized n : accessAdminNodes){
 				boolean canEdit = false;
-				if(isAdmin || accessAdminNodesArr.contains(n.id)){
+				if(isAdmin || isInSubtree(n.id, accessAdminNodesArr)){
 					canEdit = true;
 				}
 				AccessSearchResult r = new AccessSearchResult();
@@ -2590,8 +3601,7 @@ public class ProjectLogicImpl implements ProjectLogic {
 	
 	private List<String> getHierarchyForNode(HierarchyNodeSerialized node){
 		List<String> returnList = new ArrayList<String>();
-		for(String parentId : getOrderedParentsList(node)){
-			HierarchyNodeSerialized parentNode = getCachedNode(parentId);
+		for(HierarchyNodeSerialized parentNode : getCachedNodes(getOrderedParentsList(node))){
 			returnList.add(parentNode.description);
 		}
 		returnList.add(node.description);
@@ -2606,7 +3616,6 @@ public class ProjectLogicImpl implements ProjectLogic {
 			Set<HierarchyNodeSerialized> accessAdminNodes = getAccessAdminNodesForUser(sakaiProxy.getCurrentUserId());
 			for(HierarchyNodeSerialized n : accessAdminNodes){
 				accessAdminNodesArr.add(n.id);
-				accessAdminNodesArr.addAll(n.childNodeIds);
 			}
 		}
 		List<AccessSearchResult> returnSet = new ArrayList<AccessSearchResult>();
@@ -2627,15 +3636,16 @@ public class ProjectLogicImpl implements ProjectLogic {
 				for(Entry<String, Map<String, Set<String>>> usersAndPermsForNode : usersAndPerms.entrySet()){
 					String nodeId = usersAndPermsForNode.getKey();
 					boolean canEdit = false;
-					if(isAdmin || accessAdminNodesArr.contains(nodeId)){
+					if(isAdmin || isInSubtree(nodeId, accessAdminNodesArr)){
 						canEdit = true;
 					}
 					for(Entry<String, Set<String>> userAndPerms : usersAndPermsForNode.getValue().entrySet()){
 						User u = sakaiProxy.getUser(userAndPerms.getKey());
 						if(u != null){
-							boolean hasAccess = getIsDirectAccess(userAndPerms.getValue());
-							boolean hasShoppingAdmin = isShoppingPeriodAdmin(userAndPerms.getValue());
-							boolean hasAccessAdmin = getIsAccessAdmin(userAndPerms.getValue());
+							NodePermissions perms = NodePermissions.parse(userAndPerms.getValue());
+							boolean hasAccess = perms.isDirectAccess();
+							boolean hasShoppingAdmin = perms.isShoppingPeriodAdmin();
+							boolean hasAccessAdmin = perms.isAccessAdmin();
 							if(hasAccess || hasShoppingAdmin || hasAccessAdmin){
 								String id = u.getId();
 								String eid = u.getEid();
@@ -2659,8 +3669,8 @@ public class ProjectLogicImpl implements ProjectLogic {
 									r.setHierarchyNodes(hierarchy);
 									r.setNodeId(nodeId);
 									r.setCanEdit(canEdit);
-									r.setAccess(getAccessRealmRole(userAndPerms.getValue()));
-									r.setRestrictedTools(getRestrictedAuthToolsForUser(userAndPerms.getValue()));
+									r.setAccess(perms.getAccess());
+									r.setRestrictedTools(new ArrayList<String>(perms.getDeniedAuthToolSet()));
 									returnSet.add(r);
 								}
 								if(hasShoppingAdmin){
@@ -2760,7 +3770,18 @@ public class ProjectLogicImpl implements ProjectLogic {
 	public Set<String> filterShoppingPeriodEditNodes(Set<String> nodeIds, String userId) {
 		Set<String> returnNodes = new HashSet<String>();
 		Set<HierarchyNode> nodes = hierarchyService.getNodesForUserPerm(userId, DelegatedAccessConstants.NODE_PERM_SHOPPING_ADMIN);
+		HierarchySnapshot snapshot = getHierarchySnapshot();
+		Set<String> shoppingAdminNodeIds = new HashSet<String>();
+		for(HierarchyNode node : nodes){
+			shoppingAdminNodeIds.add(node.id);
+		}
 		for(String nodeId : nodeIds){
+			if(snapshot != null && snapshot.contains(nodeId)){
+				if(snapshot.isInSubtree(nodeId, shoppingAdminNodeIds)){
+					returnNodes.add(nodeId);
+				}
+				continue;
+			}
 			for(HierarchyNode node : nodes){
 				if(nodeId.equals(node.id) || node.childNodeIds.contains(nodeId)){
 					returnNodes.add(nodeId);
@@ -708,4 +708,60 @@ public class SakaiProxyImpl implements SakaiProxy {
 	public boolean isSearchHideTerm(){
 		return serverConfigurationService.getBoolean(DelegatedAccessConstants.PROPERTIES_SEARCH_HIDE_TERM, false);
 	}
+	
+	public int getHierarchySnapshotTTL(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_HIERARCHY_SNAPSHOT_TTL, 60);
+	}
+	
+	public int getDelegatedAccessUserFilterTTL(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_USER_FILTER_TTL, 10);
+	}
+	
+	public int getSessionAccessMapMax(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_SESSION_ACCESS_MAP_MAX, 5000);
+	}
+	
+	public int getTreeChildrenPageSize(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_TREE_CHILDREN_PAGE_SIZE, 200);
+	}
+	
+	public boolean isShoppingPeriodJobIncremental(){
+		return serverConfigurationService.getBoolean(DelegatedAccessConstants.PROPERTIES_SHOPPING_JOB_INCREMENTAL, true);
+	}
+	
+	public int getShoppingPeriodJobThreads(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_SHOPPING_JOB_THREADS, 1);
+	}
+	
+	public int getSiteHierarchyJobThreads(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_SITE_HIERARCHY_JOB_THREADS, 1);
+	}
+	
+	public int getSiteHierarchyJobLockLeaseMinutes(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_SITE_HIERARCHY_JOB_LOCK_LEASE, 30);
+	}
+	
+	public String getSiteHierarchyJobMode(){
+		return serverConfigurationService.getString(DelegatedAccessConstants.PROPERTIES_SITE_HIERARCHY_JOB_MODE, DelegatedAccessConstants.SITE_HIERARCHY_JOB_MODE_UPDATE);
+	}
+	
+	public boolean isSiteHierarchyEventsEnabled(){
+		return serverConfigurationService.getBoolean(DelegatedAccessConstants.PROPERTIES_SITE_HIERARCHY_EVENTS_ENABLED, true);
+	}
+	
+	public boolean isSiteSearchIndexEnabled(){
+		return serverConfigurationService.getBoolean(DelegatedAccessConstants.PROPERTIES_SITE_SEARCH_INDEX_ENABLED, true);
+	}
+	
+	public String getSiteSearchIndexPath(){
+		return serverConfigurationService.getString(DelegatedAccessConstants.PROPERTIES_SITE_SEARCH_INDEX_PATH, serverConfigurationService.getSakaiHomePath() + "delegatedaccess/sitesearch.idx");
+	}
+	
+	public int getSiteSearchIndexRebuildHours(){
+		return serverConfigurationService.getInt(DelegatedAccessConstants.PROPERTIES_SITE_SEARCH_INDEX_REBUILD, 24);
+	}
+	
+	public String getServerId(){
+		return serverConfigurationService.getServerId();
+	}
 }
\ No newline at end of file
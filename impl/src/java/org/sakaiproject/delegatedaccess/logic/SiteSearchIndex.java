@@ -0,0 +1,705 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.apache.log4j.Logger;
+import org.sakaiproject.delegatedaccess.dao.DelegatedAccessDao;
+import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
+import org.sakaiproject.site.api.Site;
+
+/**
+ * A local index of every non user, non special site's title, published flag, term and hierarchy properties and
+ * instructors, so the site search doesn't have to scan SAKAI_SITE and SAKAI_SITE_PROPERTY with "like" queries.
+ *
+ * Property values and instructors are inverted (value -> sites, instructor -> sites) and the title search only
+ * scans the titles of the sites that are left.  Searches the index can't answer the same way the database would
+ * (member searches, properties that aren't indexed, SQL wildcards) return null and go to the database instead.
+ *
+ * Each server builds its own index in the background by streaming the site tables, saves it to local disk so a
+ * restart only has to catch up, and keeps it up to date from site and site realm events.  The site hierarchy job asks
+ * every server for a catch up of the sites modified since the last one, and the whole index is rebuilt every
+ * delegatedaccess.sitesearch.index.rebuild hours to pick up anything that was missed (like deleted sites).  It is also
+ * rebuilt when too many sites change at once to queue, since a catch up wouldn't see removed sites or new instructors.
+ *
+ * All changes are made by the index's background thread; searches only take the read lock.
+ */
+public class SiteSearchIndex {
+	private static final Logger log = Logger.getLogger(SiteSearchIndex.class);
+	private static final int FILE_VERSION = 1;
+	//seconds between updates
+	private static final int UPDATE_DELAY = 30;
+	private static final int MAX_QUEUED_SITES = 10000;
+	private static final int BATCH_SIZE = 1000;
+	//how long an index that has changed waits to be saved again
+	private static final long SAVE_INTERVAL = 10 * 60000L;
+	//catch ups go back a bit further than the last one to allow for clock differences between servers
+	private static final long MODIFIED_SLACK = 10 * 60000L;
+
+	@Getter @Setter
+	private SakaiProxy sakaiProxy;
+	@Getter @Setter
+	private DelegatedAccessDao dao;
+
+	private volatile Index index;
+	private final Set<String> queuedSiteIds = new LinkedHashSet<String>();
+	private volatile boolean catchUpRequested = false;
+	private volatile boolean rebuildRequested = false;
+	private long lastSaved = 0;
+	private ScheduledExecutorService executor;
+
+	public void init() {
+		if(!sakaiProxy.isSiteSearchIndexEnabled()){
+			log.info("The site search index is disabled, site searches will query the database");
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DelegatedAccessSiteSearchIndex");
+				thread.setDaemon(true);
+				//don't compete with requests
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try{
+					update();
+				}catch (Exception e) {
+					//keep the thread running for the next update
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, UPDATE_DELAY, UPDATE_DELAY, TimeUnit.SECONDS);
+	}
+
+	public void destroy() {
+		if(executor != null){
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queues a site that was added, updated or removed to be updated in the index
+	 * @param siteRef
+	 */
+	public void siteChanged(String siteRef){
+		if(executor == null || siteRef == null || !siteRef.startsWith("/site/")){
+			return;
+		}
+		String siteId = siteRef.substring("/site/".length());
+		if("".equals(siteId) || siteId.startsWith("~") || siteId.startsWith("!")){
+			return;
+		}
+		synchronized (queuedSiteIds) {
+			if(queuedSiteIds.size() < MAX_QUEUED_SITES){
+				queuedSiteIds.add(siteId);
+			}else{
+				//too many changes to do one at a time, and removed sites and realm changes don't change the
+				//modified date, so only a rebuild is sure to see them all
+				rebuildRequested = true;
+			}
+		}
+	}
+
+	/**
+	 * Asks for the sites modified since the last update to be read into the index
+	 */
+	public void catchUp(){
+		catchUpRequested = true;
+	}
+
+	/**
+	 * Searches the index the same way DelegatedAccessDao.searchSites searches the database
+	 *
+	 * @param titleSearch
+	 * @param propsMap
+	 * @param instructorIds
+	 * @param instructorType
+	 * @param publishedOnly
+	 * @return a list of {siteId, title, published} or {siteId, title, published, userId} if instructors were searched,
+	 * or null if the index isn't ready or can't answer this search
+	 */
+	public List<Object[]> search(String titleSearch, Map<String, String> propsMap, String[] instructorIds, String instructorType, boolean publishedOnly){
+		Index current = index;
+		if(current == null){
+			return null;
+		}
+		boolean searchInstructors = instructorIds != null && instructorIds.length > 0;
+		if(searchInstructors && DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR_TYPE_MEMBER.equals(instructorType)){
+			//only instructors are indexed
+			return null;
+		}
+		if(hasWildcard(titleSearch)){
+			return null;
+		}
+		if(propsMap != null){
+			for(Entry<String, String> entry : propsMap.entrySet()){
+				if(current.getPropertyIndex(entry.getKey()) < 0 || hasWildcard(entry.getValue())){
+					return null;
+				}
+			}
+		}
+		return current.search(titleSearch == null ? "" : titleSearch.toLowerCase(), propsMap, searchInstructors ? instructorIds : null, publishedOnly);
+	}
+
+	private boolean hasWildcard(String search){
+		return search != null && (search.indexOf('%') >= 0 || search.indexOf('_') >= 0);
+	}
+
+	private void update(){
+		String[] properties = getIndexedProperties();
+		Index current = index;
+		if(current == null){
+			//first run since this server started
+			current = load(properties);
+			if(current != null){
+				index = current;
+				catchUpRequested = true;
+			}
+		}
+		if(current == null || rebuildRequested || !Arrays.equals(properties, current.properties)
+				|| System.currentTimeMillis() - current.builtOn > sakaiProxy.getSiteSearchIndexRebuildHours() * 3600000L){
+			//the rebuild reads every site, only the sites that change while it runs need to be updated after it
+			rebuildRequested = false;
+			synchronized (queuedSiteIds) {
+				queuedSiteIds.clear();
+			}
+			Index rebuilt = rebuild(properties);
+			if(rebuilt == null){
+				//the queued sites were dropped, so try again next time
+				rebuildRequested = true;
+				return;
+			}
+			current = rebuilt;
+			index = current;
+			save(current);
+		}
+		if(catchUpRequested){
+			catchUpRequested = false;
+			catchUp(current);
+		}
+		updateQueuedSites(current);
+		if(current.changed && System.currentTimeMillis() - lastSaved > SAVE_INTERVAL){
+			save(current);
+		}
+	}
+
+	/**
+	 * returns the term field followed by the hierarchy properties
+	 * @return
+	 */
+	private String[] getIndexedProperties(){
+		String[] hierarchy = sakaiProxy.getServerConfigurationStrings(DelegatedAccessConstants.HIERARCHY_SITE_PROPERTIES);
+		if(hierarchy == null || hierarchy.length == 0){
+			hierarchy = DelegatedAccessConstants.DEFAULT_HIERARCHY;
+		}
+		Set<String> properties = new LinkedHashSet<String>();
+		properties.add(sakaiProxy.getTermField());
+		properties.addAll(Arrays.asList(hierarchy));
+		return properties.toArray(new String[properties.size()]);
+	}
+
+	/**
+	 * Reads every site into a new index, returns null if the sites couldn't be read
+	 * @param properties
+	 * @return
+	 */
+	private Index rebuild(String[] properties){
+		long startTime = System.currentTimeMillis();
+		final Index newIndex = new Index(properties, startTime, startTime - MODIFIED_SLACK);
+		SiteBatchHandler handler = new SiteBatchHandler(newIndex);
+		if(!dao.streamSites(properties, null, null, null, handler) || !handler.finish()){
+			log.error("SiteSearchIndex: unable to read the sites, site searches will keep using the database");
+			return null;
+		}
+		newIndex.changed = false;
+		log.info("SiteSearchIndex: indexed " + newIndex.size() + " sites in " + (System.currentTimeMillis() - startTime) + " ms");
+		return newIndex;
+	}
+
+	/**
+	 * Reads the sites modified since the last catch up into the index
+	 * @param current
+	 */
+	private void catchUp(Index current){
+		long startTime = System.currentTimeMillis();
+		SiteBatchHandler handler = new SiteBatchHandler(current);
+		if(dao.streamSites(current.properties, null, new Date(current.modifiedSince), null, handler) && handler.finish()){
+			current.modifiedSince = startTime - MODIFIED_SLACK;
+			current.changed = true;
+			log.debug("SiteSearchIndex: caught up " + handler.count + " sites in " + (System.currentTimeMillis() - startTime) + " ms");
+		}else{
+			//try again next time
+			catchUpRequested = true;
+		}
+	}
+
+	private void updateQueuedSites(Index current){
+		List<String> siteIds = new ArrayList<String>();
+		synchronized (queuedSiteIds) {
+			for(Iterator<String> i = queuedSiteIds.iterator(); i.hasNext() && siteIds.size() < BATCH_SIZE;){
+				siteIds.add(i.next());
+				i.remove();
+			}
+		}
+		if(siteIds.isEmpty()){
+			return;
+		}
+		Map<String, Set<String>> instructors = dao.getSiteInstructors(siteIds.toArray(new String[siteIds.size()]));
+		if(instructors == null){
+			return;
+		}
+		for(String siteId : siteIds){
+			Site site = sakaiProxy.getSiteById(siteId);
+			if(site == null){
+				current.remove(siteId);
+				continue;
+			}
+			String[] values = new String[current.properties.length];
+			for(int i = 0; i < values.length; i++){
+				values[i] = site.getProperties().getProperty(current.properties[i]);
+			}
+			current.put(siteId, site.getTitle(), site.isPublished(), values, instructors.get(siteId));
+		}
+	}
+
+	/**
+	 * Collects the streamed sites into batches so their published flags and instructors can be looked up together
+	 */
+	private class SiteBatchHandler implements DelegatedAccessDao.SiteHandler {
+		private final Index target;
+		private final Map<String, Object[]> batch = new HashMap<String, Object[]>();
+		private boolean failed = false;
+		private int count = 0;
+
+		public SiteBatchHandler(Index target){
+			this.target = target;
+		}
+
+		public void processSite(String siteId, String title, Map<String, String> properties) {
+			if(failed){
+				return;
+			}
+			String[] values = new String[target.properties.length];
+			for(int i = 0; i < values.length; i++){
+				values[i] = properties.get(target.properties[i]);
+			}
+			batch.put(siteId, new Object[]{title, values});
+			if(batch.size() >= BATCH_SIZE){
+				flush();
+			}
+		}
+
+		/**
+		 * adds the last batch to the index
+		 * @return false if any of the batches couldn't be read
+		 */
+		public boolean finish(){
+			flush();
+			return !failed;
+		}
+
+		private void flush(){
+			if(batch.isEmpty() || failed){
+				return;
+			}
+			String[] siteIds = batch.keySet().toArray(new String[batch.size()]);
+			Set<String> published = dao.getPublishedSiteIds(siteIds);
+			Map<String, Set<String>> instructors = dao.getSiteInstructors(siteIds);
+			if(published == null || instructors == null){
+				failed = true;
+				return;
+			}
+			for(Entry<String, Object[]> entry : batch.entrySet()){
+				target.put(entry.getKey(), (String) entry.getValue()[0], published.contains(entry.getKey()), (String[]) entry.getValue()[1], instructors.get(entry.getKey()));
+			}
+			count += batch.size();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Loads the index saved by this server, returns null if there isn't one or it was built with other properties
+	 * @param properties
+	 * @return
+	 */
+	private Index load(String[] properties){
+		File file = new File(sakaiProxy.getSiteSearchIndexPath());
+		if(!file.exists()){
+			return null;
+		}
+		long startTime = System.currentTimeMillis();
+		DataInputStream in = null;
+		try{
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+			if(in.readInt() != FILE_VERSION){
+				return null;
+			}
+			long builtOn = in.readLong();
+			long modifiedSince = in.readLong();
+			String[] fileProperties = new String[in.readInt()];
+			for(int i = 0; i < fileProperties.length; i++){
+				fileProperties[i] = in.readUTF();
+			}
+			if(!Arrays.equals(properties, fileProperties)){
+				log.info("SiteSearchIndex: the indexed properties have changed, rebuilding the index");
+				return null;
+			}
+			Index loaded = new Index(properties, builtOn, modifiedSince);
+			int size = in.readInt();
+			for(int i = 0; i < size; i++){
+				String siteId = in.readUTF();
+				String title = readString(in);
+				boolean published = in.readBoolean();
+				String[] values = new String[properties.length];
+				for(int j = 0; j < values.length; j++){
+					values[j] = readString(in);
+				}
+				Set<String> instructors = new HashSet<String>();
+				for(int j = in.readInt(); j > 0; j--){
+					instructors.add(in.readUTF());
+				}
+				loaded.put(siteId, title, published, values, instructors);
+			}
+			loaded.changed = false;
+			lastSaved = System.currentTimeMillis();
+			log.info("SiteSearchIndex: loaded " + loaded.size() + " sites from " + file + " in " + (System.currentTimeMillis() - startTime) + " ms");
+			return loaded;
+		}catch (IOException e) {
+			log.warn("SiteSearchIndex: unable to read " + file + ", rebuilding the index: " + e.getMessage());
+			return null;
+		}finally{
+			if(in != null){
+				try{
+					in.close();
+				}catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Saves the index to local disk.  It's written to a temporary file first so a crash never leaves half an index behind.
+	 * @param current
+	 */
+	private void save(Index current){
+		File file = new File(sakaiProxy.getSiteSearchIndexPath());
+		File tmpFile = new File(file.getPath() + ".tmp");
+		if(file.getParentFile() != null){
+			file.getParentFile().mkdirs();
+		}
+		DataOutputStream out = null;
+		try{
+			out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+			out.writeInt(FILE_VERSION);
+			current.write(out);
+			out.close();
+			out = null;
+			if((file.exists() && !file.delete()) || !tmpFile.renameTo(file)){
+				log.warn("SiteSearchIndex: unable to replace " + file);
+				return;
+			}
+			lastSaved = System.currentTimeMillis();
+		}catch (IOException e) {
+			log.warn("SiteSearchIndex: unable to save " + file + ": " + e.getMessage());
+		}finally{
+			if(out != null){
+				try{
+					out.close();
+				}catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException{
+		out.writeBoolean(value != null);
+		if(value != null){
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * The indexed sites, with the sites for each property value and instructor
+	 */
+	static class Index {
+		private final String[] properties;
+		private final long builtOn;
+		private long modifiedSince;
+		private boolean changed = false;
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private final Map<String, IndexedSite> sites = new HashMap<String, IndexedSite>();
+		//one map per property of lower case value -> siteIds
+		private final List<Map<String, Set<String>>> propertySites;
+		private final Map<String, Set<String>> instructorSites = new HashMap<String, Set<String>>();
+
+		public Index(String[] properties, long builtOn, long modifiedSince){
+			this.properties = properties;
+			this.builtOn = builtOn;
+			this.modifiedSince = modifiedSince;
+			propertySites = new ArrayList<Map<String, Set<String>>>(properties.length);
+			for(int i = 0; i < properties.length; i++){
+				propertySites.add(new HashMap<String, Set<String>>());
+			}
+		}
+
+		public int getPropertyIndex(String property){
+			for(int i = 0; i < properties.length; i++){
+				if(properties[i].equals(property)){
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public int size(){
+			lock.readLock().lock();
+			try{
+				return sites.size();
+			}finally{
+				lock.readLock().unlock();
+			}
+		}
+
+		public void put(String siteId, String title, boolean published, String[] values, Set<String> instructors){
+			String[] instructorIds = instructors == null || instructors.isEmpty() ? null : instructors.toArray(new String[instructors.size()]);
+			lock.writeLock().lock();
+			try{
+				removeSite(siteId);
+				sites.put(siteId, new IndexedSite(title, published, values, instructorIds));
+				for(int i = 0; i < values.length; i++){
+					if(values[i] != null){
+						addPosting(propertySites.get(i), values[i].toLowerCase(), siteId);
+					}
+				}
+				if(instructorIds != null){
+					for(String instructorId : instructorIds){
+						addPosting(instructorSites, instructorId, siteId);
+					}
+				}
+				changed = true;
+			}finally{
+				lock.writeLock().unlock();
+			}
+		}
+
+		public void remove(String siteId){
+			lock.writeLock().lock();
+			try{
+				if(removeSite(siteId)){
+					changed = true;
+				}
+			}finally{
+				lock.writeLock().unlock();
+			}
+		}
+
+		private boolean removeSite(String siteId){
+			IndexedSite site = sites.remove(siteId);
+			if(site == null){
+				return false;
+			}
+			for(int i = 0; i < site.values.length; i++){
+				if(site.values[i] != null){
+					removePosting(propertySites.get(i), site.values[i].toLowerCase(), siteId);
+				}
+			}
+			if(site.instructorIds != null){
+				for(String instructorId : site.instructorIds){
+					removePosting(instructorSites, instructorId, siteId);
+				}
+			}
+			return true;
+		}
+
+		private void addPosting(Map<String, Set<String>> postings, String key, String siteId){
+			Set<String> siteIds = postings.get(key);
+			if(siteIds == null){
+				siteIds = new HashSet<String>();
+				postings.put(key, siteIds);
+			}
+			siteIds.add(siteId);
+		}
+
+		private void removePosting(Map<String, Set<String>> postings, String key, String siteId){
+			Set<String> siteIds = postings.get(key);
+			if(siteIds != null){
+				siteIds.remove(siteId);
+				if(siteIds.isEmpty()){
+					postings.remove(key);
+				}
+			}
+		}
+
+		/**
+		 * @param titleSearch lower case
+		 * @param propsMap
+		 * @param instructorIds null if instructors aren't being searched
+		 * @param publishedOnly
+		 * @return
+		 */
+		public List<Object[]> search(String titleSearch, Map<String, String> propsMap, String[] instructorIds, boolean publishedOnly){
+			List<Object[]> results = new ArrayList<Object[]>();
+			lock.readLock().lock();
+			try{
+				//start with the smallest set of sites the properties and instructors allow, null means every site
+				List<Set<String>> restrictions = new ArrayList<Set<String>>();
+				if(propsMap != null){
+					for(Entry<String, String> entry : propsMap.entrySet()){
+						Set<String> siteIds = propertySites.get(getPropertyIndex(entry.getKey())).get(entry.getValue() == null ? null : entry.getValue().toLowerCase());
+						if(siteIds == null){
+							return results;
+						}
+						restrictions.add(siteIds);
+					}
+				}
+				Set<String> searchedInstructors = null;
+				if(instructorIds != null){
+					searchedInstructors = new HashSet<String>(Arrays.asList(instructorIds));
+					Set<String> siteIds = new HashSet<String>();
+					for(String instructorId : searchedInstructors){
+						Set<String> instructorSiteIds = instructorSites.get(instructorId);
+						if(instructorSiteIds != null){
+							siteIds.addAll(instructorSiteIds);
+						}
+					}
+					restrictions.add(siteIds);
+				}
+				Set<String> smallest = null;
+				for(Set<String> siteIds : restrictions){
+					if(smallest == null || siteIds.size() < smallest.size()){
+						smallest = siteIds;
+					}
+				}
+				Iterable<String> candidates = smallest == null ? sites.keySet() : smallest;
+				for(String siteId : candidates){
+					IndexedSite site = sites.get(siteId);
+					if(site == null || (publishedOnly && !site.published) || site.lowerTitle == null || !site.lowerTitle.contains(titleSearch)){
+						continue;
+					}
+					boolean matches = true;
+					for(Set<String> siteIds : restrictions){
+						if(siteIds != smallest && !siteIds.contains(siteId)){
+							matches = false;
+							break;
+						}
+					}
+					if(!matches){
+						continue;
+					}
+					if(searchedInstructors == null){
+						results.add(new Object[]{siteId, site.title, site.published});
+					}else{
+						//one row per matching instructor, like the database search
+						for(String instructorId : site.instructorIds){
+							if(searchedInstructors.contains(instructorId)){
+								results.add(new Object[]{siteId, site.title, site.published, instructorId});
+							}
+						}
+					}
+				}
+			}finally{
+				lock.readLock().unlock();
+			}
+			return results;
+		}
+
+		public void write(DataOutputStream out) throws IOException{
+			lock.readLock().lock();
+			try{
+				out.writeLong(builtOn);
+				out.writeLong(modifiedSince);
+				out.writeInt(properties.length);
+				for(String property : properties){
+					out.writeUTF(property);
+				}
+				out.writeInt(sites.size());
+				for(Entry<String, IndexedSite> entry : sites.entrySet()){
+					IndexedSite site = entry.getValue();
+					out.writeUTF(entry.getKey());
+					writeString(out, site.title);
+					out.writeBoolean(site.published);
+					for(String value : site.values){
+						writeString(out, value);
+					}
+					String[] instructorIds = site.instructorIds == null ? new String[0] : site.instructorIds;
+					out.writeInt(instructorIds.length);
+					for(String instructorId : instructorIds){
+						out.writeUTF(instructorId);
+					}
+				}
+				changed = false;
+			}finally{
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	private static class IndexedSite {
+		private final String title;
+		private final String lowerTitle;
+		private final boolean published;
+		//the values of Index.properties, in the same order
+		private final String[] values;
+		private final String[] instructorIds;
+
+		public IndexedSite(String title, boolean published, String[] values, String[] instructorIds){
+			this.title = title;
+			this.lowerTitle = title == null ? null : title.toLowerCase();
+			this.published = published;
+			this.values = values;
+			this.instructorIds = instructorIds;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.delegatedaccess.model.SiteSearchResult;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResultPage;
+import org.sakaiproject.delegatedaccess.util.SiteSearchResultComparator;
+
+/**
+ * One of a user's site searches, kept on the server so the search page only has to hold the page it is showing.
+ *
+ * The results are sorted by the requested column and then by site id, so every result has a unique position.
+ * A page can start right after the last site of the previous page (keyset), which still works when the results
+ * were searched again in between and sites were added or removed, or at an offset when the site isn't known.
+ */
+class SiteSearchResults {
+	private final String searchKey;
+	private final long created;
+	private final List<SiteSearchResult> results;
+	private int orderBy = -1;
+	private boolean orderAsc = true;
+	//siteId -> position in the sorted results
+	private Map<String, Integer> positions;
+
+	public SiteSearchResults(String searchKey, List<SiteSearchResult> results){
+		this.searchKey = searchKey;
+		this.created = System.currentTimeMillis();
+		this.results = results;
+	}
+
+	public String getSearchKey() {
+		return searchKey;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @param orderBy one of the DelegatedAccessConstants.SEARCH_COMPARE_ values
+	 * @param orderAsc
+	 * @param afterSiteId if not null and still in the results, the page starts after this site instead of at offset
+	 * @param offset
+	 * @param limit
+	 * @return
+	 */
+	public synchronized SiteSearchResultPage getPage(int orderBy, boolean orderAsc, String afterSiteId, int offset, int limit){
+		sort(orderBy, orderAsc);
+		int start = offset;
+		if(afterSiteId != null && positions.containsKey(afterSiteId)){
+			start = positions.get(afterSiteId) + 1;
+		}
+		start = Math.max(0, Math.min(start, results.size()));
+		int end = (int) Math.min((long) start + Math.max(limit, 0), results.size());
+		return new SiteSearchResultPage(new ArrayList<SiteSearchResult>(results.subList(start, end)), start, results.size());
+	}
+
+	private void sort(int orderBy, boolean orderAsc){
+		if(positions != null && this.orderBy == orderBy && this.orderAsc == orderAsc){
+			return;
+		}
+		final Comparator<SiteSearchResult> columnComparator = new SiteSearchResultComparator(orderBy);
+		Comparator<SiteSearchResult> comparator = new Comparator<SiteSearchResult>() {
+			public int compare(SiteSearchResult o1, SiteSearchResult o2) {
+				int compare = columnComparator.compare(o1, o2);
+				return compare != 0 ? compare : o1.getSiteId().compareTo(o2.getSiteId());
+			}
+		};
+		Collections.sort(results, orderAsc ? comparator : Collections.reverseOrder(comparator));
+		positions = new HashMap<String, Integer>(results.size() * 2);
+		for(int i = 0; i < results.size(); i++){
+			positions.put(results.get(i).getSiteId(), i);
+		}
+		this.orderBy = orderBy;
+		this.orderAsc = orderAsc;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns denied tool sets so that sets with the same tools share one String[] instance.
+ *
+ * The session and the restricted tools caches still store denied tools as String[] (the kernel
+ * reads them in that format).  Tool ids are mapped to small ints only to build the lookup key: a
+ * bitset of the tools in a set, which doesn't depend on their order.  A user with access to thousands
+ * of sites will usually only have a handful of distinct denied tool sets, so this saves one array per site.
+ *
+ * Tools that weren't known when the dictionary was created are added the first time they are seen.
+ */
+class ToolDictionary {
+	//stop interning new sets once this many distinct sets have been seen, they will just be copied instead
+	private static final int MAX_INTERNED_SETS = 10000;
+	private static final String[] EMPTY = new String[0];
+
+	private final Map<String, Integer> toolIndexes = new ConcurrentHashMap<String, Integer>();
+	private final List<String> toolIds = new ArrayList<String>();
+	private final Map<DeniedTools, String[]> interned = new ConcurrentHashMap<DeniedTools, String[]>();
+
+	public ToolDictionary(Collection<String> knownToolIds){
+		List<String> sorted = new ArrayList<String>(knownToolIds);
+		Collections.sort(sorted);
+		for(String toolId : sorted){
+			getIndex(toolId);
+		}
+	}
+
+	/**
+	 * returns the int for this tool id, adding it to the dictionary if it's new
+	 * @param toolId
+	 * @return
+	 */
+	public int getIndex(String toolId){
+		Integer index = toolIndexes.get(toolId);
+		if(index == null){
+			synchronized (toolIds) {
+				index = toolIndexes.get(toolId);
+				if(index == null){
+					index = toolIds.size();
+					toolIds.add(toolId.intern());
+					toolIndexes.put(toolId, index);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the shared String[] instance for this set of tool ids.  Order and duplicates are ignored, so the
+	 * returned array is in dictionary order.  The returned array is shared and must not be modified.
+	 * @param deniedToolIds
+	 * @return
+	 */
+	public String[] intern(String[] deniedToolIds){
+		if(deniedToolIds == null){
+			return null;
+		}
+		if(deniedToolIds.length == 0){
+			return EMPTY;
+		}
+		DeniedTools bits = encode(deniedToolIds);
+		String[] shared = interned.get(bits);
+		if(shared == null){
+			shared = decode(bits);
+			if(interned.size() >= MAX_INTERNED_SETS){
+				return shared;
+			}
+			String[] existing = interned.get(bits);
+			if(existing != null){
+				return existing;
+			}
+			interned.put(bits, shared);
+		}
+		return shared;
+	}
+
+	private DeniedTools encode(String[] deniedToolIds){
+		long[] words = new long[0];
+		for(String toolId : deniedToolIds){
+			if(toolId == null){
+				continue;
+			}
+			int index = getIndex(toolId);
+			int word = index >>> 6;
+			if(word >= words.length){
+				words = Arrays.copyOf(words, word + 1);
+			}
+			words[word] |= 1L << index;
+		}
+		return new DeniedTools(words);
+	}
+
+	private String[] decode(DeniedTools bits){
+		List<String> returnList = new ArrayList<String>();
+		synchronized (toolIds) {
+			for(int word = 0; word < bits.words.length; word++){
+				long w = bits.words[word];
+				while(w != 0){
+					int bit = Long.numberOfTrailingZeros(w);
+					returnList.add(toolIds.get((word << 6) + bit));
+					w &= w - 1;
+				}
+			}
+		}
+		return returnList.toArray(new String[returnList.size()]);
+	}
+
+	/**
+	 * A bitset of tool indexes
+	 */
+	private static class DeniedTools {
+		private final long[] words;
+		private final int hash;
+
+		DeniedTools(long[] words){
+			//trim trailing empty words so equal sets are always equal
+			int length = words.length;
+			while(length > 0 && words[length - 1] == 0){
+				length--;
+			}
+			this.words = length == words.length ? words : Arrays.copyOf(words, length);
+			this.hash = Arrays.hashCode(this.words);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DeniedTools && Arrays.equals(words, ((DeniedTools) obj).words);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
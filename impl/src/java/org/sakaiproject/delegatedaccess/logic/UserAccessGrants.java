@@ -0,0 +1,72 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.sakaiproject.delegatedaccess.model.NodePermissions;
+
+/**
+ * Every node a user has been granted permissions on, loaded in a single query when the user logs in.
+ * With the hierarchy snapshot this is all that is needed to resolve the user's access to a site, so only
+ * the site -> node lookup has to go to the database.
+ */
+class UserAccessGrants implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, NodePermissions> nodePermissions;
+	private final Set<String> accessNodeIds;
+
+	/**
+	 * @param nodesAndPerms nodeId -> raw permissions for every node the user has permissions on
+	 */
+	public UserAccessGrants(Map<String, Set<String>> nodesAndPerms){
+		Map<String, NodePermissions> perms = new HashMap<String, NodePermissions>();
+		Set<String> accessNodes = new HashSet<String>();
+		for(Entry<String, Set<String>> entry : nodesAndPerms.entrySet()){
+			NodePermissions nodePerms = NodePermissions.parse(entry.getValue());
+			perms.put(entry.getKey(), nodePerms);
+			if(nodePerms.isDirectAccess()){
+				accessNodes.add(entry.getKey());
+			}
+		}
+		this.nodePermissions = Collections.unmodifiableMap(perms);
+		this.accessNodeIds = Collections.unmodifiableSet(accessNodes);
+	}
+
+	/**
+	 * returns nodeId -> permissions for every node the user has permissions on
+	 * @return
+	 */
+	public Map<String, NodePermissions> getNodePermissions() {
+		return nodePermissions;
+	}
+
+	/**
+	 * returns the ids of the nodes the user has been granted site access on
+	 * @return
+	 */
+	public Set<String> getAccessNodeIds() {
+		return accessNodeIds;
+	}
+}
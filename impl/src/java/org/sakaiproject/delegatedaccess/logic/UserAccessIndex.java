@@ -0,0 +1,107 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sakaiproject.delegatedaccess.model.AccessNode;
+
+/**
+ * The resolved delegated access of a single user, keyed by site reference.  Once a site has been
+ * resolved (by walking up the hierarchy to the closest access node), the result is kept here so the
+ * next lookup for that site doesn't need to hit the hierarchy tables again.
+ *
+ * Sites the user doesn't have access to are stored as well, so we don't keep looking them up.  Both are
+ * kept in their own list of the most recently used maxEntries sites, so a user who searches or browses a
+ * large part of the hierarchy doesn't grow the cached index without limit.  A site that was dropped is
+ * just resolved again.
+ *
+ * The stored AccessNode is the raw delegated access for the site.  Site membership and shopping period
+ * dates change independently of the hierarchy, so those checks are left to the caller.
+ */
+class UserAccessIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final LruMap<AccessNode> access;
+	private final LruMap<Boolean> noAccess;
+
+	/**
+	 * @param maxEntries the max number of sites kept with access, and separately without access
+	 */
+	public UserAccessIndex(int maxEntries){
+		access = new LruMap<AccessNode>(maxEntries < 1 ? 1 : maxEntries);
+		noAccess = new LruMap<Boolean>(maxEntries < 1 ? 1 : maxEntries);
+	}
+
+	/**
+	 * Access ordered so the eldest entry is the least recently used one
+	 */
+	private static class LruMap<V> extends LinkedHashMap<String, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+
+		LruMap(int maxEntries){
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/**
+	 * returns true if this site has already been resolved for the user
+	 * @param siteRef
+	 * @return
+	 */
+	public synchronized boolean contains(String siteRef){
+		return access.containsKey(siteRef) || noAccess.containsKey(siteRef);
+	}
+
+	/**
+	 * returns the resolved access for the site or null if the user doesn't have access (or it hasn't been resolved)
+	 * @param siteRef
+	 * @return
+	 */
+	public synchronized AccessNode get(String siteRef){
+		return access.get(siteRef);
+	}
+
+	/**
+	 * stores the resolved access for this site, pass in null if the user doesn't have access
+	 * @param siteRef
+	 * @param accessNode
+	 */
+	public synchronized void put(String siteRef, AccessNode accessNode){
+		if(accessNode == null){
+			access.remove(siteRef);
+			noAccess.put(siteRef, Boolean.TRUE);
+		}else{
+			noAccess.remove(siteRef);
+			access.put(siteRef, accessNode);
+		}
+	}
+
+	public synchronized int size(){
+		return access.size() + noAccess.size();
+	}
+}
@@ -0,0 +1,180 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.sakaiproject.delegatedaccess.jobs.HierarchyPlan.Operation;
+import org.sakaiproject.delegatedaccess.jobs.HierarchyPlan.Type;
+
+public class HierarchyPlanTest {
+
+	/**
+	 * root
+	 *   School A
+	 *     /site/s1 (Site 1)
+	 *   School B
+	 *     /site/s2 (Site 2)
+	 *   Old
+	 *     /site/s3 (Site 3)
+	 */
+	private SiteHierarchyIndex newIndex(){
+		List<String[]> nodes = new ArrayList<String[]>();
+		nodes.add(new String[]{"root", null, "delegatedaccess", "delegatedaccess"});
+		nodes.add(new String[]{"a", ":root:", "School A", "School A"});
+		nodes.add(new String[]{"s1", ":a:", "/site/s1", "Site 1"});
+		nodes.add(new String[]{"b", ":root:", "School B", "School B"});
+		nodes.add(new String[]{"s2", ":b:", "/site/s2", "Site 2"});
+		nodes.add(new String[]{"old", ":root:", "Old", "Old"});
+		nodes.add(new String[]{"s3", ":old:", "/site/s3", "Site 3"});
+		return new SiteHierarchyIndex(nodes);
+	}
+
+	@Test
+	public void testNoChanges(){
+		HierarchyPlan plan = new HierarchyPlan(newIndex(), "root");
+		plan.addSite("/site/s1", "Site 1", null, Arrays.asList("School A"));
+		plan.addSite("/site/s2", "Site 2", null, Arrays.asList("School B"));
+		plan.addSite("/site/s3", "Site 3", null, Arrays.asList("Old"));
+		assertTrue(plan.diff().isEmpty());
+		assertEquals("Site hierarchy plan: 0 creates, 0 moves, 0 updates, 0 deletes", plan.getSummary());
+	}
+
+	@Test
+	public void testEmptyHierarchy(){
+		List<String[]> nodes = new ArrayList<String[]>();
+		nodes.add(new String[]{"root", null, "delegatedaccess", "delegatedaccess"});
+		HierarchyPlan plan = new HierarchyPlan(new SiteHierarchyIndex(nodes), "root");
+		plan.addSite("/site/s1", "Site 1", "Fall", Arrays.asList("School A", "Fall"));
+		plan.addSite("/site/s2", "Site 2", "Fall", Arrays.asList("School A", "Fall"));
+		plan.addSite("/site/s3", "Site 3", "Spring", Arrays.asList("School A", "Spring"));
+
+		List<Operation> operations = plan.diff();
+		List<String> paths = new ArrayList<String>();
+		for(Operation operation : operations){
+			assertEquals(Type.CREATE, operation.getType());
+			assertNull(operation.getNodeId());
+			paths.add(operation.getNode().getPath());
+		}
+		//parents are always created before their children
+		assertEquals(Arrays.asList("/School A", "/School A/Fall", "/School A/Fall//site/s1", "/School A/Fall//site/s2",
+				"/School A/Spring", "/School A/Spring//site/s3"), paths);
+		Operation site = operations.get(2);
+		assertEquals("Site 1", site.getNode().getDescription());
+		assertEquals("Fall", site.getNode().getTerm());
+		assertTrue(site.getNode().isSite());
+	}
+
+	@Test
+	public void testChanges(){
+		HierarchyPlan plan = new HierarchyPlan(newIndex(), "root");
+		//renamed
+		plan.addSite("/site/s1", "Site 1 renamed", null, Arrays.asList("School A"));
+		//moved to an existing level
+		plan.addSite("/site/s2", "Site 2", null, Arrays.asList("School A"));
+		//moved to a new level
+		plan.addSite("/site/s3", "Site 3", null, Arrays.asList("School C"));
+		//new
+		plan.addSite("/site/s4", "Site 4", null, Arrays.asList("School A"));
+
+		List<Operation> operations = plan.diff();
+		assertEquals(2, plan.count(Type.CREATE));
+		assertEquals(2, plan.count(Type.MOVE));
+		assertEquals(1, plan.count(Type.UPDATE));
+		assertEquals(2, plan.count(Type.DELETE));
+		assertEquals(7, operations.size());
+
+		//creates, then moves, then updates, then deletes
+		assertEquals(Type.CREATE, operations.get(0).getType());
+		assertEquals("/School A//site/s4", operations.get(0).getNode().getPath());
+		assertEquals(Type.CREATE, operations.get(1).getType());
+		assertEquals("/School C", operations.get(1).getNode().getPath());
+
+		assertEquals(Type.MOVE, operations.get(2).getType());
+		assertEquals("s2", operations.get(2).getNodeId());
+		assertEquals("b", operations.get(2).getFromParentId());
+		assertEquals("a", operations.get(2).getNode().getParent().getNodeId());
+		assertEquals(Type.MOVE, operations.get(3).getType());
+		assertEquals("s3", operations.get(3).getNodeId());
+		assertEquals("old", operations.get(3).getFromParentId());
+		//School C doesn't exist yet, it gets its id when it is created
+		assertNull(operations.get(3).getNode().getParent().getNodeId());
+		assertSame(operations.get(1).getNode(), operations.get(3).getNode().getParent());
+
+		assertEquals(Type.UPDATE, operations.get(4).getType());
+		assertEquals("s1", operations.get(4).getNodeId());
+		assertEquals("Site 1 renamed", operations.get(4).getNode().getDescription());
+
+		//only the topmost node of an unwanted subtree is deleted, and the moved sites aren't
+		Set<String> deleted = new HashSet<String>();
+		for(Operation operation : operations.subList(5, 7)){
+			assertEquals(Type.DELETE, operation.getType());
+			assertNull(operation.getNode());
+			deleted.add(operation.getNodeId());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("b", "old")), deleted);
+	}
+
+	@Test
+	public void testSameTitleUnderAnotherParent(){
+		HierarchyPlan plan = new HierarchyPlan(newIndex(), "root");
+		plan.addSite("/site/s1", "Site 1", null, Arrays.asList("School A"));
+		plan.addSite("/site/s2", "Site 2", null, Arrays.asList("School B"));
+		plan.addSite("/site/s3", "Site 3", null, Arrays.asList("Old"));
+		//a level with the title of an existing node somewhere else is created, only sites are moved
+		plan.addSite("/site/s5", "Site 5", null, Arrays.asList("School B", "School A"));
+		List<Operation> operations = plan.diff();
+		assertEquals(2, operations.size());
+		assertEquals("/School B/School A", operations.get(0).getNode().getPath());
+		assertEquals("/School B/School A//site/s5", operations.get(1).getNode().getPath());
+	}
+
+	@Test
+	public void testDiffIsRecalculatedAfterAddSite(){
+		HierarchyPlan plan = new HierarchyPlan(newIndex(), "root");
+		plan.addSite("/site/s1", "Site 1", null, Arrays.asList("School A"));
+		assertEquals(2, plan.count(Type.DELETE));
+		plan.addSite("/site/s2", "Site 2", null, Arrays.asList("School B"));
+		assertEquals(1, plan.count(Type.DELETE));
+	}
+
+	@Test
+	public void testReport(){
+		HierarchyPlan plan = new HierarchyPlan(newIndex(), "root");
+		plan.addSite("/site/s1", "Site 1 renamed", null, Arrays.asList("School A"));
+		plan.addSite("/site/s2", "Site 2", null, Arrays.asList("School A"));
+		plan.addSite("/site/s3", "Site 3", null, Arrays.asList("School C"));
+		plan.addSite("/site/s4", "Site 4", null, Arrays.asList("School A"));
+
+		String report = plan.getReport(5);
+		assertTrue(report, report.startsWith("Site hierarchy plan: 2 creates, 2 moves, 1 updates, 2 deletes\n\n"));
+		assertTrue(report, report.contains("CREATE /School A//site/s4\n"));
+		assertTrue(report, report.contains("MOVE /site/s2 from /School B to /School A\n"));
+		assertTrue(report, report.contains("UPDATE /School A//site/s1 \"Site 1\" -> \"Site 1 renamed\"\n"));
+		assertTrue(report, report.endsWith("... and 2 more\n"));
+	}
+}
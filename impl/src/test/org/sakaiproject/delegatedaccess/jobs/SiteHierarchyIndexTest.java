@@ -0,0 +1,118 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SiteHierarchyIndexTest {
+	private SiteHierarchyIndex index;
+
+	@Before
+	public void setUp(){
+		List<String[]> nodes = new ArrayList<String[]>();
+		nodes.add(new String[]{"root", null, "delegatedaccess", "delegatedaccess"});
+		nodes.add(new String[]{"a", ":root:", "School A", "School A"});
+		nodes.add(new String[]{"b", ":root:", "School B", "School B"});
+		nodes.add(new String[]{"a1", ":a:", "Fall 2015", "Fall 2015"});
+		nodes.add(new String[]{"b1", ":b:", "Fall 2015", "Fall 2015"});
+		nodes.add(new String[]{"s1", ":a1:", "/site/s1", "Site 1"});
+		//a node with more than one parent, the first one is its parent
+		nodes.add(new String[]{"s2", ":b1:a1:", "/site/s2", "Site 2"});
+		nodes.add(new String[]{"untitled", ":root:", null, null});
+		index = new SiteHierarchyIndex(nodes);
+	}
+
+	@Test
+	public void testGetNodeIdsByTitle(){
+		assertEquals(new HashSet<String>(Arrays.asList("a1", "b1")), new HashSet<String>(index.getNodeIds("Fall 2015")));
+		assertEquals(Arrays.asList("s1"), index.getNodeIds("/site/s1"));
+		assertTrue(index.getNodeIds("missing").isEmpty());
+		assertTrue(index.getNodeIds((String) null).isEmpty());
+	}
+
+	@Test
+	public void testGetNodeIdsReturnsCopy(){
+		index.getNodeIds("Fall 2015").clear();
+		assertEquals(2, index.getNodeIds("Fall 2015").size());
+		index.getNodeIds().clear();
+		assertEquals(8, index.size());
+	}
+
+	@Test
+	public void testParents(){
+		assertTrue(index.isDirectChild("a1", "a"));
+		assertFalse(index.isDirectChild("a1", "root"));
+		assertTrue(index.isDirectChild("s2", "b1"));
+		assertTrue(index.isDirectChild("s2", "a1"));
+		//"a" is part of "a1", but isn't one of its parents
+		assertFalse(index.isDirectChild("s1", "a"));
+		assertFalse(index.isDirectChild("root", "a"));
+		assertFalse(index.isDirectChild("missing", "a"));
+
+		assertEquals("b1", index.getParentId("s2"));
+		assertEquals("root", index.getParentId("a"));
+		assertNull(index.getParentId("root"));
+		assertNull(index.getParentId("missing"));
+	}
+
+	@Test
+	public void testTitlesAndDescriptions(){
+		assertEquals("/site/s1", index.getTitle("s1"));
+		assertEquals("Site 1", index.getDescription("s1"));
+		assertNull(index.getTitle("untitled"));
+		assertNull(index.getTitle("missing"));
+
+		index.setDescription("s1", "Site 1 renamed");
+		assertEquals("Site 1 renamed", index.getDescription("s1"));
+		index.setDescription("missing", "ignored");
+		assertNull(index.getDescription("missing"));
+	}
+
+	@Test
+	public void testAddAndRemoveNode(){
+		index.addNode("s3", "a1", "/site/s3", "Site 3");
+		assertEquals(9, index.size());
+		assertEquals(Arrays.asList("s3"), index.getNodeIds("/site/s3"));
+		assertTrue(index.isDirectChild("s3", "a1"));
+		assertEquals("a1", index.getParentId("s3"));
+		assertEquals("Site 3", index.getDescription("s3"));
+
+		index.removeNode("s3");
+		assertEquals(8, index.size());
+		assertTrue(index.getNodeIds("/site/s3").isEmpty());
+		assertNull(index.getTitle("s3"));
+
+		//removing one of the nodes with a title keeps the others
+		index.removeNode("a1");
+		assertEquals(Arrays.asList("b1"), index.getNodeIds("Fall 2015"));
+
+		index.removeNode("untitled");
+		index.removeNode("missing");
+		assertEquals(6, index.size());
+	}
+}
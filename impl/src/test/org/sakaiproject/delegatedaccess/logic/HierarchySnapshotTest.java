@@ -0,0 +1,101 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HierarchySnapshotTest {
+	private HierarchySnapshot snapshot;
+
+	/**
+	 * root
+	 *   a
+	 *     a1
+	 *       s1
+	 *   b
+	 *     s2
+	 */
+	@Before
+	public void setUp(){
+		List<String[]> nodes = new ArrayList<String[]>();
+		nodes.add(new String[]{"root", null, "root"});
+		nodes.add(new String[]{"a", ":root:", "A"});
+		nodes.add(new String[]{"a1", ":a:", "A1"});
+		nodes.add(new String[]{"s1", ":a1:", "/site/s1"});
+		nodes.add(new String[]{"b", ":root:", "B"});
+		nodes.add(new String[]{"s2", ":b:", "/site/s2"});
+		snapshot = new HierarchySnapshot(nodes);
+	}
+
+	@Test
+	public void testStructure(){
+		assertEquals(6, snapshot.size());
+		assertEquals(Arrays.asList("root", "a", "a1"), snapshot.getAncestorIds("s1"));
+		assertEquals(3, snapshot.getDepth("s1"));
+		assertEquals("a1", snapshot.getParentId("s1"));
+		assertTrue(snapshot.isAncestorOrSelf("a", "s1"));
+		assertFalse(snapshot.isAncestorOrSelf("b", "s1"));
+		assertTrue(snapshot.isInSubtree("s2", Arrays.asList("a", "b")));
+		assertEquals("a", snapshot.getNearestAncestor("s1", new HashSet<String>(Arrays.asList("root", "a")), true));
+		assertFalse(snapshot.hasStaleNodes());
+	}
+
+	@Test
+	public void testStaleNodes(){
+		HierarchySnapshot stale = snapshot.withStaleNodes(Collections.singleton("a1"));
+		assertTrue(stale.hasStaleNodes());
+		assertEquals(snapshot.getCreated(), stale.getCreated());
+		//the stale node and its subtree are missing, so callers go to the hierarchy service for them
+		assertFalse(stale.contains("a1"));
+		assertFalse(stale.contains("s1"));
+		assertTrue(stale.getAncestorIds("s1").isEmpty());
+		assertNull(stale.getNearestAncestor("s1", Collections.singleton("root"), true));
+		assertFalse(stale.isInSubtree("s1", Collections.singleton("root")));
+		//everything else is unchanged
+		assertTrue(stale.contains("a"));
+		assertEquals(Arrays.asList("root"), stale.getAncestorIds("b"));
+		assertTrue(stale.isInSubtree("s2", Collections.singleton("root")));
+		//the original is never modified
+		assertTrue(snapshot.contains("s1"));
+		assertFalse(snapshot.hasStaleNodes());
+
+		HierarchySnapshot staler = stale.withStaleNodes(Collections.singleton("s2"));
+		assertFalse(staler.contains("s2"));
+		assertFalse(staler.contains("s1"));
+		assertTrue(stale.contains("s2"));
+	}
+
+	@Test
+	public void testNodesNotInSnapshot(){
+		assertSame(snapshot, snapshot.withStaleNodes(Arrays.asList("new", null)));
+		assertFalse(snapshot.contains("new"));
+		assertEquals(-1, snapshot.getDepth("new"));
+	}
+}
@@ -0,0 +1,171 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.sakaiproject.delegatedaccess.model.HierarchyNodeSerialized;
+
+/**
+ * Compares ProjectLogicImpl.getNearestAccessNode, which walks the ancestors from the bottom up, with the
+ * old top down getFirstAccessParent lookup over random trees and random access nodes.
+ */
+public class NearestAccessNodeTest {
+	private static final int TREES = 500;
+
+	/**
+	 * A random tree, node i's parent is one of the nodes before it
+	 */
+	private static class Tree {
+		private final Map<String, HierarchyNodeSerialized> nodes = new HashMap<String, HierarchyNodeSerialized>();
+		private final List<String[]> snapshotNodes = new ArrayList<String[]>();
+
+		private Tree(Random random, int size){
+			for(int i = 0; i < size; i++){
+				HierarchyNodeSerialized node = new HierarchyNodeSerialized(null);
+				node.id = "n" + i;
+				node.title = "title" + i;
+				String parentIds = "";
+				if(i > 0){
+					HierarchyNodeSerialized parent = nodes.get("n" + random.nextInt(i));
+					node.directParentNodeIds.add(parent.id);
+					node.parentNodeIds.add(parent.id);
+					node.parentNodeIds.addAll(parent.parentNodeIds);
+					parent.directChildNodeIds.add(node.id);
+					for(String ancestorId : node.parentNodeIds){
+						nodes.get(ancestorId).childNodeIds.add(node.id);
+					}
+					parentIds = ":" + parent.id + ":";
+				}
+				nodes.put(node.id, node);
+				snapshotNodes.add(new String[]{node.id, parentIds, node.title});
+			}
+		}
+
+		/**
+		 * The lookup getNearestAccessNode replaced
+		 */
+		private String getFirstAccessNode(String nodeId, Set<String> accessNodeIds){
+			while(nodeId != null && !"".equals(nodeId)){
+				if(accessNodeIds.contains(nodeId)){
+					return nodeId;
+				}
+				nodeId = getFirstAccessParent(nodes.get(nodeId).parentNodeIds, accessNodeIds);
+			}
+			return null;
+		}
+
+		private String getFirstAccessParent(Set<String> parentIds, Set<String> accessNodeIds){
+			String accessParent = null;
+			List<String> accessParents = new ArrayList<String>();
+			for(String parent : parentIds){
+				if(accessNodeIds.contains(parent)){
+					accessParents.add(parent);
+				}
+			}
+			if(accessParents.size() == 1){
+				accessParent = accessParents.get(0);
+			}else if(accessParents.size() > 1){
+				Collections.reverse(accessParents);
+				for(String parent : accessParents){
+					boolean foundAccessChild = false;
+					for(String child : nodes.get(parent).childNodeIds){
+						if(accessParents.contains(child)){
+							foundAccessChild = true;
+							break;
+						}
+					}
+					if(!foundAccessChild){
+						accessParent = parent;
+						break;
+					}
+				}
+			}
+			return accessParent;
+		}
+	}
+
+	private ProjectLogicImpl newProjectLogic(final Tree tree){
+		return new ProjectLogicImpl(){
+			@Override
+			HierarchyNodeSerialized getCachedNode(String id) {
+				return tree.nodes.get(id);
+			}
+		};
+	}
+
+	@Test
+	public void testMatchesTopDownLookup(){
+		Random random = new Random(20150301L);
+		for(int t = 0; t < TREES; t++){
+			Tree tree = new Tree(random, 1 + random.nextInt(60));
+			ProjectLogicImpl projectLogic = newProjectLogic(tree);
+			HierarchySnapshot snapshot = new HierarchySnapshot(tree.snapshotNodes);
+			Set<String> accessNodeIds = new HashSet<String>();
+			//from no access nodes to most of the tree
+			double accessRate = random.nextDouble() * 0.6;
+			for(String nodeId : tree.nodes.keySet()){
+				if(random.nextDouble() < accessRate){
+					accessNodeIds.add(nodeId);
+				}
+			}
+			for(String nodeId : tree.nodes.keySet()){
+				String expected = tree.getFirstAccessNode(nodeId, accessNodeIds);
+				String message = "tree " + t + " node " + nodeId;
+				assertEquals(message, expected, projectLogic.getNearestAccessNode(nodeId, accessNodeIds, null, null));
+				assertEquals(message, expected, projectLogic.getNearestAccessNode(nodeId, accessNodeIds, snapshot, null));
+			}
+		}
+	}
+
+	@Test
+	public void testNoAccess(){
+		Tree tree = new Tree(new Random(1L), 10);
+		ProjectLogicImpl projectLogic = newProjectLogic(tree);
+		assertNull(projectLogic.getNearestAccessNode("n9", new HashSet<String>(), null, null));
+		assertNull(projectLogic.getNearestAccessNode(null, Collections.singleton("n0"), null, null));
+		assertNull(projectLogic.getNearestAccessNode("", Collections.singleton("n0"), null, null));
+	}
+
+	@Test
+	public void testNodeMissingFromSnapshot(){
+		Random random = new Random(2L);
+		Tree tree = new Tree(random, 30);
+		ProjectLogicImpl projectLogic = newProjectLogic(tree);
+		//a snapshot built before the last ten nodes were added
+		HierarchySnapshot snapshot = new HierarchySnapshot(tree.snapshotNodes.subList(0, 20));
+		Set<String> accessNodeIds = new HashSet<String>();
+		for(int i = 0; i < 30; i += 3){
+			accessNodeIds.add("n" + i);
+		}
+		for(int i = 0; i < 30; i++){
+			String nodeId = "n" + i;
+			assertEquals(nodeId, tree.getFirstAccessNode(nodeId, accessNodeIds), projectLogic.getNearestAccessNode(nodeId, accessNodeIds, snapshot, null));
+		}
+	}
+}
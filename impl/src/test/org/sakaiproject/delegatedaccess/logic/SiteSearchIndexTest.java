@@ -0,0 +1,210 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Compares SiteSearchIndex.Index.search with the select.siteSearch and select.siteSearchInstructors queries:
+ * titles match "UPPER(TITLE) like UPPER('%search%')", properties match "UPPER(VALUE) like UPPER(value)" (the index
+ * is only used when neither has a wildcard) and instructor searches return one row per matching instructor.
+ */
+public class SiteSearchIndexTest {
+	private static final String[] PROPERTIES = {"term", "School", "Department"};
+	private static final String[] WORDS = {"Math", "math", "Biology", "History", "Art", "ART", "101", "Fall"};
+	private static final String[] VALUES = {"Fall 2015", "FALL 2015", "Spring 2016", "Arts", "Science", "science", ""};
+	private static final String[] USERS = {"u1", "u2", "u3", "u4", "u5"};
+
+	/**
+	 * A site as the database sees it
+	 */
+	private static class Site {
+		private String siteId;
+		private String title;
+		private boolean published;
+		private String[] values;
+		private Set<String> instructors;
+	}
+
+	private Site randomSite(Random random, String siteId){
+		Site site = new Site();
+		site.siteId = siteId;
+		if(random.nextInt(20) > 0){
+			StringBuilder title = new StringBuilder();
+			for(int i = random.nextInt(3); i >= 0; i--){
+				title.append(WORDS[random.nextInt(WORDS.length)]).append(" ");
+			}
+			site.title = title.toString().trim();
+		}
+		site.published = random.nextBoolean();
+		site.values = new String[PROPERTIES.length];
+		for(int i = 0; i < PROPERTIES.length; i++){
+			site.values[i] = random.nextInt(4) == 0 ? null : VALUES[random.nextInt(VALUES.length)];
+		}
+		site.instructors = new HashSet<String>();
+		for(String user : USERS){
+			if(random.nextInt(4) == 0){
+				site.instructors.add(user);
+			}
+		}
+		return site;
+	}
+
+	/**
+	 * The rows the database would return for this search
+	 */
+	private List<String> sqlSearch(Map<String, Site> sites, String titleSearch, Map<String, String> propsMap, String[] instructorIds, boolean publishedOnly){
+		List<String> rows = new ArrayList<String>();
+		for(Site site : sites.values()){
+			if(site.title == null || !site.title.toUpperCase().contains(titleSearch.toUpperCase())){
+				continue;
+			}
+			if(publishedOnly && !site.published){
+				continue;
+			}
+			boolean matches = true;
+			if(propsMap != null){
+				for(Map.Entry<String, String> entry : propsMap.entrySet()){
+					String value = site.values[Arrays.asList(PROPERTIES).indexOf(entry.getKey())];
+					if(value == null || !value.toUpperCase().equals(entry.getValue().toUpperCase())){
+						matches = false;
+					}
+				}
+			}
+			if(!matches){
+				continue;
+			}
+			if(instructorIds == null){
+				rows.add(toRow(new Object[]{site.siteId, site.title, site.published}));
+			}else{
+				for(String instructorId : new HashSet<String>(Arrays.asList(instructorIds))){
+					if(site.instructors.contains(instructorId)){
+						rows.add(toRow(new Object[]{site.siteId, site.title, site.published, instructorId}));
+					}
+				}
+			}
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private List<String> indexSearch(SiteSearchIndex.Index index, String titleSearch, Map<String, String> propsMap, String[] instructorIds, boolean publishedOnly){
+		List<String> rows = new ArrayList<String>();
+		for(Object[] result : index.search(titleSearch.toLowerCase(), propsMap, instructorIds, publishedOnly)){
+			rows.add(toRow(result));
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private String toRow(Object[] result){
+		return Arrays.asList(result).toString();
+	}
+
+	private void put(SiteSearchIndex.Index index, Site site){
+		index.put(site.siteId, site.title, site.published, site.values.clone(), site.instructors);
+	}
+
+	@Test
+	public void testMatchesSqlSearch(){
+		Random random = new Random(20150615L);
+		Map<String, Site> sites = new HashMap<String, Site>();
+		SiteSearchIndex.Index index = new SiteSearchIndex.Index(PROPERTIES, 0, 0);
+		for(int i = 0; i < 400; i++){
+			Site site = randomSite(random, "site" + i);
+			sites.put(site.siteId, site);
+			put(index, site);
+		}
+		//updates and removes have to keep the property and instructor postings in step
+		for(int i = 0; i < 100; i++){
+			String siteId = "site" + random.nextInt(400);
+			if(random.nextInt(4) == 0){
+				sites.remove(siteId);
+				index.remove(siteId);
+			}else{
+				Site site = randomSite(random, siteId);
+				sites.put(siteId, site);
+				put(index, site);
+			}
+		}
+		assertEquals(sites.size(), index.size());
+
+		for(int i = 0; i < 2000; i++){
+			String titleSearch = "";
+			if(random.nextBoolean()){
+				String word = WORDS[random.nextInt(WORDS.length)];
+				int start = random.nextInt(word.length());
+				titleSearch = word.substring(start, start + 1 + random.nextInt(word.length() - start));
+			}
+			Map<String, String> propsMap = null;
+			if(random.nextBoolean()){
+				propsMap = new LinkedHashMap<String, String>();
+				for(String property : PROPERTIES){
+					if(random.nextInt(3) == 0){
+						propsMap.put(property, VALUES[random.nextInt(VALUES.length)]);
+					}
+				}
+			}
+			String[] instructorIds = null;
+			if(random.nextBoolean()){
+				instructorIds = new String[1 + random.nextInt(3)];
+				for(int j = 0; j < instructorIds.length; j++){
+					//sometimes a user that isn't an instructor anywhere
+					instructorIds[j] = random.nextInt(6) == 0 ? "nobody" : USERS[random.nextInt(USERS.length)];
+				}
+			}
+			boolean publishedOnly = random.nextBoolean();
+			String message = "search " + i + ": title=" + titleSearch + " props=" + propsMap
+				+ " instructors=" + (instructorIds == null ? null : Arrays.asList(instructorIds)) + " publishedOnly=" + publishedOnly;
+			assertEquals(message, sqlSearch(sites, titleSearch, propsMap, instructorIds, publishedOnly),
+					indexSearch(index, titleSearch, propsMap, instructorIds, publishedOnly));
+		}
+	}
+
+	@Test
+	public void testUpdatedSiteLeavesOldPostings(){
+		SiteSearchIndex.Index index = new SiteSearchIndex.Index(PROPERTIES, 0, 0);
+		index.put("s1", "Math 101", true, new String[]{"Fall 2015", "Science", null}, new HashSet<String>(Arrays.asList("u1")));
+		index.put("s1", "Math 101", true, new String[]{"Spring 2016", "Science", null}, new HashSet<String>(Arrays.asList("u2")));
+
+		Map<String, String> fall = Collections.singletonMap("term", "fall 2015");
+		Map<String, String> spring = Collections.singletonMap("term", "SPRING 2016");
+		assertTrue(index.search("", fall, null, false).isEmpty());
+		assertEquals(1, index.search("", spring, null, false).size());
+		assertTrue(index.search("", null, new String[]{"u1"}, false).isEmpty());
+		assertEquals(1, index.search("", null, new String[]{"u2"}, false).size());
+
+		index.remove("s1");
+		assertEquals(0, index.size());
+		assertTrue(index.search("", spring, null, false).isEmpty());
+		assertTrue(index.search("", null, new String[]{"u2"}, false).isEmpty());
+	}
+}
@@ -0,0 +1,148 @@
+/*
+* The Trustees of Columbia University in the City of New York
+* licenses this file to you under the Educational Community License,
+* Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.delegatedaccess.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResult;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResultPage;
+import org.sakaiproject.delegatedaccess.model.SiteSerialized;
+import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
+import org.sakaiproject.user.api.User;
+
+public class SiteSearchResultsTest {
+
+	private SiteSearchResult newResult(String siteId, String title, String term){
+		return new SiteSearchResult(new SiteSerialized(siteId, title, term, true), new ArrayList<User>(), "term");
+	}
+
+	/**
+	 * s1..s10, titles repeat so the site id decides the order between them
+	 */
+	private List<SiteSearchResult> newResults(){
+		List<SiteSearchResult> results = new ArrayList<SiteSearchResult>();
+		String[] titles = {"Math", "biology", "Art", "math", "History", "Biology", "Art", "Chemistry", "art", "Physics"};
+		for(int i = 0; i < titles.length; i++){
+			results.add(newResult("s" + (i + 1), titles[i], i % 2 == 0 ? "Fall" : "Spring"));
+		}
+		return results;
+	}
+
+	private List<String> siteIds(SiteSearchResultPage page){
+		List<String> siteIds = new ArrayList<String>();
+		for(SiteSearchResult result : page.getResults()){
+			siteIds.add(result.getSiteId());
+		}
+		return siteIds;
+	}
+
+	@Test
+	public void testSortedWithSiteIdTieBreak(){
+		SiteSearchResults results = new SiteSearchResults("key", newResults());
+		SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 0, 100);
+		assertEquals(Arrays.asList("s3", "s7", "s9", "s2", "s6", "s8", "s5", "s1", "s4", "s10"), siteIds(page));
+		assertEquals(0, page.getOffset());
+		assertEquals(10, page.getTotalCount());
+
+		//descending reverses the whole order, including the tie break
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, false, null, 0, 100);
+		assertEquals(Arrays.asList("s10", "s4", "s1", "s5", "s8", "s6", "s2", "s9", "s7", "s3"), siteIds(page));
+	}
+
+	@Test
+	public void testOffsetPaging(){
+		SiteSearchResults results = new SiteSearchResults("key", newResults());
+		SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 3, 4);
+		assertEquals(Arrays.asList("s2", "s6", "s8", "s5"), siteIds(page));
+		assertEquals(3, page.getOffset());
+
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 8, 4);
+		assertEquals(Arrays.asList("s4", "s10"), siteIds(page));
+		assertEquals(8, page.getOffset());
+
+		//out of range offsets and limits are clamped
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 20, 4);
+		assertTrue(page.getResults().isEmpty());
+		assertEquals(10, page.getOffset());
+		assertNull(page.getLastSiteId());
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, -5, 2);
+		assertEquals(Arrays.asList("s3", "s7"), siteIds(page));
+		assertEquals(0, page.getOffset());
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 0, -1);
+		assertTrue(page.getResults().isEmpty());
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 5, Integer.MAX_VALUE);
+		assertEquals(5, page.getResults().size());
+	}
+
+	@Test
+	public void testKeysetPagingVisitsEveryResultOnce(){
+		SiteSearchResults results = new SiteSearchResults("key", newResults());
+		for(int limit = 1; limit <= 11; limit++){
+			List<String> visited = new ArrayList<String>();
+			String afterSiteId = null;
+			int pages = 0;
+			do{
+				//the offset is ignored once the last site of the previous page is known
+				SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_TERM, true, afterSiteId, afterSiteId == null ? 0 : 999, limit);
+				assertEquals(visited.size(), page.getOffset());
+				visited.addAll(siteIds(page));
+				afterSiteId = page.getLastSiteId();
+				pages++;
+			}while(afterSiteId != null && pages < 20 && visited.size() < 10);
+			assertEquals("limit " + limit, Arrays.asList("s1", "s3", "s5", "s7", "s9", "s10", "s2", "s4", "s6", "s8"), visited);
+		}
+	}
+
+	@Test
+	public void testKeysetAfterSortChange(){
+		SiteSearchResults results = new SiteSearchResults("key", newResults());
+		results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 0, 3);
+		//the same site id picks up where it is in the new order
+		SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_TERM, true, "s9", 0, 3);
+		assertEquals(5, page.getOffset());
+		assertEquals(Arrays.asList("s10", "s2", "s4"), siteIds(page));
+	}
+
+	@Test
+	public void testUnknownAfterSiteIdFallsBackToOffset(){
+		SiteSearchResults results = new SiteSearchResults("key", newResults());
+		SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, "removed", 2, 2);
+		assertEquals(2, page.getOffset());
+		assertEquals(Arrays.asList("s9", "s2"), siteIds(page));
+
+		//the last site of the results has nothing after it
+		page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, "s10", 0, 2);
+		assertTrue(page.getResults().isEmpty());
+		assertEquals(10, page.getOffset());
+	}
+
+	@Test
+	public void testEmptyResults(){
+		SiteSearchResults results = new SiteSearchResults("key", new ArrayList<SiteSearchResult>());
+		SiteSearchResultPage page = results.getPage(DelegatedAccessConstants.SEARCH_COMPARE_SITE_TITLE, true, null, 0, 20);
+		assertTrue(page.getResults().isEmpty());
+		assertEquals(0, page.getTotalCount());
+		assertEquals("key", results.getSearchKey());
+	}
+}
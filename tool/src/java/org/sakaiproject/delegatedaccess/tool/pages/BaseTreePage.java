@@ -74,7 +74,7 @@ public abstract class BaseTreePage extends BasePage
 	 * @param defaultRole
 	 */
 	private void updateNodeAccessHelper(DefaultMutableTreeNode node, String userId, String[] defaultRole){
-		if(node.getUserObject() != null){
+		if(node.getUserObject() != null && !((NodeModel) node.getUserObject()).isLoadMoreNode()){
 			NodeModel nodeModel = (NodeModel) node.getUserObject();
 			if(defaultRole != null && defaultRole.length == 2){
 				nodeModel.setRealm(defaultRole[0]);
@@ -121,6 +121,35 @@ public abstract class BaseTreePage extends BasePage
 		}
 	}
 
+	/**
+	 * Returns the parent of a "load more" node, or null if this is a normal node
+	 * @param node
+	 * @return
+	 */
+	protected DefaultMutableTreeNode getLoadMoreParent(Object node){
+		if(node instanceof DefaultMutableTreeNode && ((DefaultMutableTreeNode) node).getUserObject() != null
+				&& ((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isLoadMoreNode()){
+			return (DefaultMutableTreeNode) ((DefaultMutableTreeNode) node).getParent();
+		}
+		return null;
+	}
+
+	/**
+	 * Children are added a page at a time, this sets the label of the "load more" node (if there is one)
+	 * to show how many of the children have been added so far
+	 * @param node
+	 */
+	protected void updateLoadMoreLabel(DefaultMutableTreeNode node){
+		if(node != null && node.getChildCount() > 0){
+			DefaultMutableTreeNode lastChild = (DefaultMutableTreeNode) node.getLastChild();
+			if(lastChild.getUserObject() != null && ((NodeModel) lastChild.getUserObject()).isLoadMoreNode()){
+				NodeModel nodeModel = (NodeModel) node.getUserObject();
+				((NodeModel) lastChild.getUserObject()).getNode().description = new StringResourceModel("loadMoreChildren", null,
+						new Object[]{nodeModel.getChildrenLoaded(), nodeModel.getChildrenCount()}).getString();
+			}
+		}
+	}
+
 	protected AjaxLink getExpandCollapseLink(){
 		//Expand Collapse Link:
 		final Label expandCollapse = new Label("expandCollapse", new StringResourceModel("exapndNodes", null));
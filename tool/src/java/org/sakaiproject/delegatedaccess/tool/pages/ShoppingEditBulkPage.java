@@ -613,7 +613,7 @@ public class ShoppingEditBulkPage extends BasePage{
 				}
 			}
 			//filter out any sites that do not have nodes
-			Map<String, List<String>> nodes = projectLogic.getNodesBySiteRef(lookupSiteRefs.toArray(new String[lookupSiteRefs.size()]), DelegatedAccessConstants.HIERARCHY_ID);
+			Map<String, List<String>> nodes = projectLogic.getNodesBySiteRef(lookupSiteRefs.toArray(new String[lookupSiteRefs.size()]), projectLogic.getActiveHierarchyId());
 			Set<String> shoppingEditableNodes = new HashSet<String>();
 			//get list of node ids to check whether the user can modify the settings
 			for(Entry<String, List<String>> entry : nodes.entrySet()){
@@ -154,11 +154,22 @@ public class ShoppingEditPage extends BaseTreePage{
 				return treeModel != null;
 			}
 			protected void onNodeLinkClicked(AjaxRequestTarget target, TreeNode node) {
+				DefaultMutableTreeNode loadMoreParent = getLoadMoreParent(node);
+				if(loadMoreParent != null){
+					//the "load more" node was clicked, add the next page of children to its parent
+					projectLogic.addChildrenNodes(loadMoreParent, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel(loadMoreParent);
+					collapseEmptyFoldersHelper(loadMoreParent);
+					tree.invalidateAll();
+					tree.updateTree(target);
+					return;
+				}
 				tree.getTreeState().selectNode(node, false);
 				
 				boolean anyAdded = false;
 				if(!tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-					anyAdded = projectLogic.addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false);
+					anyAdded = projectLogic.addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel((DefaultMutableTreeNode) node);
 					((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 				}
 				if(anyAdded){
@@ -174,7 +185,8 @@ public class ShoppingEditPage extends BaseTreePage{
 				//the nodes are generated on the fly with ajax.  This will add any child nodes that 
 				//are missing in the tree.  Expanding and collapsing will refresh the tree node
 				if(tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-					boolean anyAdded = projectLogic.addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false);
+					boolean anyAdded = projectLogic.addChildrenNodes(node, DelegatedAccessConstants.SHOPPING_PERIOD_USER, blankRestrictedTools, false, null, true, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel((DefaultMutableTreeNode) node);
 					((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 					if(anyAdded){
 						collapseEmptyFoldersHelper((DefaultMutableTreeNode) node);
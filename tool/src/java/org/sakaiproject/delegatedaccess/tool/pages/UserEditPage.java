@@ -164,6 +164,16 @@ public class UserEditPage  extends BaseTreePage{
 				return treeModel != null;
 			}
 			protected void onNodeLinkClicked(AjaxRequestTarget target, TreeNode node) {
+				DefaultMutableTreeNode loadMoreParent = getLoadMoreParent(node);
+				if(loadMoreParent != null){
+					//the "load more" node was clicked, add the next page of children to its parent
+					projectLogic.addChildrenNodes(loadMoreParent, userId, blankRestrictedTools, false, accessAdminNodeIds, false, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel(loadMoreParent);
+					collapseEmptyFoldersHelper(loadMoreParent);
+					tree.invalidateAll();
+					tree.updateTree(target);
+					return;
+				}
 				//the nodes are generated on the fly with ajax.  This will add any child nodes that 
 				//are missing in the tree.  Expanding and collapsing will refresh the tree node
 				
@@ -171,7 +181,8 @@ public class UserEditPage  extends BaseTreePage{
 				
 				boolean anyAdded = false;
 				if(!tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-					anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, false, accessAdminNodeIds, false, false);
+					anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, false, accessAdminNodeIds, false, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel((DefaultMutableTreeNode) node);
 					((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 				}
 				if(anyAdded){
@@ -187,7 +198,8 @@ public class UserEditPage  extends BaseTreePage{
 				//the nodes are generated on the fly with ajax.  This will add any child nodes that 
 				//are missing in the tree.  Expanding and collapsing will refresh the tree node
 				if(tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-					boolean anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, false, accessAdminNodeIds, false, false);
+					boolean anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, false, accessAdminNodeIds, false, false, sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel((DefaultMutableTreeNode) node);
 					((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 					if(anyAdded){
 						collapseEmptyFoldersHelper((DefaultMutableTreeNode) node);
@@ -128,7 +128,8 @@ public class UserPage  extends BaseTreePage{
 		if(treeModel != null){
 			DefaultMutableTreeNode node = (DefaultMutableTreeNode) treeModel.getRoot();
 			if(((NodeModel) node.getUserObject()).isDirectAccess()){
-				projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool());
+				projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool(), sakaiProxy.getTreeChildrenPageSize());
+				updateLoadMoreLabel(node);
 			}
 		}
 		//a null model means the user doesn't have any associations
@@ -140,6 +141,16 @@ public class UserPage  extends BaseTreePage{
 								(!sakaiProxy.getDisableShoppingTreeView() && isShoppingPeriodTool()));
 			}
 			protected void onNodeLinkClicked(Object node, BaseTree tree, AjaxRequestTarget target) {
+				DefaultMutableTreeNode loadMoreParent = getLoadMoreParent(node);
+				if(loadMoreParent != null){
+					//the "load more" node was clicked, add the next page of children to its parent
+					projectLogic.addChildrenNodes(loadMoreParent, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool(), sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel(loadMoreParent);
+					collapseEmptyFoldersHelper(loadMoreParent);
+					tree.invalidateAll();
+					tree.updateTree(target);
+					return;
+				}
 				if(tree.isLeaf(node)){
 					//The user has clicked a leaf and chances are its a site.
 					//all sites are leafs, but there may be non sites as leafs
@@ -154,7 +165,8 @@ public class UserPage  extends BaseTreePage{
 				}else{
 					boolean anyAdded = false;
 					if(!tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-						anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool());
+						anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool(), sakaiProxy.getTreeChildrenPageSize());
+						updateLoadMoreLabel((DefaultMutableTreeNode) node);
 						((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 					}
 					if(anyAdded){
@@ -173,7 +185,8 @@ public class UserPage  extends BaseTreePage{
 				//the nodes are generated on the fly with ajax.  This will add any child nodes that 
 				//are missing in the tree.  Expanding and collapsing will refresh the tree node
 				if(tree.getTreeState().isNodeExpanded(node) && !((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).isAddedDirectChildrenFlag()){
-					boolean anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool());
+					boolean anyAdded = projectLogic.addChildrenNodes(node, userId, blankRestrictedTools, true, null, false, isShoppingPeriodTool(), sakaiProxy.getTreeChildrenPageSize());
+					updateLoadMoreLabel((DefaultMutableTreeNode) node);
 					((NodeModel) ((DefaultMutableTreeNode) node).getUserObject()).setAddedDirectChildrenFlag(true);
 					if(anyAdded){
 						collapseEmptyFoldersHelper((DefaultMutableTreeNode) node);
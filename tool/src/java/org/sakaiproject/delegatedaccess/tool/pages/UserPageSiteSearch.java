@@ -63,8 +63,8 @@ import org.apache.wicket.util.resource.IResourceStream;
 import org.sakaiproject.delegatedaccess.model.ListOptionSerialized;
 import org.sakaiproject.delegatedaccess.model.SelectOption;
 import org.sakaiproject.delegatedaccess.model.SiteSearchResult;
+import org.sakaiproject.delegatedaccess.model.SiteSearchResultPage;
 import org.sakaiproject.delegatedaccess.util.DelegatedAccessConstants;
-import org.sakaiproject.delegatedaccess.util.SiteSearchResultComparator;
 import org.sakaiproject.user.api.User;
 
 /**
@@ -1063,7 +1063,8 @@ public class UserPageSiteSearch extends BasePage {
 	}
 
 	/**
-	 * A data provider for the search results table.  This calls the search functions in Sakai
+	 * A data provider for the search results table.  This calls the search functions in Sakai.
+	 * Only the page that is being shown is kept here, the sorted results stay on the server.
 	 *
 	 */
 	private class SiteSearchResultDataProvider implements IDataProvider<SiteSearchResult>{
@@ -1072,15 +1073,24 @@ public class UserPageSiteSearch extends BasePage {
 
 		private boolean lastOrderAsc = true;
 		private int lastOrderBy = DelegatedAccessConstants.SEARCH_COMPARE_DEFAULT;
-		private List<SiteSearchResult> list;
+		private SiteSearchResultPage page;
 		public void detach() {
 
 		}
 		public void detachManually(){
-			this.list = null;
+			this.page = null;
+			//a new search, don't page through the last one
+			projectLogic.clearSiteSearchResults();
 		}
 		public Iterator<? extends SiteSearchResult> iterator(int first, int count) {
-			return getData().subList(first, first + count).iterator();
+			if(page == null || lastOrderAsc != orderAsc || lastOrderBy != orderBy){
+				page = getPage(null, first, count);
+			}else if(page.getOffset() != first || page.getResults().size() != Math.min(count, page.getTotalCount() - first)){
+				//the next page starts right after the last site of this one
+				String afterSiteId = first == page.getOffset() + page.getResults().size() ? page.getLastSiteId() : null;
+				page = getPage(afterSiteId, first, count);
+			}
+			return page.getResults().iterator();
 		}
 
 		public IModel<SiteSearchResult> model(final SiteSearchResult object) {
@@ -1095,64 +1105,50 @@ public class UserPageSiteSearch extends BasePage {
 		}
 
 		public int size() {
-			return getData().size();
+			if(page == null || lastOrderAsc != orderAsc || lastOrderBy != orderBy){
+				page = getPage(null, 0, DelegatedAccessConstants.SEARCH_RESULTS_PAGE_SIZE);
+			}
+			return page.getTotalCount();
 		}
 
+		/**
+		 * returns every result, sorted the same way as the table
+		 * @return
+		 */
 		private List<SiteSearchResult> getData(){
-			if(list == null){
-				Map<String, Object> advancedOptions = new HashMap<String,Object>();
-				if(termField != null && !"".equals(termField)){
-					advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_TERM, termField.getValue());
-				}
-				if(instructorField != null && !"".equals(instructorField)){
-					advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR, instructorField);
-					advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR_TYPE, selectedInstructorOption);
-				}
-				//hierarchy params
-				Map<String, String> hierarchyParams = new HashMap<String, String>();
-				for(Entry<String, SelectOption> entry : hierarchySearchMap.entrySet()){
-					if(entry.getValue() != null && !"".equals(entry.getValue().getValue().trim())){
-						hierarchyParams.put(entry.getKey(), entry.getValue().getValue().trim());
-					}
-				}
-				if(hierarchyParams.size() > 0){
-					advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_HIERARCHY_FIELDS, hierarchyParams);
-				}
-				if(search == null){
-					search = "";
-				}
-				if(!"".equals(search) || (advancedOptions != null && !advancedOptions.isEmpty())){
-					 list = projectLogic.searchUserSites(getSearch(), advancedOptions.isEmpty() ? null : advancedOptions, (isShoppingPeriodTool() || statistics), isShoppingPeriodTool() || (statistics && currentStatisticsFlag));
-//					if(currentStatisticsFlag){
-//						//need to filter out the results and find only current shopping period results:
-//						for (Iterator iterator = list.iterator(); iterator
-//								.hasNext();) {
-//							SiteSearchResult result = (SiteSearchResult) iterator.next();
-//							Map<String, String> nodes = projectLogic.getNodesBySiteRef(new String[]{result.getSiteReference()}, DelegatedAccessConstants.SHOPPING_PERIOD_HIERARCHY_ID);
-//							if(nodes == null || !nodes.containsKey(result.getSiteReference())){
-//								//this site doesn't exist in the current shopping period hierarchy, so remove it
-//								iterator.remove();
-//							}
-//						}
-//						
-//					}
-				}else {
-					list = new ArrayList<SiteSearchResult>();
-				}
-				sortList();
-			}else if(lastOrderAsc != orderAsc || lastOrderBy != orderBy){
-				sortList();
-			}
-			return list;
+			return getPage(null, 0, Integer.MAX_VALUE).getResults();
 		}
 
-		private void sortList(){
-			Collections.sort(list, new SiteSearchResultComparator(orderBy));
-			if(!orderAsc){
-				Collections.reverse(list);
-			}
+		private SiteSearchResultPage getPage(String afterSiteId, int offset, int limit){
 			this.lastOrderAsc = orderAsc;
 			this.lastOrderBy = orderBy;
+			Map<String, Object> advancedOptions = new HashMap<String,Object>();
+			if(termField != null && !"".equals(termField)){
+				advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_TERM, termField.getValue());
+			}
+			if(instructorField != null && !"".equals(instructorField)){
+				advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR, instructorField);
+				advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_INSTRUCTOR_TYPE, selectedInstructorOption);
+			}
+			//hierarchy params
+			Map<String, String> hierarchyParams = new HashMap<String, String>();
+			for(Entry<String, SelectOption> entry : hierarchySearchMap.entrySet()){
+				if(entry.getValue() != null && !"".equals(entry.getValue().getValue().trim())){
+					hierarchyParams.put(entry.getKey(), entry.getValue().getValue().trim());
+				}
+			}
+			if(hierarchyParams.size() > 0){
+				advancedOptions.put(DelegatedAccessConstants.ADVANCED_SEARCH_HIERARCHY_FIELDS, hierarchyParams);
+			}
+			if(search == null){
+				search = "";
+			}
+			if(!"".equals(search) || (advancedOptions != null && !advancedOptions.isEmpty())){
+				return projectLogic.searchUserSites(getSearch(), advancedOptions.isEmpty() ? null : advancedOptions, (isShoppingPeriodTool() || statistics), isShoppingPeriodTool() || (statistics && currentStatisticsFlag),
+						orderBy, orderAsc, afterSiteId, offset, limit);
+			}else {
+				return new SiteSearchResultPage(new ArrayList<SiteSearchResult>(), 0, 0);
+			}
 		}
 
 	}